@@ -0,0 +1,389 @@
+/*
+ * Synthetic Data Generator
+ * ========================
+ *
+ * Writes users.csv, items.csv, store.csv, foodorder.csv and itemsinorder.csv
+ * for the tables in create_tables.sql, in the CSV-with-header format that
+ * load_data.sql COPYs in, at any scale.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.time.LocalDate;
+
+/**
+ * Generates a realistic, deterministic data set. The same scale factor and seed
+ * always give byte-identical files, whatever the number of threads: work is cut
+ * into fixed chunks, each chunk has its own random stream derived from the seed,
+ * and chunks are written out in order.
+ *
+ * Per unit of scale factor: 10,000 users, 20 stores and 200,000 orders with
+ * about 2.5 lines each, so scale factor 100 is 1M users and 50M order lines.
+ * Item popularity is Zipfian, a few customers place most of the orders, and
+ * orders cluster around lunch, dinner and weekends.
+ */
+public class DataGenerator {
+
+   static final int CHUNK = 50000;
+   static final int DAYS = 365;
+
+   static final String[] TOPPINGS = {"Pepperoni", "Margherita", "Hawaiian", "BBQ Chicken", "Veggie", "Meat Lovers",
+      "Buffalo", "Supreme", "Four Cheese", "Mushroom", "Sausage", "Garlic", "Pesto", "Spinach", "Bacon", "Jalapeno",
+      "Truffle", "Olive", "Anchovy", "Chorizo"};
+   static final String[] STYLES = {"Pizza", "Calzone", "Flatbread", "Deep Dish", "Thin Crust"};
+   static final String[] SIDES = {"Garlic Knots", "Breadsticks", "Wings", "Caesar Salad", "Mozzarella Sticks",
+      "Fries", "Onion Rings", "Cheesy Bread", "Garden Salad", "Meatballs"};
+   static final String[] DRINKS = {"Cola", "Diet Cola", "Lemonade", "Iced Tea", "Root Beer", "Orange Soda",
+      "Sparkling Water", "Ginger Ale"};
+   static final String[] DESSERTS = {"Brownie", "Cinnamon Sticks", "Cheesecake", "Cookie", "Tiramisu", "Cannoli"};
+   static final String[] SIZES = {"Small", "Medium", "Large"};
+   static final String[] INGREDIENTS = {"cheese", "tomato sauce", "dough", "pepperoni", "ham", "pineapple",
+      "chicken", "bbq sauce", "peppers", "onions", "mushrooms", "olives", "sausage", "bacon", "spinach",
+      "garlic", "basil", "pesto", "jalapenos", "anchovies", "flour", "sugar", "butter", "eggs", "milk",
+      "peanuts", "walnuts", "chocolate", "lettuce", "croutons", "parmesan", "cinnamon", "water", "lemon"};
+   static final String[] CITIES = {"Riverside", "Los Angeles", "San Diego", "Irvine", "Pasadena", "Ontario",
+      "Corona", "Fresno", "Sacramento", "San Jose", "Phoenix", "Las Vegas", "Austin", "Denver", "Seattle"};
+   static final String[] STATES = {"CA", "CA", "CA", "CA", "CA", "CA", "CA", "CA", "CA", "CA", "AZ", "NV", "TX",
+      "CO", "WA"};
+   static final String[] STREETS = {"Main St", "University Ave", "Market St", "Oak Ave", "Park Blvd", "1st St",
+      "Magnolia Ave", "Central Ave", "Lincoln Ave", "Canyon Crest Dr"};
+
+   // relative order volume per hour of day: lunch and dinner peaks
+   static final double[] HOURS = {0.2, 0.1, 0.05, 0.05, 0.05, 0.1, 0.3, 0.6, 0.8, 0.9, 1.5, 4.0,
+                                  6.0, 4.5, 2.0, 1.5, 2.5, 5.0, 7.0, 6.5, 4.0, 2.5, 1.2, 0.6};
+   // relative order volume per day of week, Monday first
+   static final double[] WEEKDAYS = {0.8, 0.8, 0.9, 1.0, 1.4, 1.6, 1.3};
+
+   final long seed;
+   final int users;
+   final int stores;
+   final long orders;
+   final int threads;
+   final LocalDate end;
+
+   String[] itemNames;
+   int[] itemCents;
+   double[] itemCdf;
+   double[] userCdf;
+   double[] dayCdf;
+   double[] hourCdf;
+   String[] dayStrings;
+
+   public DataGenerator(double scale, long seed, int threads, LocalDate end) {
+      this.seed = seed;
+      this.users = Math.max(10, (int) (10000 * scale));
+      this.stores = Math.max(2, (int) (20 * scale));
+      this.orders = Math.max(10, (long) (200000 * scale));
+      this.threads = threads;
+      this.end = end;
+   }
+
+   /**
+    * The main execution method
+    *
+    * @param args <output dir> [scale factor] [seed] [threads]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: java DataGenerator <output dir> [scale factor] [seed] [threads]");
+         return;
+      }
+      File dir = new File(args[0]);
+      double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+      long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+      int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+      dir.mkdirs();
+
+      long start = System.nanoTime();
+      DataGenerator generator = new DataGenerator(scale, seed, threads, LocalDate.of(2025, 3, 1));
+      generator.generate(dir);
+      System.out.println(String.format("Generated %d users, %d stores, %d items and %d orders in %.1f s",
+         generator.users, generator.stores, generator.itemNames.length, generator.orders,
+         (System.nanoTime() - start) / 1e9));
+   }
+
+   public void generate(File dir) throws Exception {
+      prepare();
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         writeItems(new File(dir, "items.csv"));
+         writeStores(new File(dir, "store.csv"));
+         writeChunks(pool, users, new File[] {new File(dir, "users.csv")},
+            new String[] {"login,password,role,favoriteItems,phoneNum"}, new ChunkWriter() {
+               public void write(int chunk, long from, long to, SplittableRandom rnd, StringBuilder[] out) {
+                  writeUsers(from, to, rnd, out[0]);
+               }
+            });
+         writeChunks(pool, orders, new File[] {new File(dir, "foodorder.csv"), new File(dir, "itemsinorder.csv")},
+            new String[] {"orderID,login,storeID,totalPrice,orderTimestamp,orderStatus", "orderID,itemName,quantity"},
+            new ChunkWriter() {
+               public void write(int chunk, long from, long to, SplittableRandom rnd, StringBuilder[] out) {
+                  writeOrders(from, to, rnd, out[0], out[1]);
+               }
+            });
+      }
+      finally {
+         pool.shutdown();
+      }
+   }
+
+   // builds the menu and the sampling tables every chunk shares
+   void prepare() {
+      SplittableRandom rnd = new SplittableRandom(seed);
+      int pizzas = TOPPINGS.length * STYLES.length;
+      int count = pizzas + (SIDES.length + DRINKS.length) * SIZES.length + DESSERTS.length;
+      itemNames = new String[count];
+      itemCents = new int[count];
+      int n = 0;
+      for (String style : STYLES) {
+         for (String topping : TOPPINGS) {
+            itemNames[n] = topping + " " + style;
+            itemCents[n++] = 999 + 50 * rnd.nextInt(20);
+         }
+      }
+      for (String size : SIZES) {
+         for (String side : SIDES) {
+            itemNames[n] = size + " " + side;
+            itemCents[n++] = 399 + 25 * rnd.nextInt(16);
+         }
+         for (String drink : DRINKS) {
+            itemNames[n] = size + " " + drink;
+            itemCents[n++] = 149 + 25 * rnd.nextInt(8);
+         }
+      }
+      for (String dessert : DESSERTS) {
+         itemNames[n] = dessert;
+         itemCents[n++] = 299 + 25 * rnd.nextInt(12);
+      }
+      // shuffle so the most popular items are spread over every type
+      for (int i = count - 1; i > 0; i--) {
+         int j = rnd.nextInt(i + 1);
+         String name = itemNames[i]; itemNames[i] = itemNames[j]; itemNames[j] = name;
+         int cents = itemCents[i]; itemCents[i] = itemCents[j]; itemCents[j] = cents;
+      }
+
+      itemCdf = zipf(count, 1.0);
+      userCdf = zipf(users, 0.9);
+      hourCdf = cdf(HOURS);
+      double[] days = new double[DAYS];
+      dayStrings = new String[DAYS];
+      for (int d = 0; d < DAYS; d++) {
+         LocalDate date = end.minusDays(DAYS - d);
+         // business grows over the year
+         days[d] = WEEKDAYS[date.getDayOfWeek().getValue() - 1] * (0.7 + 0.6 * d / DAYS);
+         dayStrings[d] = date.toString();
+      }
+      dayCdf = cdf(days);
+   }
+
+   void writeItems(File file) throws IOException {
+      SplittableRandom rnd = new SplittableRandom(seed + 1);
+      StringBuilder sb = new StringBuilder("itemName,ingredients,typeOfItem,price,description\n");
+      for (int i = 0; i < itemNames.length; i++) {
+         String name = itemNames[i];
+         String type = name.endsWith("Pizza") || name.endsWith("Calzone") || name.endsWith("Flatbread")
+            || name.endsWith("Dish") || name.endsWith("Crust") ? "entree"
+            : contains(DRINKS, name) ? "drinks" : contains(SIDES, name) ? "sides" : "dessert";
+         StringBuilder ingredients = new StringBuilder();
+         int k = 2 + rnd.nextInt(5);
+         for (int j = 0; j < k; j++) {
+            String ingredient = INGREDIENTS[rnd.nextInt(INGREDIENTS.length)];
+            if (ingredients.indexOf(ingredient) >= 0) continue;
+            if (ingredients.length() > 0) ingredients.append(", ");
+            ingredients.append(ingredient);
+         }
+         sb.append(name).append(',').append(quote(ingredients.toString())).append(',').append(type).append(',');
+         cents(sb, itemCents[i]).append(',').append(quote("Our " + name.toLowerCase())).append('\n');
+      }
+      write(file, sb);
+   }
+
+   void writeStores(File file) throws IOException {
+      SplittableRandom rnd = new SplittableRandom(seed + 2);
+      StringBuilder sb = new StringBuilder("storeID,address,city,state,isOpen,reviewScore\n");
+      for (int s = 1; s <= stores; s++) {
+         int city = rnd.nextInt(CITIES.length);
+         sb.append(s).append(',').append(100 + rnd.nextInt(9900)).append(' ').append(STREETS[rnd.nextInt(STREETS.length)])
+           .append(',').append(CITIES[city]).append(',').append(STATES[city]).append(',')
+           .append(rnd.nextInt(10) == 0 ? "no" : "yes").append(',')
+           .append(String.format(Locale.ROOT, "%.1f", 2.5 + rnd.nextDouble() * 2.5)).append('\n');
+      }
+      write(file, sb);
+   }
+
+   void writeUsers(long from, long to, SplittableRandom rnd, StringBuilder sb) {
+      for (long u = from; u < to; u++) {
+         int roll = rnd.nextInt(1000);
+         String role = roll == 0 ? "manager" : roll < 15 ? "driver" : "customer";
+         sb.append(login(u)).append(",pw").append(Long.toHexString(rnd.nextLong() & 0xFFFFFFFFL)).append(',')
+           .append(role).append(',');
+         if (rnd.nextInt(3) > 0) sb.append(quote(itemNames[sample(itemCdf, rnd)]));
+         sb.append(',').append(String.format(Locale.ROOT, "(%03d) %03d-%04d", 200 + rnd.nextInt(800), rnd.nextInt(1000), rnd.nextInt(10000)))
+           .append('\n');
+      }
+   }
+
+   void writeOrders(long from, long to, SplittableRandom rnd, StringBuilder orderOut, StringBuilder lineOut) {
+      int[] lineItems = new int[10];
+      for (long o = from; o < to; o++) {
+         long orderID = o + 1;
+         // a few heavy customers place most orders, and usually at their home store
+         int user = sample(userCdf, rnd);
+         int store = rnd.nextInt(5) == 0 ? 1 + rnd.nextInt(stores) : 1 + (int) ((user * 2654435761L) % stores);
+         int day = sample(dayCdf, rnd);
+         int hour = sample(hourCdf, rnd);
+         int minute = rnd.nextInt(60);
+         int second = rnd.nextInt(60);
+
+         int lines = 1;
+         while (lines < lineItems.length && rnd.nextDouble() < 0.6) lines++;
+         int count = 0;
+         long total = 0;
+         for (int l = 0; l < lines; l++) {
+            int item = sample(itemCdf, rnd);
+            boolean duplicate = false;
+            for (int j = 0; j < count; j++) duplicate |= lineItems[j] == item;
+            if (duplicate) continue;
+            lineItems[count++] = item;
+            int roll = rnd.nextInt(10);
+            int quantity = roll < 7 ? 1 : roll < 9 ? 2 : 3 + rnd.nextInt(3);
+            total += (long) itemCents[item] * quantity;
+            lineOut.append(orderID).append(',').append(itemNames[item]).append(',').append(quantity).append('\n');
+         }
+
+         // everything before the last day is finished; the last day is still in flight
+         String status;
+         if (day < DAYS - 1) status = rnd.nextInt(20) == 0 ? "cancelled" : "delivered";
+         else status = new String[] {"placed", "preparing", "out-for-delivery", "delivered"}[rnd.nextInt(4)];
+
+         orderOut.append(orderID).append(',').append(login(user)).append(',').append(store).append(',');
+         cents(orderOut, total).append(',').append(dayStrings[day]).append(' ');
+         two(orderOut, hour).append(':');
+         two(orderOut, minute).append(':');
+         two(orderOut, second).append(',').append(status).append('\n');
+      }
+   }
+
+   interface ChunkWriter {
+      void write(int chunk, long from, long to, SplittableRandom rnd, StringBuilder[] out);
+   }
+
+   /*
+    * Generates rows [0, total) in chunks on the pool and writes each chunk's
+    * output to the files in chunk order, with a bounded number of chunks in
+    * memory at once.
+    */
+   void writeChunks(ExecutorService pool, final long total, File[] files, String[] headers, final ChunkWriter writer)
+         throws Exception {
+      OutputStream[] outs = new OutputStream[files.length];
+      for (int i = 0; i < files.length; i++) {
+         outs[i] = new BufferedOutputStream(new FileOutputStream(files[i]), 1 << 20);
+         outs[i].write((headers[i] + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+      try {
+         Deque<Future<byte[][]>> pending = new ArrayDeque<Future<byte[][]>>();
+         int chunks = (int) ((total + CHUNK - 1) / CHUNK);
+         for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+            final int outputs = files.length;
+            pending.add(pool.submit(new Callable<byte[][]>() {
+               public byte[][] call() {
+                  StringBuilder[] out = new StringBuilder[outputs];
+                  for (int i = 0; i < outputs; i++) out[i] = new StringBuilder(CHUNK * 64);
+                  long from = (long) chunk * CHUNK;
+                  SplittableRandom rnd = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + chunk + 3 * total);
+                  writer.write(chunk, from, Math.min(total, from + CHUNK), rnd, out);
+                  byte[][] bytes = new byte[outputs][];
+                  for (int i = 0; i < outputs; i++) bytes[i] = out[i].toString().getBytes(StandardCharsets.UTF_8);
+                  return bytes;
+               }
+            }));
+            if (pending.size() >= 2 * threads) drain(pending.poll(), outs);
+         }
+         while (!pending.isEmpty()) drain(pending.poll(), outs);
+      }
+      finally {
+         for (OutputStream out : outs) out.close();
+      }
+   }
+
+   static void drain(Future<byte[][]> future, OutputStream[] outs) throws Exception {
+      byte[][] bytes = future.get();
+      for (int i = 0; i < outs.length; i++) outs[i].write(bytes[i]);
+   }
+
+   // cumulative distribution of a Zipf law with exponent s over n ranks
+   static double[] zipf(int n, double s) {
+      double[] weights = new double[n];
+      for (int i = 0; i < n; i++) weights[i] = 1.0 / Math.pow(i + 1, s);
+      return cdf(weights);
+   }
+
+   static double[] cdf(double[] weights) {
+      double[] cdf = new double[weights.length];
+      double sum = 0;
+      for (int i = 0; i < weights.length; i++) {
+         sum += weights[i];
+         cdf[i] = sum;
+      }
+      for (int i = 0; i < cdf.length; i++) cdf[i] /= sum;
+      return cdf;
+   }
+
+   static int sample(double[] cdf, SplittableRandom rnd) {
+      int i = Arrays.binarySearch(cdf, rnd.nextDouble());
+      return Math.min(cdf.length - 1, i < 0 ? -i - 1 : i);
+   }
+
+   static String login(long user) {
+      return "user" + user;
+   }
+
+   static StringBuilder cents(StringBuilder sb, long cents) {
+      sb.append(cents / 100).append('.');
+      return two(sb, (int) (cents % 100));
+   }
+
+   static StringBuilder two(StringBuilder sb, int value) {
+      if (value < 10) sb.append('0');
+      return sb.append(value);
+   }
+
+   static String quote(String value) {
+      return '"' + value.replace("\"", "\"\"") + '"';
+   }
+
+   static boolean contains(String[] names, String itemName) {
+      for (String name : names) {
+         if (itemName.endsWith(name)) return true;
+      }
+      return false;
+   }
+
+   static void write(File file, StringBuilder sb) throws IOException {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+      try {
+         out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+      }
+      finally {
+         out.close();
+      }
+   }
+}//end DataGenerator
@@ -1,1162 +1,6228 @@
-/*
- * Template JAVA User Interface
- * =============================
- *
- * Database Management Systems
- * Department of Computer Science &amp; Engineering
- * University of California - Riverside
- *
- * Target DBMS: 'Postgres'
- *
- */
-
-
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
-import java.io.File;
-import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.List;
-import java.util.ArrayList;
-import java.lang.Math;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-
-/**
- * This class defines a simple embedded SQL utility class that is designed to
- * work with PostgreSQL JDBC drivers.
- *
- */
-public class PizzaStore {
-
-   // reference to physical database connection.
-   private Connection _connection = null;
-
-   // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
-
-   /**
-    * Creates a new instance of PizzaStore
-    *
-    * @param hostname the MySQL or PostgreSQL server hostname
-    * @param database the name of the database
-    * @param username the user name used to login to the database
-    * @param password the user login password
-    * @throws java.sql.SQLException when failed to make a connection.
-    */
-   public PizzaStore(String dbname, String dbport, String user, String passwd) throws SQLException {
-
-      System.out.print("Connecting to database...");
-      try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
-
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
-      }catch (Exception e){
-         System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
-         System.out.println("Make sure you started postgres on this machine");
-         System.exit(-1);
-      }//end catch
-   }//end PizzaStore
-
-   /**
-    * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
-    *
-    * @param sql the input SQL string
-    * @throws java.sql.SQLException when update failed
-    */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
-
-   /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and outputs the results to
-    * standard out.
-    *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
-    */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close();
-      return rowCount;
-   }//end executeQuery
-
-   /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
-    *
-    * @param query the input query string
-    * @return the query result as a list of records
-    * @throws java.sql.SQLException when failed to execute the query
-    */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
-   }//end executeQueryAndReturnResult
-
-   /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
-    *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
-    */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
-
-   /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
-    *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
-    */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
-   }
-
-   /**
-    * Method to close the physical connection if it is open.
-    */
-   public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
-   }//end cleanup
-
-   /**
-    * The main execution method
-    *
-    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
-    */
-   public static void main (String[] args) {
-      if (args.length != 3) {
-         System.err.println (
-            "Usage: " +
-            "java [-classpath <classpath>] " +
-            PizzaStore.class.getName () +
-            " <dbname> <port> <user>");
-         return;
-      }//end if
-
-      Greeting();
-      PizzaStore esql = null;
-      try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the PizzaStore object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new PizzaStore (dbname, dbport, user, "");
-
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-              boolean usermenu = true;
-              
-              while(usermenu) {
-
-                  String query = String.format("SELECT role FROM Users WHERE login = '%s';", authorisedUser);
-                  List<List<String>> result = esql.executeQueryAndReturnResult(query);
-                  String role = result.get(0).get(0).trim();
-                
-
-                if (role.equals("manager")) {
-
-                  System.out.println("MAIN MENU");
-                  System.out.println("---------");
-                  System.out.println("1. View Profile");
-                  System.out.println("2. Update Profile");
-                  System.out.println("3. View Menu");
-                  System.out.println("4. Place Order"); //make sure user specifies which store
-                  System.out.println("5. View Full Order ID History");
-                  System.out.println("6. View Past 5 Order IDs");
-                  System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
-                  System.out.println("8. View Stores"); 
-
-                  //**the following functionalities should only be able to be used by drivers & managers**
-                  System.out.println("9. Update Order Status");
-
-                  //**the following functionalities should ony be able to be used by managers**
-                  System.out.println("10. Update Menu");
-                  //System.out.println("11. Update User");
-
-                  System.out.println(".........................");
-                  System.out.println("20. Log out");
-                  
-
-                  switch (readChoice()){
-                   case 1: viewProfile(esql, authorisedUser); break;
-                   case 2: updateProfile(esql, authorisedUser, role); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
-                   case 5: viewAllOrders(esql, authorisedUser, role); break;
-                   case 6: viewRecentOrders(esql, authorisedUser, role); break;
-                   case 7: viewOrderInfo(esql, authorisedUser, role); break;
-                   case 8: viewStores(esql); break;
-                   case 9: updateOrderStatus(esql); break;
-                   case 10: updateMenu(esql); break;
-                   //case 11: updateUser(esql); break;
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                  }
-                }
-
-                else if (role.equals("driver")) {
-
-                  System.out.println("MAIN MENU");
-                  System.out.println("---------");
-                  System.out.println("1. View Profile");
-                  System.out.println("2. Update Profile");
-                  System.out.println("3. View Menu");
-                  System.out.println("4. Place Order"); //make sure user specifies which store
-                  System.out.println("5. View Full Order ID History");
-                  System.out.println("6. View Past 5 Order IDs");
-                  System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
-                  System.out.println("8. View Stores"); 
-                  //**the following functionalities should only be able to be used by drivers & managers**
-                  System.out.println("9. Update Order Status");
-
-                  //System.out.println("11. Update User");
-
-                  System.out.println(".........................");
-                  System.out.println("20. Log out");
-                 
-                  //dont include updateMenu
-
-                  switch (readChoice()){
-                   case 1: viewProfile(esql, authorisedUser); break;
-                   case 2: updateProfile(esql, authorisedUser, role); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
-                   case 5: viewAllOrders(esql, authorisedUser, role); break;
-                   case 6: viewRecentOrders(esql, authorisedUser, role); break;
-                   case 7: viewOrderInfo(esql, authorisedUser, role); break;
-                   case 8: viewStores(esql); break;
-                   case 9: updateOrderStatus(esql); break;
-                   //case 11: updateUser(esql); break;
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                  }
-                }
-
-                else if (role.equals("customer")) {
-
-                  System.out.println("MAIN MENU");
-                  System.out.println("---------");
-                  System.out.println("1. View Profile");
-                  System.out.println("2. Update Profile");
-                  System.out.println("3. View Menu");
-                  System.out.println("4. Place Order"); //make sure user specifies which store
-                  System.out.println("5. View Full Order ID History");
-                  System.out.println("6. View Past 5 Order IDs");
-                  System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
-                  System.out.println("8. View Stores"); 
-                  //System.out.println("11. Update User");
-
-                  System.out.println(".........................");
-                  System.out.println("20. Log out");
-              
-                     //dont include updateOrderStatus
-                     //dont include updateMenu
-                     switch (readChoice()){
-                   case 1: viewProfile(esql, authorisedUser); break;
-                   case 2: updateProfile(esql, authorisedUser, role); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
-                   case 5: viewAllOrders(esql, authorisedUser, role); break;
-                   case 6: viewRecentOrders(esql, authorisedUser, role); break;
-                   case 7: viewOrderInfo(esql, authorisedUser, role); break;
-                   case 8: viewStores(esql); break;
-                   //case 11: updateUser(esql); break;
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                  }
-                }  
-              }
-            }
-         }//end while
-      }catch(Exception e) {
-         System.err.println (e.getMessage ());
-      }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
-      }//end try
-   }//end main
-
-   public static void Greeting(){
-      System.out.println(
-         "\n\n*******************************************************\n" +
-         "              User Interface      	               \n" +
-         "*******************************************************\n");
-   }//end Greeting
-
-   /*
-    * Reads the users choice given from the keyboard
-    * @int
-    **/
-   public static int readChoice() {
-      int input;
-      // returns only if a correct value is given.
-      do {
-         System.out.print("Please make your choice: ");
-         try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
-            break;
-         }catch (Exception e) {
-            System.out.println("Your input is invalid!");
-            continue;
-         }//end try
-      }while (true);
-      return input;
-   }//end readChoice
-
-   /*
-    * Creates a new user. when a new user comes to the system, he/she can setup a new
-account through your interface, by providing necessary information. The user will
-automatically be a customer. Their favorite item will be empty.
-    **/
-   public static void CreateUser(PizzaStore esql){
-
-      try {
-        System.out.print("Enter login: ");
-        String login = in.readLine();
-
-        System.out.print("Enter password: ");
-        String password = in.readLine();
-
-        String role = "customer";
-
-        String favoriteItems = null;
-
-        System.out.print("Enter phone number: ");
-        String phoneNum = in.readLine();
-
-        String query = String.format(
-            "INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES ('%s', '%s', '%s', '%s', '%s');",
-            login, password, role, favoriteItems, phoneNum
-        );
-
-        esql.executeUpdate(query);
-        System.out.println("User successfully created!");
-
-      } 
-      catch (Exception e) {
-        System.err.println("Error creating user: " + e.getMessage());
-      }
-   }//end CreateUser
-
-
-
-
-
-   /*
-    * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist.
-    *
-    * user can use his/her login and password to login into the system.
-Once he/she logs in, a session will be maintained for him/her until logout (an example
-has been provided in the Java source code).
-    **/
-     
-
-   public static String LogIn(PizzaStore esql) {
-       try {
-         System.out.print("Enter login: ");
-         String login = in.readLine();
-
-         System.out.print("Enter password: ");
-         String password = in.readLine();
-
-         // Query to check if the user exists with the given credentials
-         String query = String.format(
-            "SELECT Users.* FROM Users WHERE login = '%s' AND password = '%s';",
-            login, password
-         );
-
-         // Execute the query and check if a result is returned
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-
-         if (result.isEmpty()) {
-            System.out.println("Login failed: Invalid username or password.");
-            return null;
-         } 
-	      else {
-            System.out.println("Login successful! Welcome, " + login);
-            return login; // Return the username if login is successful
-         }
-      } 
-      catch (Exception e) {
-        System.err.println("Error during login: " + e.getMessage());
-        return null;
-      }
-   }
- 
-
-// Rest of the functions definition go in here
-
-
-  /*
-   Profile: Users should be able to view and update their favoriteItem. Users should also be
-   able to view their phoneNum. Users should be able to change their password &
-   phoneNum. Only managers can edit a user’s login and role.
-   */
-
-   public static void viewProfile(PizzaStore esql, String login) {
-
-      try {
-         System.out.print("YOUR PROFILE\n");
-         String query = String.format("SELECT favoriteItems, phoneNum FROM Users WHERE login = '%s';", login);
-         esql.executeQueryAndPrintResult(query);
-      } 
-      catch (Exception e) {
-         System.err.println("Error retrieving profile: " + e.getMessage());
-      }
-
-
-   }
-
-   public static void updateProfile(PizzaStore esql, String login, String role) {
-      
-      try {
-
-         String newFavoriteItems;
-         String newPhoneNumber;
-         String newPassword;
-         String newLogin;
-         String newRole;
-         String updateQuery;
-
-         role = role.trim();
-         if (!role.equals("manager"))
-         {
-            System.out.println("Which part of your profile would you like to update?");
-            System.out.println("1. Favorite Items");
-            System.out.println("2. Phone Number");
-            System.out.println("3. Password");
-            System.out.print("Enter your choice: ");
-            int input = Integer.parseInt(in.readLine());
-
-            switch (input) {
-               case 1:
-                  System.out.print("Enter new favorite items: ");
-                  newFavoriteItems = in.readLine();
-                  updateQuery = String.format("UPDATE Users SET favoriteItems = '%s' WHERE login = '%s';", newFavoriteItems, login);
-                  esql.executeUpdate(updateQuery);
-                  System.out.println("Profile updated successfully!");
-                  break;
-               case 2:
-                  System.out.print("Enter new phone number: ");
-                  newPhoneNumber = in.readLine();
-                  updateQuery = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s';", newPhoneNumber, login);
-                  esql.executeUpdate(updateQuery);
-                  System.out.println("Profile updated successfully!");
-                  break;
-               case 3:
-                  System.out.print("Enter new password: ");
-                  newPassword = in.readLine();
-                  updateQuery = String.format("UPDATE Users SET password = '%s' WHERE login = '%s';", newPassword, login);
-                  esql.executeUpdate(updateQuery);
-                  System.out.println("Profile updated successfully!");
-                  break;
-               default:
-                  System.out.println("Invalid choice.");
-                  return;
-            }
-         }
-
-         else
-         {
-            System.out.println("Enter the login of the profile you would like to update: ");
-            String update_login = in.readLine();
-            String existsQuery = String.format("SELECT * FROM Users WHERE login = '%s';", update_login);
-            int count = esql.executeQuery(existsQuery);
-            if (count == 0) {
-               System.out.println("Login not found! Returning to menu.");
-               return;
-            }
-
-            System.out.println("Which part of the profile would you like to update?");
-            System.out.println("1. Favorite Items");
-            System.out.println("2. Phone Number");
-            System.out.println("3. Password");
-            System.out.println("4. Login");
-            System.out.println("5. Role");
-            System.out.print("Enter your choice: ");
-
-            int input = Integer.parseInt(in.readLine());
-
-            switch (input) {
-               case 1:
-                  System.out.print("Enter new favorite items: ");
-                  newFavoriteItems = in.readLine();
-                  updateQuery = String.format("UPDATE Users SET favoriteItems = '%s' WHERE login = '%s';", newFavoriteItems, login);
-                  esql.executeUpdate(updateQuery);
-                  System.out.println("Profile updated successfully!");
-                  break;
-               case 2:
-                  System.out.print("Enter new phone number: ");
-                  newPhoneNumber = in.readLine();
-                  updateQuery = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s';", newPhoneNumber, login);
-                  esql.executeUpdate(updateQuery);
-                  System.out.println("Profile updated successfully!");
-                  break;
-               case 3:
-                  System.out.print("Enter new password: ");
-                  newPassword = in.readLine();
-                  updateQuery = String.format("UPDATE Users SET password = '%s' WHERE login = '%s';", newPassword, login);
-                  esql.executeUpdate(updateQuery);
-                  System.out.println("Profile updated successfully!");
-                  break;
-
-               case 4:
-                  System.out.print("Enter new login: ");
-                  newLogin = in.readLine();
-                  updateQuery = String.format("UPDATE Users SET login = '%s' WHERE login = '%s';", newLogin, update_login);
-                  esql.executeUpdate(updateQuery);
-                  System.out.println("Profile updated successfully!");
-                  break;
-               case 5:
-                  String checkQuery = String.format("SELECT * FROM Users WHERE login = '%s' AND role = 'manager';", update_login);
-                  int count2 = esql.executeQuery(checkQuery);
-                  if (count2 != 0) {
-                     System.out.println("Update denied. Cannot demote managers!");
-                     return;
-                  }
-                  System.out.print("Enter new role: ");
-                  newRole = in.readLine();
-
-                  if (!(newRole.equals("manager") || newRole.equals("driver") || newRole.equals("customer"))) {
-                     System.out.println("Not a valid role. Returning to menu.");
-                     return;
-                  }
-                  updateQuery = String.format("UPDATE Users SET role = '%s' WHERE login = '%s';", newRole, update_login);
-                  esql.executeUpdate(updateQuery);
-                  System.out.println("Profile updated successfully!");
-                  break;
-                  
-               default:
-                  System.out.println("Invalid choice.");
-                  return;
-            }
-         }
-            
-      } 
-      catch (Exception e) {
-         System.err.println("Error updating profile: " + e.getMessage());
-      }
-   }
-
-  /* 
-   Browse Menu: allows the user to view all the items on the menu. User should be able to
-   filter their search based on type and price (they can search for food items under a certain
-   type (such as “drinks” or “sides”), or search for food items under a certain price). User
-   should also be able to sort the menu based on price from highest to lowest price and
-   from lowest to highest price.
-   */
-
-   public static void viewMenu(PizzaStore esql) {
-      try {
-         System.out.print("BROWSE MENU\n");
-	 System.out.print("-----------\n");
-	 System.out.print("1. View All Items\n");
-	 System.out.print("2. Filter Based On Type\n");
-	 System.out.print("3. Filter Based On Price\n");
-	 System.out.print("4. View All Items Sorted From Highest To Lowest Price\n");
-	 System.out.print("5. View All Items Sorted From Lowest To Highest Price\n");
-	 System.out.print(".....................................................\n");
-	 System.out.print("6. Go Back\n");
-	 System.out.print("Please make your choice: ");
-
-	 int input = Integer.parseInt(in.readLine());
-	 String query;
-	 int rowCount;
-	 switch(input) {
-
-	    case 1:
-	       query = "SELECT * FROM ITEMS;";
-               rowCount = esql.executeQueryAndPrintResult(query);
-               System.out.println("Total items found: " + rowCount);
-	       break;
-
-	    case 2:
-	       System.out.print("Enter Type\n");
-	       String typeOfItem = in.readLine();
-	       query = String.format("SELECT * FROM ITEMS WHERE typeOfItem = '%s';", typeOfItem);
-	       rowCount = esql.executeQueryAndPrintResult(query);
-               System.out.println("Total items found: " + rowCount);
-               break;
-
-	    case 3:
-	       System.out.print("Enter Price\n");
-               double price = Double.parseDouble(in.readLine());
-               query = String.format("SELECT * FROM ITEMS WHERE price = %.2f;", price);
-               rowCount = esql.executeQueryAndPrintResult(query);
-               System.out.println("Total items found: " + rowCount);
-               break;
-
-	    case 4:
-	       query = "SELECT * FROM ITEMS ORDER BY price DESC;";
-	       rowCount = esql.executeQueryAndPrintResult(query);
-               System.out.println("Total items found: " + rowCount);
-               break;
-
-	    case 5:
-	       query = "SELECT * FROM ITEMS ORDER BY price ASC;";
-               rowCount = esql.executeQueryAndPrintResult(query);
-               System.out.println("Total items found: " + rowCount);
-               break;
-
-	    case 6: break;
-
-	    default : System.out.println("Unrecognized choice!"); break;
-	 }
-
-
-      }
-
-      catch (Exception e) {
-        System.err.println("Error creating user: " + e.getMessage());
-      }
-   }
-
-
-  /*
-   Place Order: user can order any item from the menu. User should first be asked which
-   store they want to order from. User will be asked to input every itemName and quantity
-   (the amount of each item they want) for each item they want to order. The total price of
-   their order should be returned and output to the user. After placing the order, the order
-   information needs to be inserted in the FoodOrder table with a unique orderID (and
-   make sure you include the store they ordered at). Each itemName, orderID, and the
-   corresponding quantity should be inserted into the ItemsInOrder table for every item in
-   the order.
-   */
-
-
-   public static void placeOrder(PizzaStore esql, String login) {
-      try {
-         System.out.print("Enter Store ID: ");
-         int storeID = Integer.parseInt(in.readLine());
-      
-         String storeQuery = String.format("SELECT * FROM Store WHERE storeID = %d;", storeID);
-         if (esql.executeQuery(storeQuery) == 0) {
-               System.out.println("Store ID does not exist! Returning to menu.");
-               return;
-         }
-
-         List<String> itemNames = new ArrayList<>();
-         List<Integer> quantities = new ArrayList<>();
-         double totalPrice = 0.0;
-         
-         while (true) {
-               System.out.print("Enter Item Name (or type '0' to finish): ");
-               String itemName = in.readLine();
-               if (itemName.equals("0")) {
-                  break;
-               }
-
-               String itemQuery = String.format("SELECT price FROM Items WHERE itemName = '%s';", itemName);
-               List<List<String>> result = esql.executeQueryAndReturnResult(itemQuery);
-               if (result.isEmpty()) {
-                  System.out.println("Item does not exist! Try again.");
-                  continue;
-               }
-
-               System.out.print("Enter Quantity: ");
-               int quantity = Integer.parseInt(in.readLine());
-               while (quantity <= 0) {
-                  System.out.println("Invalid quantity entered. Try again!");
-                  quantity = Integer.parseInt(in.readLine());
-               }
-
-               double price = Double.parseDouble(result.get(0).get(0));
-               totalPrice += price * quantity;
-               itemNames.add(itemName);
-               quantities.add(quantity);
-         }
-
-         if (itemNames.isEmpty()) {
-               System.out.println("No items selected. Order canceled.");
-               return;
-         }
-
-         LocalDateTime now = LocalDateTime.now();
-         String orderTimestamp = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-
-         String orderStatus = "incomplete";
-
-
-         int orderID = 1 + Integer.parseInt(esql.executeQueryAndReturnResult("SELECT MAX(orderID) FROM FoodOrder").get(0).get(0));
-
-
-         String orderQuery = String.format("INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) VALUES (%d, '%s', %d, %.2f, '%s', '%s');", orderID, login, storeID, totalPrice, orderTimestamp, orderStatus);
-         esql.executeUpdate(orderQuery);
-
-         // Insert each item into ItemsInOrder table
-         for (int i = 0; i < itemNames.size(); i++) {
-               String insertItemQuery = String.format(
-                  "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (%d, '%s', %d);",
-                  orderID, itemNames.get(i), quantities.get(i));
-               esql.executeUpdate(insertItemQuery);
-         }
-
-         System.out.println("Order placed successfully! Total Price: $" + totalPrice);
-
-      } 
-      catch (Exception e) {
-         System.err.println("Error placing order: " + e.getMessage());
-      }
-   }
-
-
-
-
-   /*
-   See OrderID History: Customers will be able to see their order history. They should
-   be able to see a list of all their past orderIDs. A customer is not allowed to see the
-   order history of other customers. Managers & Drivers are allowed to see all
-   orders from anyone.
-   */
-
-   
-   public static void viewAllOrders(PizzaStore esql, String login, String role) {
-    try {
-        String query;
-        
-        if (role.equals("customer")) {
-            query = String.format("SELECT * FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC;", login);
-        } 
-        else {
-            System.out.println("Enter login of user who's order history you want to see: ");
-            String update_login = in.readLine();
-            query = String.format("SELECT * FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC;", update_login);
-        }
-
-        int rowCount = esql.executeQueryAndPrintResult(query);
-        if (rowCount == 0) {
-            System.out.println("No orders found.");
-        }
-        
-
-    } catch (Exception e) {
-        System.err.println("Error retrieving order history: " + e.getMessage());
-    }
-}
-
-   /*
-   See Recent 5 OrderIDs: Similar to the last section, customers can see their order
-   history, but limit the output to the 5 most recent orders.
-   */
-
-   public static void viewRecentOrders(PizzaStore esql, String login, String role) {
-
-      try {
-         String query;
-        
-         if (role.equals("customer")) {
-            query = String.format("SELECT * FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5;", login);
-         } 
-         else {
-            System.out.println("Enter login of user who's order history you want to see: ");
-            String update_login = in.readLine();
-            query = String.format("SELECT * FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5;", update_login);
-         }
-
-         int rowCount = esql.executeQueryAndPrintResult(query);
-         if (rowCount == 0) {
-            System.out.println("No orders found.");
-         }
-        
-
-    } 
-    catch (Exception e) {
-        System.err.println("Error retrieving order history: " + e.getMessage());
-    }
-   }
-
-
-   /*
-   Lookup Specific Order: Customers will be able to view details about a specific order.
-   They should be able to see their orderTimestamp, totalPrice, orderStatus, and list of
-   items in that order (along with the quantity). A customer is not allowed to see the
-   order information of orders that belong to other customers. Managers & Drivers
-   are allowed to see all orders from anyone.
-   */
-
-   public static void viewOrderInfo(PizzaStore esql, String login, String role) {
-      try {
-         String existsQuery = "";
-         role = role.trim();
-         int orderID;
-         int count;
-         if (role.equals("customer")) {
-
-            System.out.print("Enter Order ID: ");
-            orderID = Integer.parseInt(in.readLine());
-            existsQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = %d AND login = '%s';", orderID, login);
-            count = esql.executeQuery(existsQuery);
-
-            if (count == 0) {
-               System.out.println("Order ID not found! Returning to menu.");
-               return;
-            }
-
-            esql.executeQueryAndPrintResult(existsQuery);
-
-
-            existsQuery = String.format("SELECT * FROM itemsinorder WHERE orderID = %d;", orderID);
-            esql.executeQueryAndPrintResult(existsQuery);
-         }
-
-         else {
-
-            System.out.println("Enter the login of the person who's food order you want to see: ");
-            String update_login = in.readLine();
-            existsQuery = String.format("SELECT * FROM FoodOrder WHERE login = '%s';", update_login);
-            count = esql.executeQuery(existsQuery);
-
-            if (count == 0) {
-               System.out.println("Orders under specified login not found! Returning to menu.");
-               return;
-            }
-
-
-            System.out.println("Enter Order ID: ");
-            orderID = Integer.parseInt(in.readLine());
-            existsQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = %d AND login = '%s';", orderID, update_login);
-            count = esql.executeQuery(existsQuery);
-
-            if (count == 0) {
-               System.out.println("Order ID not found! Returning to menu.");
-               return;
-            }
-
-            esql.executeQueryAndPrintResult(existsQuery);
-
-            existsQuery = String.format("SELECT * FROM itemsinorder WHERE orderID = %d;", orderID);
-            esql.executeQueryAndPrintResult(existsQuery);
-
-
-
-
-         }
-
-      }
-
-      catch (Exception e) {
-        System.err.println("Error looking up order: " + e.getMessage());
-      }
-   }
-
-   /*
-   View Stores: Customers should be able to view the list of all stores. They should see all
-   information about the location of the store, the storeID, the review score, and whether or
-   not it is open.
-   */
-
-   public static void viewStores(PizzaStore esql) {
-
-      try {
-         String query = "SELECT * FROM Store;";
-         esql.executeQueryAndPrintResult(query);
-      }
-
-      catch (Exception e) {
-        System.err.println("Error viewing stores: " + e.getMessage());
-      }
-   }
-   
-   /*
-   Drivers: Drivers should be able to update the order status field of any given order.
-   Managers should be able to do this as well.
-   */
-
-   public static void updateOrderStatus(PizzaStore esql) {
-
-      try {
-         System.out.println("Enter Order ID: ");
-         int orderID = Integer.parseInt(in.readLine());
-         String existsQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = %d;", orderID);
-         int count = esql.executeQuery(existsQuery);
-         if (count == 0) {
-            System.out.println("OrderID not found! Returning to menu.");
-            return;
-         }
-
-
-         System.out.println("Enter New Order Status: ");
-         String newStatus = in.readLine();
-         String updateQuery = String.format("UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = %d;", newStatus, orderID);
-         esql.executeQuery(updateQuery);
-         System.out.println("Status Updated Successfully!");
-
-
-      }
-
-      catch (Exception e) {
-        System.err.println("Error viewing stores: " + e.getMessage());
-      }
-
-   }
-
-   /*
-    Update Food Item Information: For Managers, they can update the information of any
-    item in the menu given the itemName. They should also be able to add new items.
-    */
-
-   public static void updateMenu(PizzaStore esql) {
-      try {
-         System.out.print("UPDATE FOOD ITEM INFORMATION\n");
-         System.out.print("----------------------------\n");
-	      System.out.print("1. Update item\n");
-	      System.out.print("2. Add new item\n");
-         System.out.print(".....................................................\n");
-         System.out.print("3. Go Back\n");
-         System.out.print("Please make your choice: ");
-
-	 int input = Integer.parseInt(in.readLine());
-	 String itemName;
-	 String existsQuery;
-	 switch(input) {
-	   case 1:
-	      System.out.print("Enter the name of the item to update: ");
-            itemName = in.readLine();
-
-               existsQuery = String.format("SELECT * FROM Items WHERE itemName = '%s';", itemName);
-               int count = esql.executeQuery(existsQuery);
-
-               if (count == 0) {
-                  System.out.println("Item not found! Returning to menu.");
-                  return;
-               }
-
-               System.out.println("What would you like to update?");
-               System.out.println("1. Price");
-               System.out.println("2. Type");
-               System.out.println("3. Description");
-	       System.out.println("4. Ingredients");
-	       System.out.println("5. Name");
-               System.out.print("Enter choice: ");
-               int option = Integer.parseInt(in.readLine());
-
-               String updateQuery = "";
-               switch (option) {
-                  case 1:
-                     System.out.print("Enter new price: ");
-                     double newPrice = Double.parseDouble(in.readLine());
-                     updateQuery = String.format("UPDATE Items SET price = %.2f WHERE itemName = '%s';", newPrice, itemName);
-                     break;
-                  case 2:
-                     System.out.print("Enter new type: ");
-                     String newType = in.readLine();
-                     updateQuery = String.format("UPDATE Items SET type = '%s' WHERE itemName = '%s';", newType, itemName);
-                     break;
-                  case 3:
-                     System.out.print("Enter new description: ");
-                     String newDesc = in.readLine();
-                     updateQuery = String.format("UPDATE Items SET description = '%s' WHERE itemName = '%s';", newDesc, itemName);
-                     break;
-
-                  case 4:
-                     System.out.print("Enter new ingredients: ");
-                     String newIngredients = in.readLine();
-                     updateQuery = String.format("UPDATE Items SET ingredients = '%s' WHERE itemName = '%s';", newIngredients, itemName);
-                     break;
-
-                  case 5:
-                     System.out.print("Enter new name: ");
-                     String newName = in.readLine();
-                     String checkQuery = String.format("SELECT * FROM Items WHERE itemName = '%s';", newName);
-                     if (esql.executeQuery(checkQuery) > 0) {
-                        System.out.println("Item name already taken! Returning to menu.");
-                        break;
-                     }
-		               updateQuery = String.format("UPDATE Items SET itemName = '%s' WHERE itemName = '%s';", newName, itemName);
-                     break;
-
-                  default:
-                     System.out.println("Invalid choice! Returning to menu.");
-                     break;
-               }
-               esql.executeUpdate(updateQuery);
-               System.out.println("Item updated successfully!");
-	            break;
-
-	     case 2:
-	        System.out.print("Enter Item Name\n");
-	        itemName = in.readLine();
-	        existsQuery = String.format("SELECT * FROM Items WHERE itemName = '%s';", itemName);
-
-	       if (esql.executeQuery(existsQuery) > 0) {
-	          System.out.print("Item already exists!\n");
-		  break;
-	       }
-
-	       System.out.print("Enter Ingredients\n");
-               String ingredients = in.readLine();
-
-	       System.out.print("Enter Type Of Item\n");
-               String typeOfItem = in.readLine();
-
-	       System.out.print("Enter Price\n");
-	       double price = Double.parseDouble(in.readLine());
-
-	       System.out.print("Enter Description\n");
-               String description = in.readLine();
-
-
-	       String insertQuery = String.format("INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ('%s', '%s', '%s', %.2f, '%s');", itemName, ingredients, typeOfItem, price, description);
-
-               esql.executeUpdate(insertQuery);
-               System.out.println("New item added successfully!");
-	       break;
-
-	    default:
-	       break;
-	 }
-      }
-
-      catch (Exception e) {
-        System.err.println("Error creating user: " + e.getMessage());
-      }
-   }
-
-   /*
-   Managers: Managers will be able view and update the information of all users (as well
-   as change their role) and update menu information.
-   */
-
-  //We didn't really need this function since other functions like update profile and update menu do its job.
-
-   // public static void updateUser(PizzaStore esql) {
-   // }
-
-
-}//end PizzaStore
-
-
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.PreparedStatement;
+import java.sql.CallableStatement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.lang.reflect.Method;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.io.File;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.lang.Math;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * This class defines a simple embedded SQL utility class that is designed to
+ * work with PostgreSQL JDBC drivers.
+ *
+ */
+public class PizzaStore {
+
+   // reference to physical database connection.
+   private Connection _connection = null;
+
+   // connection parameters, kept so background workers can open their own
+   // connections instead of sharing the interactive one.
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // when the program started, for reporting how long it takes to serve requests
+   static final long START_NANOS = System.nanoTime();
+
+   // cached menu, stores and user roles, served from the snapshot file at startup
+   private Catalog _catalog = null;
+
+   // most ordered items per store over the last hour and day
+   private final PopularityTracker _popularity = new PopularityTracker();
+
+   // promotions applied when an order is totalled
+   private final PricingEngine _pricing = new PricingEngine();
+
+   // orders waiting for a driver, per store
+   private final DispatchBoard _dispatch = new DispatchBoard();
+
+   // limits how many queries run at once, shedding low priority work under load
+   private final AdmissionController _admission = new AdmissionController();
+
+   // the databases FoodOrder and ItemsInOrder are split across, by store
+   private Shards _shards = null;
+
+   // copies Users, Items and Store from the main database to the other shards
+   private ShardReplicator _replicator = null;
+
+   // samples pg_stat_statements, table, index and lock statistics; null when disabled
+   private StatsSampler _sampler = null;
+
+   // name of the operation the current thread is running, e.g. "placeOrder"
+   private static final ThreadLocal<String> _operation = new ThreadLocal<String>();
+
+   // {time limit, System.nanoTime() it runs out} of the current operation, or null for none
+   private static final ThreadLocal<long[]> _deadline = new ThreadLocal<long[]>();
+
+   // timeouts per operation
+   private final Deadlines _deadlines = new Deadlines();
+
+   // statement_timeout last set on each connection, in ms
+   private final Map<Connection, Long> _serverTimeouts = new ConcurrentHashMap<Connection, Long>();
+
+   // true when the order tables refer to Users and Items by userID and itemID
+   // (migrate_surrogate_keys.sql) rather than by login and itemName
+   private static volatile boolean _surrogateKeys = false;
+
+   // handling the keyboard inputs through a BufferedReader
+   // This variable can be global for convenience.
+   // Each line read restarts the current operation's deadline, which is for
+   // database work and not for the user's typing.
+   static BufferedReader in = new BufferedReader(
+                                new InputStreamReader(System.in)) {
+      public String readLine() throws IOException {
+         String line = super.readLine();
+         restartDeadline();
+         return line;
+      }
+   };
+
+   /**
+    * Creates a new instance of PizzaStore
+    *
+    * @param hostname the MySQL or PostgreSQL server hostname
+    * @param database the name of the database
+    * @param username the user name used to login to the database
+    * @param password the user login password
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public PizzaStore(String dbname, String dbport, String user, String passwd) throws SQLException {
+
+      System.out.print("Connecting to database...");
+      try{
+         // constructs the connection URL
+         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         System.out.println ("Connection URL: " + url + "\n");
+
+         // obtain a physical connection
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
+         this._connection = FaultInjector.wrap(DriverManager.getConnection(url, user, passwd));
+         this._shards = new Shards(url, user, passwd, this._connection, config("shards", ""));
+         _surrogateKeys = hasSurrogateKeys(this._connection);
+         System.out.println("Done");
+      }catch (Exception e){
+         System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
+         System.out.println("Make sure you started postgres on this machine");
+         System.exit(-1);
+      }//end catch
+   }//end PizzaStore
+
+   /**
+    * Method to execute an update SQL statement.  Update SQL instructions
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    *
+    * @param sql the input SQL string
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql) throws SQLException {
+      return executeUpdate(0, sql);
+   }//end executeUpdate
+
+   /**
+    * Method to execute an update SQL statement on one shard.
+    *
+    * @param shard the shard to run it on; 0 is the main database
+    * @param sql the input SQL string
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (int shard, String sql) throws SQLException {
+      // waits for a free slot, or fails fast with BusyException when overloaded
+      AdmissionController.Permit permit = this._admission.acquire(operation());
+      SQLException failure = null;
+      Statement stmt = null;
+      try {
+         // creates a statement object, cancelled if the operation runs out of time
+         stmt = createStatement(shard);
+
+         // issues the update instruction
+         return stmt.executeUpdate (tag(sql));
+      }
+      catch (SQLException e) {
+         failure = e;
+         throw timedOut(e);
+      }
+      finally {
+         // close the instruction
+         if (stmt != null) stmt.close ();
+         permit.release(failure);
+      }
+   }//end executeUpdate
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and outputs the results to
+    * standard out.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query) throws SQLException {
+      return executeQueryAndPrintResult(0, query);
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute an input query SQL instruction on one shard and
+    * output the results to standard out.
+    *
+    * @param shard the shard to run it on; 0 is the main database
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (int shard, String query) throws SQLException {
+      // waits for a free slot, or fails fast with BusyException when overloaded
+      AdmissionController.Permit permit = this._admission.acquire(operation());
+      SQLException failure = null;
+      Statement stmt = null;
+      try {
+         // creates a statement object, cancelled if the operation runs out of time
+         stmt = createStatement(shard);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (tag(query));
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+   		 if(outputHeader){
+   			for(int i = 1; i <= numCol; i++){
+   			System.out.print(rsmd.getColumnName(i) + "\t");
+   			}
+   			System.out.println();
+   			outputHeader = false;
+   		 }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         return rowCount;
+      }
+      catch (SQLException e) {
+         failure = e;
+         throw timedOut(e);
+      }
+      finally {
+         if (stmt != null) stmt.close();
+         permit.release(failure);
+      }
+   }//end executeQuery
+
+   /**
+    * Prints records that did not come from a live query, such as rows served
+    * from the catalog, in the same format as executeQueryAndPrintResult.
+    *
+    * @param header the column names
+    * @param rows the records to print
+    * @return the number of rows printed
+    */
+   public static int printRows (String[] header, List<String[]> rows) {
+      if (!rows.isEmpty()) {
+         for (String column : header)
+            System.out.print(column + "\t");
+         System.out.println();
+      }
+      for (String[] row : rows) {
+         for (String value : row)
+            System.out.print(value + "\t");
+         System.out.println();
+      }
+      return rows.size();
+   }//end printRows
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as
+    * a list of records. Each record in turn is a list of attribute values
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      return executeQueryAndReturnResult(0, query);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction on one shard and
+    * return the results as a list of records.
+    *
+    * @param shard the shard to run it on; 0 is the main database
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (int shard, String query) throws SQLException {
+      // waits for a free slot, or fails fast with BusyException when overloaded
+      AdmissionController.Permit permit = this._admission.acquire(operation());
+      SQLException failure = null;
+      Statement stmt = null;
+      try {
+         // creates a statement object, cancelled if the operation runs out of time
+         stmt = createStatement(shard);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (tag(query));
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and saves the data returned by the query.
+         boolean outputHeader = false;
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+           List<String> record = new ArrayList<String>();
+   		for (int i=1; i<=numCol; ++i)
+   			record.add(rs.getString (i));
+           result.add(record);
+         }//end while
+         return result;
+      }
+      catch (SQLException e) {
+         failure = e;
+         throw timedOut(e);
+      }
+      finally {
+         if (stmt != null) stmt.close ();
+         permit.release(failure);
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query) throws SQLException {
+      return executeQuery(0, query);
+   }
+
+   /**
+    * Method to execute an input query SQL instruction on one shard and
+    * return the number of results
+    *
+    * @param shard the shard to run it on; 0 is the main database
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (int shard, String query) throws SQLException {
+       // waits for a free slot, or fails fast with BusyException when overloaded
+       AdmissionController.Permit permit = this._admission.acquire(operation());
+       SQLException failure = null;
+       Statement stmt = null;
+       try {
+          // creates a statement object, cancelled if the operation runs out of time
+          stmt = createStatement(shard);
+
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (tag(query));
+
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          return rowCount;
+       }
+       catch (SQLException e) {
+          failure = e;
+          throw timedOut(e);
+       }
+       finally {
+          if (stmt != null) stmt.close ();
+          permit.release(failure);
+       }
+   }
+
+   /**
+    * Method to run a query on every shard in parallel.
+    *
+    * @param query the input query string
+    * @return the query result of each shard, in shard order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<List<String>>> executeQueryOnAllShards (final String query) throws SQLException {
+      final String name = operation();
+      final long[] deadline = _deadline.get();
+      List<Future<List<List<String>>>> futures = new ArrayList<Future<List<List<String>>>>();
+      for (int s = 0; s < this._shards.count(); s++) {
+         final int shard = s;
+         futures.add(this._shards.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               continueOperation(name, deadline);
+               return executeQueryAndReturnResult(shard, query);
+            }
+         }));
+      }
+      List<List<List<String>>> results = new ArrayList<List<List<String>>>();
+      for (Future<List<List<String>>> future : futures) results.add(Shards.await(future));
+      return results;
+   }//end executeQueryOnAllShards
+
+   /**
+    * Method to run an order query on every shard in parallel and merge the
+    * results by orderTimestamp. Each shard's rows must already be sorted the
+    * same way, so the merge only compares the head row of each shard.
+    *
+    * @param query a query selecting ORDER_COLUMNS, ordered by orderTimestamp
+    * @param descending whether the query sorts newest first
+    * @param limit the most rows to return, or 0 for all of them
+    * @return the merged rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<String[]> gatherOrders (String query, final boolean descending, int limit) throws SQLException {
+      // one cursor per shard; the queue orders shards by the row each is on
+      final List<List<List<String>>> results = executeQueryOnAllShards(query);
+      final int[] cursor = new int[results.size()];
+      PriorityQueue<Integer> heads = new PriorityQueue<Integer>(results.size(), new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            // orderTimestamp is the fifth of ORDER_COLUMNS
+            int cmp = Timestamp.valueOf(results.get(a).get(cursor[a]).get(4)).compareTo(Timestamp.valueOf(results.get(b).get(cursor[b]).get(4)));
+            return descending ? -cmp : cmp;
+         }
+      });
+      for (int s = 0; s < results.size(); s++) {
+         if (!results.get(s).isEmpty()) heads.add(s);
+      }
+
+      List<String[]> merged = new ArrayList<String[]>();
+      while (!heads.isEmpty() && (limit == 0 || merged.size() < limit)) {
+         int shard = heads.poll();
+         List<String> row = results.get(shard).get(cursor[shard]++);
+         merged.add(row.toArray(new String[row.size()]));
+         if (cursor[shard] < results.get(shard).size()) heads.add(shard);
+      }
+      return merged;
+   }//end gatherOrders
+
+   /**
+    * Method to run a query about one order on the shard the order is on. The
+    * shard its orderID points to is asked first; orders that kept their ID when
+    * create_shards.sh moved them may be on any shard, so the others are asked
+    * after it.
+    *
+    * @param orderID the order
+    * @param query a query that returns rows only on the order's shard
+    * @param shard set to the shard the rows came from, or -1
+    * @return the query result, empty if no shard has the order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> findOrder (int orderID, String query, int[] shard) throws SQLException {
+      int first = this._shards.ofOrder(orderID);
+      for (int i = 0; i < this._shards.count(); i++) {
+         // first, then every other shard in turn
+         int s = i == 0 ? first : (i <= first ? i - 1 : i);
+         List<List<String>> result = executeQueryAndReturnResult(s, query);
+         if (!result.isEmpty()) {
+            shard[0] = s;
+            return result;
+         }
+      }
+      shard[0] = -1;
+      return new ArrayList<List<String>>();
+   }//end findOrder
+
+   /**
+    * Method to stream the result of a query to a CSV (with a header line) or
+    * NDJSON file. The query runs on its own connection inside a transaction
+    * so the driver fetches rows through a cursor instead of loading them all.
+    *
+    * @param query the input query string
+    * @param path the file to write
+    * @param ndjson write one JSON object per line instead of CSV
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to write the file
+    */
+   public long exportQuery (String query, String path, boolean ndjson) throws SQLException, IOException {
+      return exportQuery(new int[] {0}, query, path, ndjson);
+   }//end exportQuery
+
+   /**
+    * Method to stream the result of a query run on several shards to one file.
+    * Each shard's rows must be sorted by orderTimestamp; the file interleaves
+    * them in that order, holding only the current row of each shard.
+    *
+    * @param shards the shards to run the query on
+    * @param query the input query string
+    * @param path the file to write
+    * @param ndjson write one JSON object per line instead of CSV
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to write the file
+    */
+   public long exportQuery (int[] shards, String query, String path, boolean ndjson) throws SQLException, IOException {
+      AdmissionController.Permit permit = this._admission.acquire(operation());
+      SQLException failure = null;
+      Connection[] conns = new Connection[shards.length];
+      Writer out = null;
+      try {
+         ResultSet[] results = new ResultSet[shards.length];
+         for (int s = 0; s < shards.length; s++) {
+            conns[s] = openConnection(shards[s]);
+            Statement stmt = conns[s].createStatement();
+            applyDeadline(conns[s], stmt);
+            conns[s].setAutoCommit(false);
+            stmt.setFetchSize(config("export.fetch", 10000));
+            results[s] = stmt.executeQuery(tag(query));
+         }
+         // the time to the first rows is the query's latency; writing them out is not
+         permit.measure();
+         out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8), 1 << 20);
+         ResultSetMetaData rsmd = results[0].getMetaData();
+         int numCol = rsmd.getColumnCount();
+         boolean[] numeric = new boolean[numCol + 1];
+         int mergeCol = 0;
+         for (int i = 1; i <= numCol; i++) {
+            switch (rsmd.getColumnType(i)) {
+               case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT: case Types.NUMERIC:
+               case Types.DECIMAL: case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+                  numeric[i] = true;
+            }
+            if (rsmd.getColumnLabel(i).equalsIgnoreCase("ordertimestamp")) mergeCol = i;
+         }
+         if (shards.length > 1 && mergeCol == 0) throw new SQLException("Cannot merge shards without an orderTimestamp column");
+
+         if (!ndjson) {
+            for (int i = 1; i <= numCol; i++) {
+               if (i > 1) out.write(',');
+               out.write(csvField(rsmd.getColumnLabel(i)));
+            }
+            out.write('\n');
+         }
+         boolean[] more = new boolean[shards.length];
+         for (int s = 0; s < shards.length; s++) more[s] = results[s].next();
+         long rowCount = 0;
+         while (true) {
+            // the shard whose current row comes first
+            ResultSet rs = null;
+            int next = -1;
+            for (int s = 0; s < shards.length; s++) {
+               if (more[s] && (rs == null || results[s].getTimestamp(mergeCol).before(rs.getTimestamp(mergeCol)))) {
+                  rs = results[s];
+                  next = s;
+               }
+            }
+            if (rs == null) break;
+
+            if (ndjson) out.write('{');
+            for (int i = 1; i <= numCol; i++) {
+               String value = rs.getString(i);
+               if (ndjson) {
+                  if (i > 1) out.write(',');
+                  out.write(jsonString(rsmd.getColumnLabel(i)));
+                  out.write(':');
+                  out.write(value == null ? "null" : numeric[i] ? value : jsonString(value));
+               }
+               else {
+                  if (i > 1) out.write(',');
+                  if (value != null) out.write(csvField(value));
+               }
+            }
+            out.write(ndjson ? "}\n" : "\n");
+            if (++rowCount % 1000000 == 0) System.out.println(rowCount + " rows written...");
+            more[next] = rs.next();
+         }
+         for (int s = 0; s < shards.length; s++) {
+            results[s].getStatement().close();
+            conns[s].commit();
+         }
+         return rowCount;
+      }
+      catch (SQLException e) {
+         failure = e;
+         throw timedOut(e);
+      }
+      finally {
+         try {
+            if (out != null) out.close();
+         }
+         finally {
+            for (Connection conn : conns) {
+               if (conn != null) {
+                  this._serverTimeouts.remove(conn);
+                  conn.close();
+               }
+            }
+            permit.release(failure);
+         }
+      }
+   }//end exportQuery
+
+   // quotes a CSV field when it contains a delimiter, quote or line break
+   static String csvField(String value) {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) return value;
+      return '"' + value.replace("\"", "\"\"") + '"';
+   }
+
+   static String jsonString(String value) {
+      StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+               if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+               else sb.append(c);
+         }
+      }
+      return sb.append('"').toString();
+   }
+
+   /**
+    * Method to fetch the last value from sequence. This
+    * method issues the query to the DBMS and returns the current
+    * value of sequence used for autogenerated keys
+    *
+    * @param sequence name of the DB sequence
+    * @return current value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getCurrSeqVal(String sequence) throws SQLException {
+      AdmissionController.Permit permit = this._admission.acquire(operation());
+      SQLException failure = null;
+      Statement stmt = null;
+      try {
+         stmt = createStatement(0);
+
+         ResultSet rs = stmt.executeQuery (tag(String.format("Select currval('%s')", sequence)));
+         if (rs.next())
+            return rs.getInt(1);
+         return -1;
+      }
+      catch (SQLException e) {
+         failure = e;
+         throw timedOut(e);
+      }
+      finally {
+         if (stmt != null) stmt.close ();
+         permit.release(failure);
+      }
+   }
+
+   /**
+    * Opens a separate physical connection to the same database.  Used by
+    * background workers so that their transactions never interleave with
+    * the interactive session.
+    *
+    * @return a new connection
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection() throws SQLException {
+      return openConnection(0);
+   }//end openConnection
+
+   /**
+    * Opens a separate physical connection to one shard.
+    *
+    * @param shard the shard; 0 is the main database
+    * @return a new connection
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection(int shard) throws SQLException {
+      return FaultInjector.wrap(DriverManager.getConnection(this._shards.url(shard), this._user, this._passwd));
+   }//end openConnection
+
+   /**
+    * @return the databases orders are split across
+    */
+   public Shards shards() {
+      return this._shards;
+   }//end shards
+
+   /**
+    * @return the replicator of Users, Items and Store, or null when there is one shard
+    */
+   public ShardReplicator replicator() {
+      return this._replicator;
+   }//end replicator
+
+   /**
+    * @return the database statistics sampler, or null when it is disabled
+    */
+   public StatsSampler sampler() {
+      return this._sampler;
+   }//end sampler
+
+   /**
+    * @return the catalog of menu items, stores and user profiles
+    */
+   public Catalog catalog() {
+      return this._catalog;
+   }//end catalog
+
+   /**
+    * @return the tracker of recently popular items
+    */
+   public PopularityTracker popularity() {
+      return this._popularity;
+   }//end popularity
+
+   /**
+    * @return the engine that totals orders with the promotions in use
+    */
+   public PricingEngine pricing() {
+      return this._pricing;
+   }//end pricing
+
+   /**
+    * @return the board of orders waiting for a driver
+    */
+   public DispatchBoard dispatch() {
+      return this._dispatch;
+   }//end dispatch
+
+   /**
+    * Marks the start of a user-facing operation. Queries issued afterwards on
+    * this thread are admitted and accounted under its name.
+    *
+    * @param name the operation name, usually the method name
+    */
+   public static void beginOperation(String name) {
+      _operation.set(name);
+      long budget = Deadlines.budgetMillis(name) * 1000000L;
+      _deadline.set(budget > 0 ? new long[] {budget, System.nanoTime() + budget} : null);
+   }//end beginOperation
+
+   /**
+    * Carries an operation over to a worker thread, keeping its deadline.
+    *
+    * @param name the operation name
+    * @param deadline the operation's deadline as held by the thread that began it
+    */
+   public static void continueOperation(String name, long[] deadline) {
+      _operation.set(name);
+      _deadline.set(deadline);
+   }//end continueOperation
+
+   // gives the current operation its whole time limit again
+   static void restartDeadline() {
+      long[] deadline = _deadline.get();
+      if (deadline != null) _deadline.set(new long[] {deadline[0], System.nanoTime() + deadline[0]});
+   }//end restartDeadline
+
+   /**
+    * Creates a statement on a shard that the current operation's deadline
+    * applies to.
+    *
+    * @param shard the shard; 0 is the main database
+    * @return a new statement
+    * @throws java.sql.SQLException when the operation is already out of time
+    */
+   private Statement createStatement(int shard) throws SQLException {
+      Connection conn = this._shards.connection(shard);
+      Statement stmt = conn.createStatement();
+      try {
+         applyDeadline(conn, stmt);
+      }
+      catch (SQLException e) {
+         stmt.close();
+         throw e;
+      }
+      return stmt;
+   }//end createStatement
+
+   /**
+    * Gives a statement what is left of the current operation's time as its
+    * query timeout, after which the driver cancels it on the server. JDBC
+    * counts whole seconds, so the connection's statement_timeout is also set to
+    * the operation's limit, in case the cancel request does not get through.
+    * It only changes when the limit does, so it is rarely an extra round trip.
+    *
+    * @param conn the statement's connection
+    * @param stmt the statement
+    * @throws java.sql.SQLException when the operation is already out of time
+    */
+   public void applyDeadline(Connection conn, Statement stmt) throws SQLException {
+      long[] deadline = _deadline.get();
+      long limitMillis = deadline == null ? 0 : deadline[0] / 1000000L;
+      Long current = this._serverTimeouts.get(conn);
+      if (current == null || current != limitMillis) {
+         Statement set = conn.createStatement();
+         try {
+            set.execute("SET statement_timeout = " + limitMillis + ";");
+         }
+         finally {
+            set.close();
+         }
+         this._serverTimeouts.put(conn, limitMillis);
+      }
+      if (deadline == null) return;
+      long left = deadline[1] - System.nanoTime();
+      if (left <= 0) {
+         this._deadlines.record(operation());
+         throw new DeadlineExceededException(operation(), limitMillis, null);
+      }
+      stmt.setQueryTimeout((int) Math.max(1, (left + 999999999L) / 1000000000L));
+   }//end applyDeadline
+
+   /**
+    * Turns a statement cancelled for running out of time into a
+    * DeadlineExceededException and counts it against the operation.
+    *
+    * @param e the failure
+    * @return the exception to throw
+    */
+   private SQLException timedOut(SQLException e) {
+      // query_canceled, whether by the driver's cancel or statement_timeout
+      if (!"57014".equals(e.getSQLState()) || e instanceof DeadlineExceededException) return e;
+      this._deadlines.record(operation());
+      long[] deadline = _deadline.get();
+      return new DeadlineExceededException(operation(), deadline == null ? 0 : deadline[0] / 1000000L, e);
+   }//end timedOut
+
+   /**
+    * @return the per-operation deadlines and how often they were missed
+    */
+   public Deadlines deadlines() {
+      return this._deadlines;
+   }//end deadlines
+
+   /**
+    * @return the operation the current thread is running
+    */
+   public static String operation() {
+      String name = _operation.get();
+      return name == null ? "session" : name;
+   }//end operation
+
+   /**
+    * Prefixes a statement with the current operation's name in a comment, so
+    * pg_stat_statements and pg_stat_activity show which operation issued it.
+    *
+    * @param sql the input SQL string
+    * @return the tagged statement
+    */
+   public static String tag(String sql) {
+      return "/* " + operation() + " */ " + sql;
+   }//end tag
+
+   /**
+    * Reads a tuning option given on the command line as -Dpizza.<key>=value.
+    *
+    * @param key the option name without the "pizza." prefix
+    * @param def the value used when the option is not set
+    * @return the option value
+    */
+   public static String config(String key, String def) {
+      return System.getProperty("pizza." + key, def);
+   }//end config
+
+   public static int config(String key, int def) {
+      try {
+         return Integer.parseInt(config(key, String.valueOf(def)).trim());
+      }catch (NumberFormatException e) {
+         return def;
+      }//end try
+   }//end config
+
+   /**
+    * Method to close the physical connection if it is open.
+    */
+   public void cleanup(){
+      if (this._catalog != null) {
+         this._catalog.save();
+         this._catalog.report();
+      }//end if
+      if (this._shards != null) {
+         this._shards.close();
+      }//end if
+      try{
+         if (this._connection != null){
+            this._connection.close ();
+         }//end if
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end cleanup
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PizzaStore.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      Greeting();
+      PizzaStore esql = null;
+      try{
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         // instantiate the PizzaStore object and creates a physical
+         // connection.
+         String dbname = args[0];
+         String dbport = args[1];
+         String user = args[2];
+         esql = new PizzaStore (dbname, dbport, user, "");
+
+         // orders split by store across several databases: check each is the shard it is configured as
+         if (esql._shards.count() > 1) {
+            esql._shards.verify(esql);
+            esql._replicator = new ShardReplicator(esql);
+            Thread replicator = new Thread(esql._replicator, "shard-replicator");
+            replicator.setDaemon(true);
+            replicator.start();
+         }
+
+         // serve menu, stores and roles from the last snapshot while it is checked against the database
+         esql._catalog = Catalog.open(esql);
+
+         // promotions; without the table orders are charged menu prices
+         try {
+            esql._pricing.load(esql);
+         }
+         catch (SQLException e) {
+            System.err.println("Promotions not loaded: " + e.getMessage().trim());
+         }
+         if (esql._catalog.needsReconcile()) {
+            final PizzaStore store = esql;
+            Thread reconciler = new Thread(new Runnable() {
+               public void run() {
+                  try {
+                     Connection conn = store.openConnection();
+                     try {
+                        store._catalog.reconcile(conn);
+                     }
+                     finally {
+                        conn.close();
+                     }
+                  }
+                  catch (Exception e) {
+                     System.err.println("Error reconciling catalog: " + e.getMessage());
+                  }
+               }
+            }, "catalog-reconciler");
+            reconciler.setDaemon(true);
+            reconciler.start();
+         }
+
+         // warm up "popular now" from the last day of orders
+         final PizzaStore tracked = esql;
+         Thread seeder = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  for (int shard = 0; shard < tracked._shards.count(); shard++) {
+                     Connection conn = tracked.openConnection(shard);
+                     try {
+                        tracked._popularity.seed(conn);
+                     }
+                     finally {
+                        conn.close();
+                     }
+                  }
+               }
+               catch (Exception e) {
+                  System.err.println("Error seeding popular items: " + e.getMessage());
+               }
+            }
+         }, "popularity-seeder");
+         seeder.setDaemon(true);
+         seeder.start();
+
+         // load the orders waiting for drivers and keep the board in step with other instances
+         final PizzaStore dispatched = esql;
+         Thread dispatcher = new Thread(new Runnable() {
+            public void run() {
+               int refreshMillis = config("dispatch.refresh.ms", 30000);
+               while (!Thread.currentThread().isInterrupted()) {
+                  List<Connection> conns = new ArrayList<Connection>();
+                  try {
+                     for (int shard = 0; shard < dispatched._shards.count(); shard++) {
+                        conns.add(dispatched.openConnection(shard));
+                     }
+                     while (true) {
+                        dispatched._dispatch.reload(conns);
+                        Thread.sleep(refreshMillis);
+                     }
+                  }
+                  catch (InterruptedException e) {
+                     return;
+                  }
+                  catch (Exception e) {
+                     System.err.println("Error loading dispatch board: " + e.getMessage());
+                  }
+                  finally {
+                     for (Connection conn : conns) {
+                        try {
+                           conn.close();
+                        }catch (SQLException e) {
+                           // ignored.
+                        }
+                     }
+                  }
+                  try {
+                     Thread.sleep(refreshMillis);
+                  }
+                  catch (InterruptedException e) {
+                     return;
+                  }
+               }
+            }
+         }, "dispatch-board");
+         dispatcher.setDaemon(true);
+         dispatcher.start();
+
+         // pick up menu, store and user changes made by other instances
+         if (esql._catalog.isEnabled() && config("listen", "true").equals("true")) {
+            Thread listener = new Thread(new CatalogListener(esql), "catalog-listener");
+            listener.setDaemon(true);
+            listener.start();
+         }
+         else {
+            // without the listener, promotions are reloaded every pizza.promotions.refresh.ms instead
+            final PizzaStore priced = esql;
+            Thread promotions = new Thread(new Runnable() {
+               public void run() {
+                  int refreshMillis = config("promotions.refresh.ms", 30000);
+                  while (!Thread.currentThread().isInterrupted()) {
+                     try {
+                        Thread.sleep(refreshMillis);
+                     }
+                     catch (InterruptedException e) {
+                        return;
+                     }
+                     try {
+                        Connection conn = priced.openConnection();
+                        try {
+                           priced._pricing.load(conn);
+                        }
+                        finally {
+                           conn.close();
+                        }
+                     }
+                     catch (SQLException e) {
+                        System.err.println("Promotions not reloaded: " + e.getMessage().trim());
+                     }
+                  }
+               }
+            }, "promotions-reloader");
+            promotions.setDaemon(true);
+            promotions.start();
+         }
+
+         // move old completed orders out of the hot tables in the background
+         if (config("archive.enabled", "true").equals("true")) {
+            for (int shard = 0; shard < esql._shards.count(); shard++) {
+               Thread archiver = new Thread(new OrderArchiver(esql, shard), "order-archiver-" + shard);
+               archiver.setDaemon(true);
+               archiver.start();
+            }
+         }
+
+         // record statement, table, index and lock statistics for the health report
+         if (config("stats.enabled", "true").equals("true")) {
+            esql._sampler = new StatsSampler(esql);
+            Thread sampler = new Thread(esql._sampler, "stats-sampler");
+            sampler.setDaemon(true);
+            sampler.start();
+         }
+
+         boolean keepon = true;
+         while(keepon) {
+            // These are sample SQL statements
+            System.out.println("MAIN MENU");
+            System.out.println("---------");
+            System.out.println("1. Create user");
+            System.out.println("2. Log in");
+            System.out.println("9. < EXIT");
+            String authorisedUser = null;
+            switch (readChoice()){
+               case 1: CreateUser(esql); break;
+               case 2: authorisedUser = LogIn(esql); break;
+               case 9: keepon = false; break;
+               default : System.out.println("Unrecognized choice!"); break;
+            }//end switch
+            if (authorisedUser != null) {
+              boolean usermenu = true;
+              
+              while(usermenu) {
+
+                  beginOperation("session");
+                  String role = esql.catalog().user(esql, authorisedUser)[1].trim();
+                
+
+                if (role.equals("manager")) {
+
+                  System.out.println("MAIN MENU");
+                  System.out.println("---------");
+                  System.out.println("1. View Profile");
+                  System.out.println("2. Update Profile");
+                  System.out.println("3. View Menu");
+                  System.out.println("4. Place Order"); //make sure user specifies which store
+                  System.out.println("5. View Full Order ID History");
+                  System.out.println("6. View Past 5 Order IDs");
+                  System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
+                  System.out.println("8. View Stores"); 
+
+                  //**the following functionalities should only be able to be used by drivers & managers**
+                  System.out.println("9. Update Order Status");
+
+                  //**the following functionalities should ony be able to be used by managers**
+                  System.out.println("10. Update Menu");
+                  //System.out.println("11. Update User");
+                  System.out.println("12. Bulk Menu Update");
+                  System.out.println("13. View Open Orders");
+                  System.out.println("14. View Database Load");
+                  System.out.println("15. View Orders By Status");
+                  System.out.println("16. Export Data");
+                  System.out.println("17. Check Order Statistics");
+                  System.out.println("18. View Database Health");
+                  System.out.println("19. View Favorite Audience");
+
+                  System.out.println(".........................");
+                  System.out.println("20. Log out");
+                  
+
+                  switch (readChoice()){
+                   case 1: viewProfile(esql, authorisedUser); break;
+                   case 2: updateProfile(esql, authorisedUser, role); break;
+                   case 3: viewMenu(esql); break;
+                   case 4: placeOrder(esql, authorisedUser); break;
+                   case 5: viewAllOrders(esql, authorisedUser, role); break;
+                   case 6: viewRecentOrders(esql, authorisedUser, role); break;
+                   case 7: viewOrderInfo(esql, authorisedUser, role); break;
+                   case 8: viewStores(esql); break;
+                   case 9: updateOrderStatus(esql); break;
+                   case 10: updateMenu(esql); break;
+                   //case 11: updateUser(esql); break;
+                   case 12: bulkUpdateMenu(esql); break;
+                   case 13: viewOpenOrders(esql); break;
+                   case 14: viewDatabaseLoad(esql); break;
+                   case 15: viewOrdersByStatus(esql); break;
+                   case 16: exportData(esql); break;
+                   case 17: checkOrderStats(esql); break;
+                   case 18: viewDatabaseHealth(esql); break;
+                   case 19: viewFavoriteAudience(esql); break;
+
+                   case 20: usermenu = false; break;
+                   default : System.out.println("Unrecognized choice!"); break;
+                  }
+                }
+
+                else if (role.equals("driver")) {
+
+                  System.out.println("MAIN MENU");
+                  System.out.println("---------");
+                  System.out.println("1. View Profile");
+                  System.out.println("2. Update Profile");
+                  System.out.println("3. View Menu");
+                  System.out.println("4. Place Order"); //make sure user specifies which store
+                  System.out.println("5. View Full Order ID History");
+                  System.out.println("6. View Past 5 Order IDs");
+                  System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
+                  System.out.println("8. View Stores"); 
+                  //**the following functionalities should only be able to be used by drivers & managers**
+                  System.out.println("9. Update Order Status");
+                  System.out.println("10. Claim Next Delivery");
+
+                  //System.out.println("11. Update User");
+
+                  System.out.println(".........................");
+                  System.out.println("20. Log out");
+                 
+                  //dont include updateMenu
+
+                  switch (readChoice()){
+                   case 1: viewProfile(esql, authorisedUser); break;
+                   case 2: updateProfile(esql, authorisedUser, role); break;
+                   case 3: viewMenu(esql); break;
+                   case 4: placeOrder(esql, authorisedUser); break;
+                   case 5: viewAllOrders(esql, authorisedUser, role); break;
+                   case 6: viewRecentOrders(esql, authorisedUser, role); break;
+                   case 7: viewOrderInfo(esql, authorisedUser, role); break;
+                   case 8: viewStores(esql); break;
+                   case 9: updateOrderStatus(esql); break;
+                   case 10: claimDelivery(esql, authorisedUser); break;
+                   //case 11: updateUser(esql); break;
+
+                   case 20: usermenu = false; break;
+                   default : System.out.println("Unrecognized choice!"); break;
+                  }
+                }
+
+                else if (role.equals("customer")) {
+
+                  System.out.println("MAIN MENU");
+                  System.out.println("---------");
+                  System.out.println("1. View Profile");
+                  System.out.println("2. Update Profile");
+                  System.out.println("3. View Menu");
+                  System.out.println("4. Place Order"); //make sure user specifies which store
+                  System.out.println("5. View Full Order ID History");
+                  System.out.println("6. View Past 5 Order IDs");
+                  System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
+                  System.out.println("8. View Stores"); 
+                  System.out.println("9. Repeat Order");
+                  //System.out.println("11. Update User");
+
+                  System.out.println(".........................");
+                  System.out.println("20. Log out");
+              
+                     //dont include updateOrderStatus
+                     //dont include updateMenu
+                     switch (readChoice()){
+                   case 1: viewProfile(esql, authorisedUser); break;
+                   case 2: updateProfile(esql, authorisedUser, role); break;
+                   case 3: viewMenu(esql); break;
+                   case 4: placeOrder(esql, authorisedUser); break;
+                   case 5: viewAllOrders(esql, authorisedUser, role); break;
+                   case 6: viewRecentOrders(esql, authorisedUser, role); break;
+                   case 7: viewOrderInfo(esql, authorisedUser, role); break;
+                   case 8: viewStores(esql); break;
+                   case 9: repeatOrder(esql, authorisedUser); break;
+                   //case 11: updateUser(esql); break;
+
+                   case 20: usermenu = false; break;
+                   default : System.out.println("Unrecognized choice!"); break;
+                  }
+                }  
+              }
+            }
+         }//end while
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
+            }//end if
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+   public static void Greeting(){
+      System.out.println(
+         "\n\n*******************************************************\n" +
+         "              User Interface      	               \n" +
+         "*******************************************************\n");
+   }//end Greeting
+
+   /*
+    * Reads the users choice given from the keyboard
+    * @int
+    **/
+   public static int readChoice() {
+      int input;
+      // returns only if a correct value is given.
+      do {
+         System.out.print("Please make your choice: ");
+         try { // read the integer, parse it and break.
+            input = Integer.parseInt(in.readLine());
+            break;
+         }catch (Exception e) {
+            System.out.println("Your input is invalid!");
+            continue;
+         }//end try
+      }while (true);
+      return input;
+   }//end readChoice
+
+   /*
+    * Reads a yes/no answer from the keyboard
+    * @return true if the user answered y or yes
+    **/
+   public static boolean readYesNo(String prompt) throws java.io.IOException {
+      System.out.print(prompt);
+      String answer = in.readLine().trim().toLowerCase();
+      return answer.equals("y") || answer.equals("yes");
+   }//end readYesNo
+
+   /*
+    * Reads an order status from a numbered list
+    * @return the chosen status, or null for an invalid choice
+    **/
+   public static OrderStatus readOrderStatus() throws java.io.IOException {
+      printOrderStatuses();
+      return parseOrderStatus(in.readLine());
+   }//end readOrderStatus
+
+   /*
+    * Prints the order statuses as a numbered list, starting at 1
+    **/
+   public static void printOrderStatuses() {
+      OrderStatus[] statuses = OrderStatus.values();
+      for (int i = 0; i < statuses.length; i++) {
+         System.out.println((i + 1) + ". " + statuses[i].label);
+      }
+   }//end printOrderStatuses
+
+   /*
+    * Turns a choice from printOrderStatuses into its status
+    * @return the chosen status, or null for an invalid choice
+    **/
+   public static OrderStatus parseOrderStatus(String input) {
+      OrderStatus[] statuses = OrderStatus.values();
+      try {
+         int choice = Integer.parseInt(input.trim());
+         return choice >= 1 && choice <= statuses.length ? statuses[choice - 1] : null;
+      }catch (NumberFormatException e) {
+         return null;
+      }//end try
+   }//end parseOrderStatus
+
+   /*
+    * Table expressions for order lookups. With full history the archive tables
+    * are unioned in; the planner pushes the WHERE clause into both branches so
+    * each side still uses its own indexes. With surrogate keys the login and
+    * itemName columns come from joining Users and Items, so callers see the
+    * same columns either way. Archived orders may refer to users or items that
+    * are gone, so the archive side is an outer join.
+    **/
+   public static String orderTable(boolean fullHistory) {
+      if (_surrogateKeys) {
+         String live = "SELECT o.orderID, u.login, o.storeID, o.totalPrice, o.orderTimestamp, o.orderStatus FROM FoodOrder o JOIN Users u ON u.userID = o.userID";
+         String archived = "SELECT o.orderID, u.login, o.storeID, o.totalPrice, o.orderTimestamp, o.orderStatus FROM FoodOrderArchive o LEFT JOIN Users u ON u.userID = o.userID";
+         return "(" + live + (fullHistory ? " UNION ALL " + archived : "") + ") AS FoodOrder";
+      }
+      return fullHistory
+         ? "(SELECT * FROM FoodOrder UNION ALL SELECT * FROM FoodOrderArchive) AS FoodOrder"
+         : "FoodOrder";
+   }//end orderTable
+
+   public static String itemsInOrderTable(boolean fullHistory) {
+      if (_surrogateKeys) {
+         String live = "SELECT i.orderID, it.itemName, i.quantity FROM ItemsInOrder i JOIN Items it ON it.itemID = i.itemID";
+         String archived = "SELECT i.orderID, it.itemName, i.quantity FROM ItemsInOrderArchive i LEFT JOIN Items it ON it.itemID = i.itemID";
+         return "(" + live + (fullHistory ? " UNION ALL " + archived : "") + ") AS ItemsInOrder";
+      }
+      return fullHistory
+         ? "(SELECT * FROM ItemsInOrder UNION ALL SELECT * FROM ItemsInOrderArchive) AS ItemsInOrder"
+         : "ItemsInOrder";
+   }//end itemsInOrderTable
+
+   /*
+    * Columns of FoodOrder and ItemsInOrder that refer to a user and an item, and
+    * SQL for the value to store there, for statements that write the order
+    * tables directly.
+    **/
+   public static String userColumn() {
+      return _surrogateKeys ? "userID" : "login";
+   }//end userColumn
+
+   public static String itemColumn() {
+      return _surrogateKeys ? "itemID" : "itemName";
+   }//end itemColumn
+
+   public static String userRef(String login) {
+      return _surrogateKeys
+         ? String.format("(SELECT userID FROM Users WHERE login = '%s')", login)
+         : String.format("'%s'", login);
+   }//end userRef
+
+   public static String itemRef(String itemName) {
+      return _surrogateKeys
+         ? String.format("(SELECT itemID FROM Items WHERE itemName = '%s')", itemName)
+         : String.format("'%s'", itemName);
+   }//end itemRef
+
+   // whether migrate_surrogate_keys.sql has been run on this database
+   public static boolean hasSurrogateKeys(Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(
+            "SELECT 1 FROM information_schema.columns WHERE table_schema = current_schema() AND table_name = 'foodorder' AND column_name = 'userid';");
+         return rs.next();
+      }
+      finally {
+         stmt.close();
+      }
+   }//end hasSurrogateKeys
+
+   /*
+    * FoodOrder columns as shown to users, with the status by name. Used
+    * together with orderView().
+    **/
+   public static final String ORDER_COLUMNS =
+      "FoodOrder.orderID, FoodOrder.login, FoodOrder.storeID, FoodOrder.totalPrice, FoodOrder.orderTimestamp, OrderStatusName.statusName AS orderStatus";
+
+   // column names of ORDER_COLUMNS, for printing rows merged from several shards
+   public static final String[] ORDER_HEADER = {"orderid", "login", "storeid", "totalprice", "ordertimestamp", "orderstatus"};
+
+   public static String orderView(boolean fullHistory) {
+      return orderTable(fullHistory) + " JOIN OrderStatusName ON OrderStatusName.statusCode = FoodOrder.orderStatus";
+   }//end orderView
+
+   /*
+    * Creates a new user. when a new user comes to the system, he/she can setup a new
+account through your interface, by providing necessary information. The user will
+automatically be a customer. Their favorite item will be empty.
+    **/
+   public static void CreateUser(PizzaStore esql){
+      beginOperation("CreateUser");
+
+      try {
+        System.out.print("Enter login: ");
+        String login = in.readLine();
+
+        System.out.print("Enter password: ");
+        String password = in.readLine();
+
+        String role = "customer";
+
+        String favoriteItems = null;
+
+        System.out.print("Enter phone number: ");
+        String phoneNum = in.readLine();
+
+        String query = String.format(
+            "INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES ('%s', '%s', '%s', '%s', '%s');",
+            login, password, role, favoriteItems, phoneNum
+        );
+
+        esql.executeUpdate(query);
+        esql.catalog().refreshUser(esql, login);
+        System.out.println("User successfully created!");
+
+      } 
+      catch (Exception e) {
+        System.err.println("Error creating user: " + e.getMessage());
+      }
+   }//end CreateUser
+
+
+
+
+
+   /*
+    * Check log in credentials for an existing user
+    * @return User login or null is the user does not exist.
+    *
+    * user can use his/her login and password to login into the system.
+Once he/she logs in, a session will be maintained for him/her until logout (an example
+has been provided in the Java source code).
+    **/
+     
+
+   public static String LogIn(PizzaStore esql) {
+      beginOperation("LogIn");
+       try {
+         System.out.print("Enter login: ");
+         String login = in.readLine();
+
+         System.out.print("Enter password: ");
+         String password = in.readLine();
+
+         // Query to check if the user exists with the given credentials
+         String query = String.format(
+            "SELECT Users.* FROM Users WHERE login = '%s' AND password = '%s';",
+            login, password
+         );
+
+         // Execute the query and check if a result is returned
+         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+
+         if (result.isEmpty()) {
+            System.out.println("Login failed: Invalid username or password.");
+            return null;
+         } 
+	      else {
+            System.out.println("Login successful! Welcome, " + login);
+            return login; // Return the username if login is successful
+         }
+      } 
+      catch (Exception e) {
+        System.err.println("Error during login: " + e.getMessage());
+        return null;
+      }
+   }
+ 
+
+// Rest of the functions definition go in here
+
+
+  /*
+   Profile: Users should be able to view and update their favoriteItem. Users should also be
+   able to view their phoneNum. Users should be able to change their password &
+   phoneNum. Only managers can edit a user’s login and role.
+   */
+
+   public static void viewProfile(PizzaStore esql, String login) {
+      beginOperation("viewProfile");
+
+      try {
+         System.out.print("YOUR PROFILE\n");
+         String[] user = esql.catalog().user(esql, login);
+         List<String[]> rows = new ArrayList<String[]>();
+         if (user != null) rows.add(new String[] {user[2], user[3]});
+         printRows(new String[] {"favoriteitems", "phonenum"}, rows);
+         printOrderStats(esql, login);
+      } 
+      catch (Exception e) {
+         System.err.println("Error retrieving profile: " + e.getMessage());
+      }
+
+
+   }
+
+   /*
+    * Reads a user's order totals from UserOrderStats, added up over the shards
+    * @return {ordercount, totalspend, lastorderat, laststoreid}, or null if the user has no orders
+    **/
+   public static String[] orderStats(PizzaStore esql, String login) throws SQLException {
+      String query = String.format("SELECT orderCount, totalSpend, lastOrderAt, lastStoreID FROM UserOrderStats WHERE login = '%s';", login);
+      int count = 0;
+      BigDecimal spend = BigDecimal.ZERO;
+      List<String> last = null;
+      for (List<List<String>> rows : esql.executeQueryOnAllShards(query)) {
+         for (List<String> row : rows) {
+            count += Integer.parseInt(row.get(0));
+            spend = spend.add(new BigDecimal(row.get(1)));
+            if (last == null || Timestamp.valueOf(row.get(2)).after(Timestamp.valueOf(last.get(2)))) last = row;
+         }
+      }
+      return count == 0 ? null : new String[] {String.valueOf(count), spend.toPlainString(), last.get(2), last.get(3)};
+   }//end orderStats
+
+   public static void printOrderStats(PizzaStore esql, String login) throws SQLException {
+      String[] stats = orderStats(esql, login);
+      if (stats == null) {
+         System.out.println("No orders yet.");
+         return;
+      }
+      printRows(new String[] {"ordercount", "totalspend", "lastorderat", "laststoreid"}, Collections.singletonList(stats));
+   }//end printOrderStats
+
+   /*
+    * Replaces a user's favorites with the menu items entered, separated by commas.
+    * Items kept from before are left alone; the rest are removed or added.
+    * @return false if an item is not on the menu, in which case nothing changes
+    **/
+   public static boolean setFavorites(PizzaStore esql, String login, String input) throws SQLException {
+      Set<String> names = new LinkedHashSet<String>();
+      for (String name : input.split(",")) {
+         if (name.trim().isEmpty()) continue;
+         if (esql.catalog().item(esql, name.trim()) == null) {
+            System.out.println("Not on the menu: " + name.trim() + ". Returning to menu.");
+            return false;
+         }
+         names.add(name.trim());
+      }
+
+      String update;
+      if (names.isEmpty()) {
+         update = String.format("DELETE FROM UserFavorites WHERE login = '%s';", login);
+      }
+      else {
+         StringBuilder kept = new StringBuilder();
+         StringBuilder values = new StringBuilder();
+         for (String name : names) {
+            if (kept.length() > 0) {
+               kept.append(", ");
+               values.append(", ");
+            }
+            kept.append(String.format("'%s'", name));
+            values.append(String.format("('%s', '%s')", login, name));
+         }
+         update = String.format(
+            "WITH dropped AS (DELETE FROM UserFavorites WHERE login = '%s' AND itemName NOT IN (%s)) " +
+            "INSERT INTO UserFavorites (login, itemName) VALUES %s ON CONFLICT DO NOTHING;", login, kept, values);
+      }
+      esql.executeUpdate(update);
+      esql.catalog().refreshUser(esql, login);
+      return true;
+   }//end setFavorites
+
+   public static void updateProfile(PizzaStore esql, String login, String role) {
+      beginOperation("updateProfile");
+      
+      try {
+
+         String newFavoriteItems;
+         String newPhoneNumber;
+         String newPassword;
+         String newLogin;
+         String newRole;
+         String updateQuery;
+
+         role = role.trim();
+         if (!role.equals("manager"))
+         {
+            System.out.println("Which part of your profile would you like to update?");
+            System.out.println("1. Favorite Items");
+            System.out.println("2. Phone Number");
+            System.out.println("3. Password");
+            System.out.print("Enter your choice: ");
+            int input = Integer.parseInt(in.readLine());
+
+            switch (input) {
+               case 1:
+                  System.out.print("Enter new favorite items, separated by commas: ");
+                  newFavoriteItems = in.readLine();
+                  if (!setFavorites(esql, login, newFavoriteItems)) return;
+                  System.out.println("Profile updated successfully!");
+                  break;
+               case 2:
+                  System.out.print("Enter new phone number: ");
+                  newPhoneNumber = in.readLine();
+                  updateQuery = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s';", newPhoneNumber, login);
+                  esql.executeUpdate(updateQuery);
+                  esql.catalog().refreshUser(esql, login);
+                  System.out.println("Profile updated successfully!");
+                  break;
+               case 3:
+                  System.out.print("Enter new password: ");
+                  newPassword = in.readLine();
+                  updateQuery = String.format("UPDATE Users SET password = '%s' WHERE login = '%s';", newPassword, login);
+                  esql.executeUpdate(updateQuery);
+                  esql.catalog().refreshUser(esql, login);
+                  System.out.println("Profile updated successfully!");
+                  break;
+               default:
+                  System.out.println("Invalid choice.");
+                  return;
+            }
+         }
+
+         else
+         {
+            System.out.println("Enter the login of the profile you would like to update: ");
+            String update_login = in.readLine();
+            // answered from the catalog; each update below also checks its row count
+            String[] user = esql.catalog().user(esql, update_login);
+            if (user == null) {
+               System.out.println("Login not found! Returning to menu.");
+               return;
+            }
+
+            System.out.println("Which part of the profile would you like to update?");
+            System.out.println("1. Favorite Items");
+            System.out.println("2. Phone Number");
+            System.out.println("3. Password");
+            System.out.println("4. Login");
+            System.out.println("5. Role");
+            System.out.print("Enter your choice: ");
+
+            int input = Integer.parseInt(in.readLine());
+
+            switch (input) {
+               case 1:
+                  System.out.print("Enter new favorite items, separated by commas: ");
+                  newFavoriteItems = in.readLine();
+                  if (!setFavorites(esql, update_login, newFavoriteItems)) return;
+                  System.out.println("Profile updated successfully!");
+                  break;
+               case 2:
+                  System.out.print("Enter new phone number: ");
+                  newPhoneNumber = in.readLine();
+                  updateQuery = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s';", newPhoneNumber, update_login);
+                  if (esql.executeUpdate(updateQuery) == 0) {
+                     System.out.println("Login not found! Returning to menu.");
+                     return;
+                  }
+                  esql.catalog().refreshUser(esql, update_login);
+                  System.out.println("Profile updated successfully!");
+                  break;
+               case 3:
+                  System.out.print("Enter new password: ");
+                  newPassword = in.readLine();
+                  updateQuery = String.format("UPDATE Users SET password = '%s' WHERE login = '%s';", newPassword, update_login);
+                  if (esql.executeUpdate(updateQuery) == 0) {
+                     System.out.println("Login not found! Returning to menu.");
+                     return;
+                  }
+                  esql.catalog().refreshUser(esql, update_login);
+                  System.out.println("Profile updated successfully!");
+                  break;
+
+               case 4:
+                  System.out.print("Enter new login: ");
+                  newLogin = in.readLine();
+                  updateQuery = String.format("UPDATE Users SET login = '%s' WHERE login = '%s';", newLogin, update_login);
+                  if (esql.executeUpdate(updateQuery) == 0) {
+                     System.out.println("Login not found! Returning to menu.");
+                     return;
+                  }
+                  esql.catalog().refreshUser(esql, update_login);
+                  esql.catalog().refreshUser(esql, newLogin);
+                  System.out.println("Profile updated successfully!");
+                  break;
+               case 5:
+                  if (user[1].trim().equals("manager")) {
+                     System.out.println("Update denied. Cannot demote managers!");
+                     return;
+                  }
+                  System.out.print("Enter new role: ");
+                  newRole = in.readLine();
+
+                  if (!(newRole.equals("manager") || newRole.equals("driver") || newRole.equals("customer"))) {
+                     System.out.println("Not a valid role. Returning to menu.");
+                     return;
+                  }
+                  // the role may have changed since the catalog was read, so the update only matches non-managers;
+                  // the statement also says whether the login was still there, to tell the two apart
+                  updateQuery = String.format(
+                     "WITH target AS (SELECT login FROM Users WHERE login = '%2$s'), " +
+                     "updated AS (UPDATE Users SET role = '%1$s' WHERE login = '%2$s' AND role <> 'manager' RETURNING login) " +
+                     "SELECT (SELECT COUNT(*) FROM target), (SELECT COUNT(*) FROM updated);", newRole, update_login);
+                  List<String> outcome = esql.executeQueryAndReturnResult(updateQuery).get(0);
+                  if (outcome.get(0).equals("0")) {
+                     System.out.println("Login not found! Returning to menu.");
+                     return;
+                  }
+                  if (outcome.get(1).equals("0")) {
+                     System.out.println("Update denied. Cannot demote managers!");
+                     return;
+                  }
+                  esql.catalog().refreshUser(esql, update_login);
+                  System.out.println("Profile updated successfully!");
+                  break;
+                  
+               default:
+                  System.out.println("Invalid choice.");
+                  return;
+            }
+         }
+            
+      } 
+      catch (Exception e) {
+         System.err.println("Error updating profile: " + e.getMessage());
+      }
+   }
+
+  /* 
+   Browse Menu: allows the user to view all the items on the menu. User should be able to
+   filter their search based on type and price (they can search for food items under a certain
+   type (such as “drinks” or “sides”), or search for food items under a certain price). User
+   should also be able to sort the menu based on price from highest to lowest price and
+   from lowest to highest price.
+   */
+
+   public static void viewMenu(PizzaStore esql) {
+      beginOperation("viewMenu");
+      try {
+         List<String[]> popular = esql.popularity().top(PopularityTracker.ALL_STORES, false);
+         if (!popular.isEmpty()) {
+            System.out.print("POPULAR NOW (last hour, all stores)\n");
+            for (int i = 0; i < Math.min(5, popular.size()); i++) {
+               System.out.println((i + 1) + ". " + popular.get(i)[0] + " (" + popular.get(i)[1] + " ordered)");
+            }
+            System.out.println();
+         }
+
+         System.out.print("BROWSE MENU\n");
+	 System.out.print("-----------\n");
+	 System.out.print("1. View All Items\n");
+	 System.out.print("2. Filter Based On Type\n");
+	 System.out.print("3. Filter Based On Price\n");
+	 System.out.print("4. View All Items Sorted From Highest To Lowest Price\n");
+	 System.out.print("5. View All Items Sorted From Lowest To Highest Price\n");
+	 // Go Back keeps its number; options added later are numbered after it
+	 System.out.print("7. Popular Items At A Store\n");
+	 System.out.print("8. Filter Based On Ingredients\n");
+	 System.out.print(".....................................................\n");
+	 System.out.print("6. Go Back\n");
+	 System.out.print("Please make your choice: ");
+
+	 int input = Integer.parseInt(in.readLine());
+	 List<String[]> items = new ArrayList<String[]>();
+	 int rowCount;
+	 switch(input) {
+
+	    case 1:
+	       items = esql.catalog().items(esql);
+               rowCount = printRows(Catalog.ITEM_COLUMNS, items);
+               System.out.println("Total items found: " + rowCount);
+	       break;
+
+	    case 2:
+	       System.out.print("Enter Type\n");
+	       String typeOfItem = in.readLine();
+	       for (String[] item : esql.catalog().items(esql)) {
+	          if (item[2].equals(typeOfItem)) items.add(item);
+	       }
+	       rowCount = printRows(Catalog.ITEM_COLUMNS, items);
+               System.out.println("Total items found: " + rowCount);
+               break;
+
+	    case 3:
+	       System.out.print("Enter Price\n");
+               double price = Double.parseDouble(in.readLine());
+               BigDecimal target = BigDecimal.valueOf(price).setScale(2, RoundingMode.HALF_UP);
+               for (String[] item : esql.catalog().items(esql)) {
+                  if (new BigDecimal(item[3]).compareTo(target) == 0) items.add(item);
+               }
+               rowCount = printRows(Catalog.ITEM_COLUMNS, items);
+               System.out.println("Total items found: " + rowCount);
+               break;
+
+	    case 4:
+	       items = sortByPrice(esql.catalog().items(esql), true);
+	       rowCount = printRows(Catalog.ITEM_COLUMNS, items);
+               System.out.println("Total items found: " + rowCount);
+               break;
+
+	    case 5:
+	       items = sortByPrice(esql.catalog().items(esql), false);
+               rowCount = printRows(Catalog.ITEM_COLUMNS, items);
+               System.out.println("Total items found: " + rowCount);
+               break;
+
+	    case 6: break;
+
+	    case 7:
+	       System.out.print("Enter Store ID\n");
+	       int storeID = Integer.parseInt(in.readLine());
+	       System.out.print("1. Last Hour\n");
+	       System.out.print("2. Last Day\n");
+	       items = esql.popularity().top(storeID, readChoice() == 2);
+	       rowCount = printRows(new String[] {"itemname", "ordered"}, items);
+	       if (rowCount == 0) System.out.println("No recent orders at this store.");
+	       break;
+
+	    case 8:
+	       // e.g. vegetarian: exclude "pepperoni, sausage, bacon"; allergies: exclude "peanuts"
+	       IngredientIndex index = esql.catalog().ingredients(esql);
+	       System.out.print("Enter ingredients the item must have, separated by commas (blank for any, ? to list them): ");
+	       String include = in.readLine();
+	       if (include.trim().equals("?")) {
+	          System.out.println(String.join(", ", index.ingredients()));
+	          System.out.print("Enter ingredients the item must have, separated by commas (blank for any): ");
+	          include = in.readLine();
+	       }
+	       System.out.print("Enter ingredients the item must not have, separated by commas (blank for none): ");
+	       long[] exclude = index.mask(in.readLine(), false);
+	       long[] required = index.mask(include, true);
+	       System.out.print("Enter Type (blank for any): ");
+	       String type = in.readLine().trim();
+	       System.out.print("Enter Maximum Price (blank for any): ");
+	       String maximum = in.readLine().trim();
+	       BigDecimal limit = maximum.isEmpty() ? null : new BigDecimal(maximum);
+	       for (String[] item : esql.catalog().items(esql)) {
+	          if (!type.isEmpty() && !item[2].trim().equalsIgnoreCase(type)) continue;
+	          if (limit != null && new BigDecimal(item[3]).compareTo(limit) > 0) continue;
+	          if (index.matches(item[0], required, exclude)) items.add(item);
+	       }
+	       rowCount = printRows(Catalog.ITEM_COLUMNS, items);
+	       System.out.println("Total items found: " + rowCount);
+	       break;
+
+	    default : System.out.println("Unrecognized choice!"); break;
+	 }
+
+
+      }
+
+      catch (Exception e) {
+        System.err.println("Error creating user: " + e.getMessage());
+      }
+   }
+
+
+   /*
+    * Turns what the user typed into a menu item's exact name. A name that only
+    * differs in case is taken as that item; "pep*" lists the items starting with
+    * "pep"; anything else that is not on the menu prints the caller's message, with
+    * "did you mean" suggestions on the line after it.
+    * @param notFound what the caller prints for an item that is not on the menu
+    * @return the item's name, or null after printing matches or notFound
+    **/
+   public static String resolveItem(PizzaStore esql, String input, String notFound) throws SQLException {
+      input = input.trim();
+      if (input.endsWith("*")) {
+         List<String> matches = esql.catalog().completeItem(esql, input.substring(0, input.length() - 1), 10);
+         System.out.println(matches.isEmpty() ? "No items start with that." : "Matching items: " + String.join(", ", matches));
+         return null;
+      }
+      if (esql.catalog().item(esql, input) != null) return input;
+
+      List<String> matches = esql.catalog().completeItem(esql, input, 1);
+      if (!matches.isEmpty() && matches.get(0).equalsIgnoreCase(input)) return matches.get(0);
+      List<String> suggestions = esql.catalog().suggestItems(esql, input, 3);
+      System.out.println(notFound);
+      if (!suggestions.isEmpty()) System.out.println("Did you mean: " + String.join(", ", suggestions) + "?");
+      return null;
+   }//end resolveItem
+
+   /*
+    * Sorts menu rows by their price column
+    **/
+   public static List<String[]> sortByPrice(List<String[]> items, final boolean descending) {
+      List<String[]> sorted = new ArrayList<String[]>(items);
+      Collections.sort(sorted, new Comparator<String[]>() {
+         public int compare(String[] a, String[] b) {
+            int cmp = new BigDecimal(a[3]).compareTo(new BigDecimal(b[3]));
+            return descending ? -cmp : cmp;
+         }
+      });
+      return sorted;
+   }//end sortByPrice
+
+
+  /*
+   Place Order: user can order any item from the menu. User should first be asked which
+   store they want to order from. User will be asked to input every itemName and quantity
+   (the amount of each item they want) for each item they want to order. The total price of
+   their order should be returned and output to the user. After placing the order, the order
+   information needs to be inserted in the FoodOrder table with a unique orderID (and
+   make sure you include the store they ordered at). Each itemName, orderID, and the
+   corresponding quantity should be inserted into the ItemsInOrder table for every item in
+   the order.
+   */
+
+
+   public static void placeOrder(PizzaStore esql, String login) {
+      beginOperation("placeOrder");
+      try {
+         System.out.print("Enter Store ID: ");
+         int storeID = Integer.parseInt(in.readLine());
+      
+         if (esql.catalog().store(esql, storeID) == null) {
+               System.out.println("Store ID does not exist! Returning to menu.");
+               return;
+         }
+
+         PricingEngine.Basket basket = new PricingEngine.Basket();
+         
+         while (true) {
+               System.out.print("Enter Item Name (end with * to list matches, or type '0' to finish): ");
+               String itemName = in.readLine();
+               if (itemName.equals("0")) {
+                  break;
+               }
+
+               itemName = resolveItem(esql, itemName, "Item does not exist! Try again.");
+               if (itemName == null) continue;
+               String[] item = esql.catalog().item(esql, itemName);
+
+               System.out.print("Enter Quantity: ");
+               int quantity = Integer.parseInt(in.readLine());
+               while (quantity <= 0) {
+                  System.out.println("Invalid quantity entered. Try again!");
+                  quantity = Integer.parseInt(in.readLine());
+               }
+
+               // the same item entered twice becomes one line
+               basket.add(itemName, item[2], PricingEngine.cents(item[3]), quantity);
+         }
+
+         if (basket.size() == 0) {
+               System.out.println("No items selected. Order canceled.");
+               return;
+         }
+
+         LocalDateTime now = LocalDateTime.now();
+         String orderTimestamp = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+         long totalPrice = esql.pricing().price(basket, storeID, now.getHour() * 60 + now.getMinute());
+
+         int orderStatus = OrderStatus.PLACED.code;
+
+
+         // the order lives on its store's shard, which needs the user and items it refers to
+         int shard = esql.shards().ofStore(storeID);
+         if (shard != 0) {
+            List<String> itemNames = new ArrayList<String>();
+            for (int i = 0; i < basket.size(); i++) itemNames.add(basket.name(i));
+            esql.replicator().ensureRows(shard, login, itemNames);
+         }
+
+         int maxID = Integer.parseInt(esql.executeQueryAndReturnResult(shard, "SELECT " + maxOrderID(esql) + ";").get(0).get(0));
+         // every ID on a shard leaves the shard number when divided by the shard count
+         int orderID = esql.shards().nextOrderID(maxID, shard);
+
+
+         // the order and its items go in one statement, so an order cancelled
+         // for running out of time leaves nothing behind
+         StringBuilder lines = new StringBuilder();
+         for (int i = 0; i < basket.size(); i++) {
+               if (i > 0) lines.append(", ");
+               lines.append(String.format("(%s, %d)", itemRef(basket.name(i)), basket.quantity(i)));
+         }
+         String orderQuery = String.format(
+            "WITH placed AS (INSERT INTO FoodOrder (orderID, %s, storeID, totalPrice, orderTimestamp, orderStatus) VALUES (%d, %s, %d, %s, '%s', %d) RETURNING orderID) " +
+            "INSERT INTO ItemsInOrder (orderID, %s, quantity) SELECT placed.orderID, line.item, line.quantity FROM placed, (VALUES %s) AS line(item, quantity);",
+            userColumn(), orderID, userRef(login), storeID, PricingEngine.dollars(totalPrice), orderTimestamp, orderStatus, itemColumn(), lines);
+         esql.executeUpdate(shard, orderQuery);
+
+         for (int i = 0; i < basket.size(); i++) {
+               esql.popularity().record(storeID, basket.name(i), basket.quantity(i), System.currentTimeMillis());
+         }
+
+         esql.dispatch().add(orderID, storeID, Timestamp.valueOf(now.withNano(0)).getTime());
+         System.out.println("Order placed successfully! Total Price: $" + PricingEngine.dollars(totalPrice)
+            + (basket.discount() > 0 ? " (you saved $" + PricingEngine.dollars(basket.discount()) + ")" : ""));
+
+      } 
+      catch (Exception e) {
+         System.err.println("Error placing order: " + e.getMessage());
+      }
+   }
+
+
+
+
+   /*
+    * The highest orderID in use on a shard, as an SQL expression. Archived orders
+    * keep their IDs, so both tables count, and on a sharded setup so do the IDs
+    * create_shards.sh left behind.
+    **/
+   public static String maxOrderID(PizzaStore esql) {
+      return "GREATEST(COALESCE((SELECT MAX(orderID) FROM FoodOrder), 0), COALESCE((SELECT MAX(orderID) FROM FoodOrderArchive), 0)" +
+         (esql.shards().count() > 1 ? ", (SELECT firstOrderID FROM ShardInfo)" : "") + ")";
+   }//end maxOrderID
+
+   /*
+   Repeat Order: places one of the customer's past orders again, at the same store,
+   in a single statement. The server copies the order's items (from the archive if
+   it has been archived) into a new FoodOrder at today's menu prices, leaving out
+   items no longer on the menu, and sends back the new orderID and total.
+   A store's price overrides apply, as they do in placeOrder. Happy hours, combos
+   and BOGO deals do not, since pricing them needs the whole basket first.
+   */
+
+   public static void repeatOrder(PizzaStore esql, String login) {
+      beginOperation("repeatOrder");
+      try {
+         System.out.print("Enter Order ID to repeat: ");
+         int orderID = Integer.parseInt(in.readLine());
+         LocalDateTime now = LocalDateTime.now().withNano(0);
+         int count = esql.shards().count();
+
+         // a store's orders, old and new, are all on its shard, so the copy lands next to the original
+         int first = esql.shards().ofOrder(orderID);
+         if (first != 0) esql.replicator().ensureRows(first, login, new ArrayList<String>());
+         List<List<String>> placed = new ArrayList<List<String>>();
+         for (int i = 0; i < count && placed.isEmpty(); i++) {
+            int shard = i == 0 ? first : (i <= first ? i - 1 : i);
+            placed = esql.executeQueryAndReturnResult(shard, String.format(
+               "WITH source AS (" +
+               "   SELECT o.storeID, i.%2$s AS item, i.quantity FROM FoodOrder o JOIN ItemsInOrder i ON i.orderID = o.orderID WHERE o.orderID = %3$d AND o.%1$s = %4$s" +
+               "   UNION ALL" +
+               "   SELECT o.storeID, i.%2$s AS item, i.quantity FROM FoodOrderArchive o JOIN ItemsInOrderArchive i ON i.orderID = o.orderID WHERE o.orderID = %3$d AND o.%1$s = %4$s), " +
+               "overrides (storeID, itemName, price) AS (%10$s), " +
+               "priced AS (" +
+               "   SELECT s.storeID, s.item, it.itemName, s.quantity, COALESCE(o.price, it.price) AS price" +
+               "   FROM source s JOIN Items it ON it.%2$s = s.item LEFT JOIN overrides o ON o.storeID = s.storeID AND o.itemName = it.itemName), " +
+               "placed AS (" +
+               "   INSERT INTO FoodOrder (orderID, %1$s, storeID, totalPrice, orderTimestamp, orderStatus)" +
+               "   SELECT (%5$s / %6$d + 1) * %6$d + %7$d, %4$s, MIN(storeID), SUM(price * quantity), TIMESTAMP '%8$s', %9$d FROM priced HAVING COUNT(*) > 0" +
+               "   RETURNING orderID, storeID, totalPrice), " +
+               "copied AS (" +
+               "   INSERT INTO ItemsInOrder (orderID, %2$s, quantity)" +
+               "   SELECT placed.orderID, priced.item, priced.quantity FROM placed, priced" +
+               "   RETURNING %2$s AS item, quantity) " +
+               "SELECT placed.orderID, placed.storeID, placed.totalPrice, (SELECT COUNT(*) FROM source), priced.itemName, copied.quantity " +
+               "FROM placed, copied JOIN priced ON priced.item = copied.item;",
+               userColumn(), itemColumn(), orderID, userRef(login), maxOrderID(esql), count, shard,
+               now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")), OrderStatus.PLACED.code, esql.pricing().overrides()));
+         }
+         if (placed.isEmpty()) {
+            System.out.println("Order not found, or none of its items are on the menu any more. Returning to menu.");
+            return;
+         }
+
+         List<String> order = placed.get(0);
+         int newOrderID = Integer.parseInt(order.get(0));
+         int storeID = Integer.parseInt(order.get(1));
+         for (List<String> line : placed) {
+            esql.popularity().record(storeID, line.get(4), Integer.parseInt(line.get(5)), System.currentTimeMillis());
+         }
+         esql.dispatch().add(newOrderID, storeID, Timestamp.valueOf(now).getTime());
+         int skipped = Integer.parseInt(order.get(3)) - placed.size();
+         System.out.println("Order " + newOrderID + " placed at store " + storeID + "! Total Price: $" + order.get(2)
+            + (skipped > 0 ? " (" + skipped + " item(s) no longer on the menu were left out)" : ""));
+      }
+      catch (Exception e) {
+         System.err.println("Error repeating order: " + e.getMessage());
+      }
+   }
+
+   /*
+   See OrderID History: Customers will be able to see their order history. They should
+   be able to see a list of all their past orderIDs. A customer is not allowed to see the
+   order history of other customers. Managers & Drivers are allowed to see all
+   orders from anyone.
+   */
+
+   
+   public static void viewAllOrders(PizzaStore esql, String login, String role) {
+      beginOperation("viewAllOrders");
+    try {
+        String query;
+        
+        if (role.equals("customer")) {
+            boolean fullHistory = readYesNo("Include archived orders? (y/n): ");
+            query = String.format("SELECT %s FROM %s WHERE login = '%s' ORDER BY orderTimestamp DESC;", ORDER_COLUMNS, orderView(fullHistory), login);
+        } 
+        else {
+            System.out.println("Enter login of user who's order history you want to see: ");
+            String update_login = in.readLine();
+            printOrderStats(esql, update_login);
+            boolean fullHistory = readYesNo("Include archived orders? (y/n): ");
+            query = String.format("SELECT %s FROM %s WHERE login = '%s' ORDER BY orderTimestamp DESC;", ORDER_COLUMNS, orderView(fullHistory), update_login);
+        }
+
+        // a user's orders can be at any store, so every shard is asked
+        int rowCount = printRows(ORDER_HEADER, esql.gatherOrders(query, true, 0));
+        if (rowCount == 0) {
+            System.out.println("No orders found.");
+        }
+        
+
+    } catch (Exception e) {
+        System.err.println("Error retrieving order history: " + e.getMessage());
+    }
+}
+
+   /*
+   See Recent 5 OrderIDs: Similar to the last section, customers can see their order
+   history, but limit the output to the 5 most recent orders.
+   */
+
+   public static void viewRecentOrders(PizzaStore esql, String login, String role) {
+      beginOperation("viewRecentOrders");
+
+      try {
+         String query;
+        
+         if (role.equals("customer")) {
+            query = String.format("SELECT %s FROM %s WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5;", ORDER_COLUMNS, orderView(false), login);
+         } 
+         else {
+            System.out.println("Enter login of user who's order history you want to see: ");
+            String update_login = in.readLine();
+            query = String.format("SELECT %s FROM %s WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5;", ORDER_COLUMNS, orderView(false), update_login);
+         }
+
+         int rowCount = printRows(ORDER_HEADER, esql.gatherOrders(query, true, 5));
+         if (rowCount == 0) {
+            System.out.println("No orders found.");
+         }
+        
+
+    } 
+    catch (Exception e) {
+        System.err.println("Error retrieving order history: " + e.getMessage());
+    }
+   }
+
+
+   /*
+   Lookup Specific Order: Customers will be able to view details about a specific order.
+   They should be able to see their orderTimestamp, totalPrice, orderStatus, and list of
+   items in that order (along with the quantity). A customer is not allowed to see the
+   order information of orders that belong to other customers. Managers & Drivers
+   are allowed to see all orders from anyone.
+   */
+
+   public static void viewOrderInfo(PizzaStore esql, String login, String role) {
+      beginOperation("viewOrderInfo");
+      try {
+         String existsQuery = "";
+         role = role.trim();
+         int orderID;
+         boolean fullHistory;
+         if (role.equals("customer")) {
+
+            System.out.print("Enter Order ID: ");
+            orderID = Integer.parseInt(in.readLine());
+            fullHistory = readYesNo("Search archived orders too? (y/n): ");
+            existsQuery = String.format("SELECT %s FROM %s WHERE orderID = %d AND login = '%s';", ORDER_COLUMNS, orderView(fullHistory), orderID, login);
+
+            if (!printOrder(esql, orderID, existsQuery, fullHistory)) {
+               System.out.println("Order ID not found! Returning to menu.");
+               return;
+            }
+         }
+
+         else {
+
+            System.out.println("Enter the login of the person who's food order you want to see: ");
+            String update_login = in.readLine();
+            fullHistory = readYesNo("Search archived orders too? (y/n): ");
+
+            if (orderStats(esql, update_login) == null) {
+               System.out.println("Orders under specified login not found! Returning to menu.");
+               return;
+            }
+
+
+            System.out.println("Enter Order ID: ");
+            orderID = Integer.parseInt(in.readLine());
+            existsQuery = String.format("SELECT %s FROM %s WHERE orderID = %d AND login = '%s';", ORDER_COLUMNS, orderView(fullHistory), orderID, update_login);
+
+            if (!printOrder(esql, orderID, existsQuery, fullHistory)) {
+               System.out.println("Order ID not found! Returning to menu.");
+               return;
+            }
+
+
+
+
+         }
+
+      }
+
+      catch (Exception e) {
+        System.err.println("Error looking up order: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Prints the order a query finds and the items in it, from the shard it is on
+    * @return false if no shard has the order
+    **/
+   private static boolean printOrder(PizzaStore esql, int orderID, String orderQuery, boolean fullHistory) throws SQLException {
+      int[] shard = new int[1];
+      List<String[]> rows = new ArrayList<String[]>();
+      for (List<String> row : esql.findOrder(orderID, orderQuery, shard)) rows.add(row.toArray(new String[row.size()]));
+      if (rows.isEmpty()) return false;
+      printRows(ORDER_HEADER, rows);
+      esql.executeQueryAndPrintResult(shard[0], String.format("SELECT * FROM %s WHERE orderID = %d;", itemsInOrderTable(fullHistory), orderID));
+      return true;
+   }//end printOrder
+
+   /*
+   View Stores: Customers should be able to view the list of all stores. They should see all
+   information about the location of the store, the storeID, the review score, and whether or
+   not it is open.
+   */
+
+   public static void viewStores(PizzaStore esql) {
+      beginOperation("viewStores");
+
+      try {
+         printRows(Catalog.STORE_COLUMNS, esql.catalog().stores(esql));
+      }
+
+      catch (Exception e) {
+        System.err.println("Error viewing stores: " + e.getMessage());
+      }
+   }
+   
+   /*
+   Drivers: Drivers should be able to update the order status field of any given order.
+   Managers should be able to do this as well.
+   */
+
+   public static void updateOrderStatus(PizzaStore esql) {
+      beginOperation("updateOrderStatus");
+
+      try {
+         System.out.println("Enter Order ID: ");
+         int orderID = Integer.parseInt(in.readLine());
+         String existsQuery = String.format("SELECT orderStatus FROM FoodOrder WHERE orderID = %d;", orderID);
+         int[] found = new int[1];
+         List<List<String>> result = esql.findOrder(orderID, existsQuery, found);
+         int shard = found[0];
+         if (result.isEmpty()) {
+            System.out.println("OrderID not found! Returning to menu.");
+            return;
+         }
+         OrderStatus current = OrderStatus.fromCode(Integer.parseInt(result.get(0).get(0)));
+         System.out.println("Current Order Status: " + current.label);
+
+
+         System.out.println("Enter New Order Status: ");
+         OrderStatus newStatus = readOrderStatus();
+         if (newStatus == null) {
+            System.out.println("Not a valid status. Returning to menu.");
+            return;
+         }
+         if (!current.canMoveTo(newStatus)) {
+            System.out.println("Cannot change a " + current.label + " order to " + newStatus.label + ". Returning to menu.");
+            return;
+         }
+         // the status may have moved on since it was read; only a valid transition matches
+         String updateQuery = String.format("UPDATE FoodOrder SET orderStatus = %d WHERE orderID = %d AND orderStatus IN (%s) RETURNING storeID, orderTimestamp;",
+            newStatus.code, orderID, newStatus.predecessors());
+         result = esql.executeQueryAndReturnResult(shard, updateQuery);
+         if (result.isEmpty()) {
+            System.out.println("Order status was changed by someone else. Returning to menu.");
+            return;
+         }
+         List<String> order = result.get(0);
+         // keep the dispatch board in step: only orders still waiting for a driver stay on it
+         if (newStatus == OrderStatus.PREPARING) {
+            esql.dispatch().add(orderID, Integer.parseInt(order.get(0)), Timestamp.valueOf(order.get(1)).getTime());
+         }
+         else {
+            esql.dispatch().remove(orderID);
+         }
+         System.out.println("Status Updated Successfully!");
+
+
+      }
+
+      catch (Exception e) {
+        System.err.println("Error viewing stores: " + e.getMessage());
+      }
+
+   }
+
+   /*
+   Claim Delivery: a driver takes the oldest order waiting at a store. The order is
+   set to out-for-delivery so nobody else picks it up.
+   */
+
+   public static void claimDelivery(PizzaStore esql, String login) {
+      beginOperation("claimDelivery");
+      try {
+         System.out.print("Enter Store ID: ");
+         int storeID = Integer.parseInt(in.readLine());
+
+         DispatchBoard.Ticket ticket;
+         while ((ticket = esql.dispatch().claimNext(storeID)) != null) {
+            // another instance may have claimed or finished it since the board was loaded
+            String claimQuery = String.format("UPDATE FoodOrder SET orderStatus = %d WHERE orderID = %d AND %s;",
+               OrderStatus.OUT_FOR_DELIVERY.code, ticket.orderID, OrderStatus.WAITING);
+            int shard = esql.shards().ofStore(ticket.storeID);
+            if (esql.executeUpdate(shard, claimQuery) == 1) {
+               System.out.println("Order " + ticket.orderID + " claimed by " + login + ". Items to deliver:");
+               esql.executeQueryAndPrintResult(shard, String.format("SELECT orderID, itemName, quantity FROM %s WHERE orderID = %d;", itemsInOrderTable(false), ticket.orderID));
+               return;
+            }
+         }
+         System.out.println("No orders waiting at this store.");
+      }
+
+      catch (Exception e) {
+         System.err.println("Error claiming order: " + e.getMessage());
+      }
+   }
+
+   /*
+   Open Orders: the oldest orders waiting for a driver at a store.
+   */
+
+   public static void viewOpenOrders(PizzaStore esql) {
+      beginOperation("viewOpenOrders");
+      try {
+         System.out.print("Enter Store ID: ");
+         int storeID = Integer.parseInt(in.readLine());
+         List<String[]> rows = new ArrayList<String[]>();
+         for (DispatchBoard.Ticket ticket : esql.dispatch().peek(storeID, 20)) {
+            rows.add(new String[] {String.valueOf(ticket.orderID), new Timestamp(ticket.timestamp).toString()});
+         }
+         if (printRows(new String[] {"orderid", "ordertimestamp"}, rows) == 0) {
+            System.out.println("No orders waiting at this store.");
+         }
+      }
+
+      catch (Exception e) {
+         System.err.println("Error viewing open orders: " + e.getMessage());
+      }
+   }
+
+   /*
+   Orders By Status: for Managers, the orders at one store or all stores that are
+   in a given status, or every open order. Open statuses are answered from the
+   small Open_Order_Index instead of the whole FoodOrder table.
+   */
+
+   public static void viewOrdersByStatus(PizzaStore esql) {
+      beginOperation("viewOrdersByStatus");
+      try {
+         System.out.print("Enter Store ID (0 for all stores): ");
+         int storeID = Integer.parseInt(in.readLine());
+         System.out.println("Which orders would you like to see?");
+         System.out.println("0. all open orders");
+         printOrderStatuses();
+         String choice = in.readLine().trim();
+         OrderStatus status = parseOrderStatus(choice);
+         if (status == null && !choice.equals("0")) {
+            System.out.println("Not a valid status. Returning to menu.");
+            return;
+         }
+
+         String filter = status == null ? OrderStatus.OPEN : "orderStatus = " + status.code;
+         if (storeID != 0) filter += " AND storeID = " + storeID;
+         String query = String.format("SELECT %s FROM %s WHERE %s ORDER BY orderTimestamp;", ORDER_COLUMNS, orderView(false), filter);
+         int rowCount = storeID != 0
+            ? esql.executeQueryAndPrintResult(esql.shards().ofStore(storeID), query)
+            : printRows(ORDER_HEADER, esql.gatherOrders(query, false, 0));
+         if (rowCount == 0) {
+            System.out.println("No orders found.");
+         }
+      }
+
+      catch (Exception e) {
+         System.err.println("Error retrieving orders: " + e.getMessage());
+      }
+   }
+
+   /*
+   Export Data: for Managers. Streams order history, order items, the menu or the
+   stores straight to a local CSV or NDJSON file. Rows come from a server-side
+   cursor a batch at a time on a separate connection, so memory stays flat however
+   large the export is.
+   */
+
+   public static void exportData(PizzaStore esql) {
+      beginOperation("exportData");
+      try {
+         System.out.print("EXPORT DATA\n");
+         System.out.print("-----------\n");
+         System.out.print("1. Order history of a user\n");
+         System.out.print("2. Order history of a store\n");
+         System.out.print("3. Items in orders of a store\n");
+         System.out.print("4. Menu\n");
+         System.out.print("5. Stores\n");
+         System.out.print(".....................................................\n");
+         System.out.print("6. Go Back\n");
+         int input = readChoice();
+
+         String query;
+         int[] shards = {0};
+         switch (input) {
+            case 1:
+               System.out.print("Enter login: ");
+               String login = in.readLine();
+               query = String.format("SELECT %s FROM %s WHERE login = '%s'%s ORDER BY orderTimestamp;",
+                  ORDER_COLUMNS, orderView(readYesNo("Include archived orders? (y/n): ")), login, readDateRange());
+               shards = esql.shards().all();
+               break;
+            case 2:
+               System.out.print("Enter Store ID: ");
+               int storeID = Integer.parseInt(in.readLine());
+               query = String.format("SELECT %s FROM %s WHERE storeID = %d%s ORDER BY orderTimestamp;",
+                  ORDER_COLUMNS, orderView(readYesNo("Include archived orders? (y/n): ")), storeID, readDateRange());
+               shards[0] = esql.shards().ofStore(storeID);
+               break;
+            case 3:
+               System.out.print("Enter Store ID: ");
+               int itemsStoreID = Integer.parseInt(in.readLine());
+               boolean fullHistory = readYesNo("Include archived orders? (y/n): ");
+               query = String.format(
+                  "SELECT FoodOrder.orderID, FoodOrder.storeID, FoodOrder.orderTimestamp, ItemsInOrder.itemName, ItemsInOrder.quantity " +
+                  "FROM %s JOIN %s ON ItemsInOrder.orderID = FoodOrder.orderID WHERE storeID = %d%s ORDER BY FoodOrder.orderTimestamp;",
+                  orderTable(fullHistory), itemsInOrderTable(fullHistory), itemsStoreID, readDateRange());
+               shards[0] = esql.shards().ofStore(itemsStoreID);
+               break;
+            case 4:
+               query = Catalog.ITEMS_QUERY + " ORDER BY itemName;";
+               break;
+            case 5:
+               query = Catalog.STORES_QUERY + " ORDER BY storeID;";
+               break;
+            default:
+               return;
+         }
+
+         System.out.println("1. CSV");
+         System.out.println("2. NDJSON");
+         boolean ndjson = readChoice() == 2;
+         System.out.print("Enter path of output file: ");
+         String path = in.readLine().trim();
+
+         long start = System.nanoTime();
+         long rows = esql.exportQuery(shards, query, path, ndjson);
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.println(String.format("Exported %d rows to %s in %.2f s (%.0f rows/s)",
+            rows, path, seconds, rows / Math.max(seconds, 1e-9)));
+      }
+
+      catch (Exception e) {
+         System.err.println("Error exporting data: " + e.getMessage());
+      }
+   }
+
+   /*
+   Check Order Statistics: for Managers. Compares each shard's UserOrderStats with
+   totals recomputed from the orders and offers to rewrite the rows that have
+   drifted, e.g. after orders were changed by hand with the triggers off.
+   */
+
+   public static void checkOrderStats(PizzaStore esql) {
+      beginOperation("checkOrderStats");
+      try {
+         int drifted = 0;
+         List<List<List<String>>> results = esql.executeQueryOnAllShards(
+            "SELECT login, storedCount, actualCount, storedSpend, actualSpend, storedLastOrder, actualLastOrder FROM UserOrderStatsDrift ORDER BY login LIMIT 100;");
+         for (int shard = 0; shard < results.size(); shard++) {
+            List<String[]> rows = new ArrayList<String[]>();
+            for (List<String> row : results.get(shard)) {
+               row.add(0, String.valueOf(shard));
+               rows.add(row.toArray(new String[row.size()]));
+            }
+            drifted += printRows(new String[] {"shard", "login", "storedcount", "actualcount", "storedspend", "actualspend", "storedlastorder", "actuallastorder"}, rows);
+         }
+         if (drifted == 0) {
+            System.out.println("Order statistics match the orders.");
+            return;
+         }
+         if (!readYesNo("Repair them? (y/n): ")) return;
+         int repaired = 0;
+         for (List<List<String>> rows : esql.executeQueryOnAllShards("SELECT repair_user_order_stats();")) {
+            repaired += Integer.parseInt(rows.get(0).get(0));
+         }
+         System.out.println("Repaired order statistics of " + repaired + " users.");
+      }
+
+      catch (Exception e) {
+         System.err.println("Error checking order statistics: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Reads an optional orderTimestamp range
+    * @return an SQL condition starting with AND, or an empty string
+    **/
+   public static String readDateRange() throws java.io.IOException {
+      System.out.print("Enter start date (YYYY-MM-DD, blank for no limit): ");
+      String from = in.readLine().trim();
+      System.out.print("Enter end date (YYYY-MM-DD, blank for no limit): ");
+      String to = in.readLine().trim();
+      String range = "";
+      if (!from.isEmpty()) range += String.format(" AND FoodOrder.orderTimestamp >= DATE '%s'", LocalDate.parse(from));
+      if (!to.isEmpty()) range += String.format(" AND FoodOrder.orderTimestamp < DATE '%s' + 1", LocalDate.parse(to));
+      return range;
+   }//end readDateRange
+
+   /*
+   Database Load: for Managers, how the admission controller is treating each
+   priority class.
+   */
+
+   public static void viewDatabaseLoad(PizzaStore esql) {
+      System.out.println("DATABASE LOAD (" + esql._admission.summary() + ")");
+      printRows(new String[] {"class", "admitted", "rejected", "avgqueuems", "maxqueuems"}, esql._admission.report());
+      System.out.println("TIMEOUTS BY OPERATION");
+      if (printRows(new String[] {"operation", "limitms", "timeouts"}, esql.deadlines().report()) == 0) {
+         System.out.println("None.");
+      }
+   }
+
+   /*
+   Favorite Audience: for Managers, the users who favorited an item, with their
+   phone numbers, e.g. to announce a promotion on it. Read from the in-memory
+   favorites and user catalog, so it does not touch the database once warm.
+   */
+
+   public static void viewFavoriteAudience(PizzaStore esql) {
+      beginOperation("viewFavoriteAudience");
+      try {
+         System.out.print("Enter Item Name: ");
+         String itemName = in.readLine().trim();
+         if (esql.catalog().item(esql, itemName) == null) {
+            System.out.println("Item not found! Returning to menu.");
+            return;
+         }
+         FavoritesIndex favorites = esql.catalog().favorites(esql);
+         long start = System.nanoTime();
+         List<String[]> rows = new ArrayList<String[]>();
+         for (String login : favorites.audience(itemName)) {
+            String[] user = esql.catalog().user(esql, login);
+            if (user != null) rows.add(new String[] {login, user[3]});
+         }
+         long elapsed = System.nanoTime() - start;
+         printRows(new String[] {"login", "phonenum"}, rows);
+         System.out.println(String.format("%d users favorited %s (found in %.2f ms)", rows.size(), itemName, elapsed / 1e6));
+      }
+      catch (Exception e) {
+         System.err.println("Error finding favorite audience: " + e.getMessage());
+      }
+   }
+
+   /*
+   Database Health: for Managers. For each shard, the statements taking the most
+   time, indexes that have never been used, and tables with enough dead rows that
+   autovacuum should be getting to them, followed by what the stats sampler has
+   seen per operation.
+   */
+
+   public static void viewDatabaseHealth(PizzaStore esql) {
+      beginOperation("viewDatabaseHealth");
+      try {
+         for (int shard = 0; shard < esql.shards().count(); shard++) {
+            if (esql.shards().count() > 1) System.out.println("SHARD " + shard);
+
+            System.out.println("HOTTEST STATEMENTS");
+            try {
+               String time = Integer.parseInt(esql.executeQueryAndReturnResult(shard, "SELECT current_setting('server_version_num');").get(0).get(0)) >= 130000
+                  ? "total_exec_time" : "total_time";
+               esql.executeQueryAndPrintResult(shard, String.format(
+                  "SELECT %s AS operation, calls, round(%s::numeric, 1) AS totalms, round((%s / calls)::numeric, 2) AS meanms, rows, " +
+                  "left(regexp_replace(query, '^/\\* \\w+ \\*/ ', ''), 80) AS statement " +
+                  "FROM pg_stat_statements WHERE dbid = (SELECT oid FROM pg_database WHERE datname = current_database()) AND calls > 0 " +
+                  "ORDER BY %s DESC LIMIT 10;",
+                  String.format(StatsSampler.OPERATION, "query"), time, time, time));
+            }
+            catch (SQLException e) {
+               System.out.println("pg_stat_statements is not available: " + e.getMessage().trim());
+            }
+
+            // primary keys and unique indexes enforce constraints, so only the ones create_indexes.sql adds are listed
+            System.out.println("UNUSED INDEXES");
+            if (esql.executeQueryAndPrintResult(shard,
+                  "SELECT s.relname AS tablename, s.indexrelname AS indexname, pg_size_pretty(pg_relation_size(s.indexrelid)) AS size " +
+                  "FROM pg_stat_user_indexes s JOIN pg_index i ON i.indexrelid = s.indexrelid " +
+                  "WHERE s.idx_scan = 0 AND NOT i.indisprimary AND NOT i.indisunique ORDER BY pg_relation_size(s.indexrelid) DESC;") == 0) {
+               System.out.println("None.");
+            }
+
+            // autovacuum's default threshold: 50 rows plus 20% of the table
+            System.out.println("TABLES NEEDING VACUUM");
+            if (esql.executeQueryAndPrintResult(shard,
+                  "SELECT relname AS tablename, n_live_tup AS liverows, n_dead_tup AS deadrows, " +
+                  "GREATEST(last_vacuum, last_autovacuum) AS lastvacuum FROM pg_stat_user_tables " +
+                  "WHERE n_dead_tup > 50 + 0.2 * n_live_tup ORDER BY n_dead_tup DESC;") == 0) {
+               System.out.println("None.");
+            }
+         }
+
+         StatsSampler sampler = esql.sampler();
+         if (sampler == null) {
+            System.out.println("The stats sampler is off (pizza.stats.enabled).");
+            return;
+         }
+         System.out.println("OPERATIONS IN THE LAST SAMPLE");
+         List<String[]> operations = new ArrayList<String[]>(sampler.lastOperations());
+         Collections.sort(operations, new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+               return Long.compare(Long.parseLong(b[3]), Long.parseLong(a[3]));
+            }
+         });
+         if (printRows(new String[] {"shard", "operation", "calls", "totalms", "cachehit%"}, operations) == 0) {
+            System.out.println("None yet.");
+         }
+         System.out.println("LOCK WAITS BY OPERATION");
+         if (printRows(new String[] {"operation", "sampleswaiting"}, sampler.lockWaits()) == 0) {
+            System.out.println("None seen.");
+         }
+      }
+      catch (Exception e) {
+         System.err.println("Error reading database health: " + e.getMessage());
+      }
+   }
+
+   /*
+    Update Food Item Information: For Managers, they can update the information of any
+    item in the menu given the itemName. They should also be able to add new items.
+    */
+
+   public static void updateMenu(PizzaStore esql) {
+      beginOperation("updateMenu");
+      try {
+         System.out.print("UPDATE FOOD ITEM INFORMATION\n");
+         System.out.print("----------------------------\n");
+	      System.out.print("1. Update item\n");
+	      System.out.print("2. Add new item\n");
+         System.out.print(".....................................................\n");
+         System.out.print("3. Go Back\n");
+         System.out.print("Please make your choice: ");
+
+	 int input = Integer.parseInt(in.readLine());
+	 String itemName;
+	 switch(input) {
+	   case 1:
+	      System.out.print("Enter the name of the item to update (end with * to list matches): ");
+            String typed = in.readLine();
+            itemName = resolveItem(esql, typed, "Item not found! Returning to menu.");
+
+               // answered from the catalog; the update below also checks its row count
+               if (itemName == null) {
+                  if (typed.trim().endsWith("*")) System.out.println("Returning to menu.");
+                  return;
+               }
+
+               System.out.println("What would you like to update?");
+               System.out.println("1. Price");
+               System.out.println("2. Type");
+               System.out.println("3. Description");
+	       System.out.println("4. Ingredients");
+	       System.out.println("5. Name");
+               System.out.print("Enter choice: ");
+               int option = Integer.parseInt(in.readLine());
+
+               String updateQuery = "";
+               String newName = itemName;
+               switch (option) {
+                  case 1:
+                     System.out.print("Enter new price: ");
+                     double newPrice = Double.parseDouble(in.readLine());
+                     updateQuery = String.format("UPDATE Items SET price = %.2f WHERE itemName = '%s';", newPrice, itemName);
+                     break;
+                  case 2:
+                     System.out.print("Enter new type: ");
+                     String newType = in.readLine();
+                     updateQuery = String.format("UPDATE Items SET typeOfItem = '%s' WHERE itemName = '%s';", newType, itemName);
+                     break;
+                  case 3:
+                     System.out.print("Enter new description: ");
+                     String newDesc = in.readLine();
+                     updateQuery = String.format("UPDATE Items SET description = '%s' WHERE itemName = '%s';", newDesc, itemName);
+                     break;
+
+                  case 4:
+                     System.out.print("Enter new ingredients: ");
+                     String newIngredients = in.readLine();
+                     updateQuery = String.format("UPDATE Items SET ingredients = '%s' WHERE itemName = '%s';", newIngredients, itemName);
+                     break;
+
+                  case 5:
+                     System.out.print("Enter new name: ");
+                     newName = in.readLine();
+                     if (esql.catalog().item(esql, newName) != null) {
+                        System.out.println("Item name already taken! Returning to menu.");
+                        return;
+                     }
+                     // renames nothing if the name was taken since the catalog was read, and also
+                     // says whether the item was still there, to tell the two apart
+                     updateQuery = String.format(
+                        "WITH target AS (SELECT itemName FROM Items WHERE itemName = '%2$s'), " +
+                        "renamed AS (UPDATE Items SET itemName = '%1$s' WHERE itemName = '%2$s' AND NOT EXISTS (SELECT 1 FROM Items WHERE itemName = '%1$s') RETURNING itemName) " +
+                        "SELECT (SELECT COUNT(*) FROM target), (SELECT COUNT(*) FROM renamed);", newName, itemName);
+                     break;
+
+                  default:
+                     System.out.println("Invalid choice! Returning to menu.");
+                     return;
+               }
+               if (option == 5) {
+                  List<String> outcome = esql.executeQueryAndReturnResult(updateQuery).get(0);
+                  if (outcome.get(0).equals("0")) {
+                     System.out.println("Item not found! Returning to menu.");
+                     return;
+                  }
+                  if (outcome.get(1).equals("0")) {
+                     System.out.println("Item name already taken! Returning to menu.");
+                     return;
+                  }
+               }
+               else if (esql.executeUpdate(updateQuery) == 0) {
+                  System.out.println("Item not found! Returning to menu.");
+                  return;
+               }
+               esql.catalog().refreshItem(esql, itemName);
+               if (!newName.equals(itemName)) {
+                  esql.catalog().refreshItem(esql, newName);
+                  // UserFavorites followed the rename through ON UPDATE CASCADE
+                  esql.catalog().itemRenamed(itemName, newName);
+               }
+               System.out.println("Item updated successfully!");
+	            break;
+
+	     case 2:
+	        System.out.print("Enter Item Name\n");
+	        itemName = in.readLine();
+
+	       // answered from the catalog; the insert below skips a name taken since then
+	       if (esql.catalog().item(esql, itemName) != null) {
+	          System.out.print("Item already exists!\n");
+		  break;
+	       }
+
+	       System.out.print("Enter Ingredients\n");
+               String ingredients = in.readLine();
+
+	       System.out.print("Enter Type Of Item\n");
+               String typeOfItem = in.readLine();
+
+	       System.out.print("Enter Price\n");
+	       double price = Double.parseDouble(in.readLine());
+
+	       System.out.print("Enter Description\n");
+               String description = in.readLine();
+
+
+	       String insertQuery = String.format("INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ('%s', '%s', '%s', %.2f, '%s') ON CONFLICT (itemName) DO NOTHING;", itemName, ingredients, typeOfItem, price, description);
+
+               if (esql.executeUpdate(insertQuery) == 0) {
+	          System.out.print("Item already exists!\n");
+		  break;
+               }
+               esql.catalog().refreshItem(esql, itemName);
+               System.out.println("New item added successfully!");
+	       break;
+
+	    default:
+	       break;
+	 }
+      }
+
+      catch (Exception e) {
+        System.err.println("Error creating user: " + e.getMessage());
+      }
+   }
+
+   /*
+    Bulk Menu Update: for Managers. Imports a whole CSV of items (same columns as
+    items.csv) as batched upserts in one transaction, or reprices many items at once
+    with rules per typeOfItem. Both print a summary of what changed.
+    */
+
+   public static void bulkUpdateMenu(PizzaStore esql) {
+      beginOperation("bulkUpdateMenu");
+      try {
+         System.out.print("BULK MENU UPDATE\n");
+         System.out.print("----------------\n");
+         System.out.print("1. Import items from CSV\n");
+         System.out.print("2. Reprice items\n");
+         System.out.print(".....................................................\n");
+         System.out.print("3. Go Back\n");
+         System.out.print("Please make your choice: ");
+
+         switch (Integer.parseInt(in.readLine())) {
+            case 1:
+               System.out.print("Enter path of CSV file: ");
+               importMenu(esql, in.readLine().trim());
+               break;
+            case 2:
+               repriceMenu(esql);
+               break;
+            default:
+               break;
+         }
+      }
+
+      catch (Exception e) {
+         System.err.println("Error updating menu: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Streams itemName,ingredients,typeOfItem,price,description rows from a CSV
+    * file with a header line into Items with INSERT ... ON CONFLICT DO UPDATE,
+    * sent in batches and committed as one transaction. Rows identical to the
+    * current item are left untouched.
+    **/
+   public static void importMenu(PizzaStore esql, String path) throws Exception {
+      final int batchSize = config("import.batch", 500);
+      long start = System.nanoTime();
+
+      // current prices, to tell inserts, updates and price changes apart
+      Map<String, BigDecimal> existing = new HashMap<String, BigDecimal>();
+      for (List<String> row : esql.executeQueryAndReturnResult("SELECT itemName, price FROM Items;")) {
+         existing.put(row.get(0), new BigDecimal(row.get(1)));
+      }
+
+      String upsert =
+         "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES (?, ?, ?, ?, ?) " +
+         "ON CONFLICT (itemName) DO UPDATE SET ingredients = EXCLUDED.ingredients, typeOfItem = EXCLUDED.typeOfItem, " +
+         "price = EXCLUDED.price, description = EXCLUDED.description " +
+         "WHERE (Items.ingredients, Items.typeOfItem, Items.price, Items.description) IS DISTINCT FROM " +
+         "(EXCLUDED.ingredients, EXCLUDED.typeOfItem, EXCLUDED.price, EXCLUDED.description);";
+
+      int lines = 0, rejected = 0;
+      int[] tally = new int[4]; // inserted, updated, price changes, unchanged
+      List<String> batchNames = new ArrayList<String>();
+      List<BigDecimal> batchPrices = new ArrayList<BigDecimal>();
+      // on its own connection, so the transaction never takes over the interactive one
+      AdmissionController.Permit permit = esql._admission.acquire(operation());
+      SQLException failure = null;
+      Connection conn = null;
+      PreparedStatement stmt = null;
+      BufferedReader reader = null;
+      try {
+         conn = esql.openConnection();
+         stmt = conn.prepareStatement(tag(upsert));
+         // before the transaction starts, so a rollback cannot undo the statement_timeout it sets
+         esql.applyDeadline(conn, stmt);
+         conn.setAutoCommit(false);
+         reader = new BufferedReader(new FileReader(path), 1 << 16);
+         String line = reader.readLine(); // header
+         while ((line = reader.readLine()) != null) {
+            lines++;
+            if (line.trim().isEmpty()) continue;
+            List<String> fields = parseCsvLine(line);
+            BigDecimal price;
+            try {
+               if (fields.size() < 4 || fields.get(0).isEmpty()) throw new NumberFormatException();
+               price = new BigDecimal(fields.get(3).trim()).setScale(2, RoundingMode.HALF_UP);
+            }
+            catch (NumberFormatException e) {
+               System.out.println("Skipping line " + (lines + 1) + ": " + line);
+               rejected++;
+               continue;
+            }
+            stmt.setString(1, fields.get(0));
+            stmt.setString(2, fields.get(1));
+            stmt.setString(3, fields.get(2));
+            stmt.setBigDecimal(4, price);
+            stmt.setString(5, fields.size() > 4 ? fields.get(4) : null);
+            stmt.addBatch();
+            batchNames.add(fields.get(0));
+            batchPrices.add(price);
+
+            if (batchNames.size() == batchSize) {
+               tallyBatch(stmt.executeBatch(), batchNames, batchPrices, existing, tally);
+               // the first batch's round trip is the import's latency; reading the rest of the file is not
+               permit.measure();
+            }
+         }
+         if (!batchNames.isEmpty()) {
+            tallyBatch(stmt.executeBatch(), batchNames, batchPrices, existing, tally);
+         }
+         conn.commit();
+      }
+      catch (Exception e) {
+         if (e instanceof SQLException) failure = (SQLException) e;
+         if (conn != null && !conn.getAutoCommit()) {
+            conn.rollback();
+            System.out.println("Import rolled back, no items were changed.");
+         }
+         throw e instanceof SQLException ? esql.timedOut((SQLException) e) : e;
+      }
+      finally {
+         try {
+            if (reader != null) reader.close();
+         }
+         finally {
+            if (conn != null) {
+               esql._serverTimeouts.remove(conn);
+               conn.close();
+            }
+            permit.release(failure);
+         }
+      }
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("Imported %d lines in %.2f s (%.0f rows/s)", lines, seconds, lines / Math.max(seconds, 1e-9)));
+      System.out.println(String.format("Inserted: %d  Updated: %d (%d price changes)  Unchanged: %d  Rejected: %d",
+         tally[0], tally[1], tally[2], tally[3], rejected));
+      if (tally[0] + tally[1] > 0) esql.catalog().reconcile(esql._connection);
+   }
+
+   // classifies each upsert of a batch by its update count and the price it replaced
+   private static void tallyBatch(int[] counts, List<String> names, List<BigDecimal> prices,
+                                  Map<String, BigDecimal> existing, int[] tally) {
+      for (int i = 0; i < counts.length; i++) {
+         BigDecimal oldPrice = existing.get(names.get(i));
+         if (counts[i] == 0) tally[3]++;
+         else if (oldPrice == null) tally[0]++;
+         else {
+            tally[1]++;
+            if (oldPrice.compareTo(prices.get(i)) != 0) tally[2]++;
+         }
+         existing.put(names.get(i), prices.get(i));
+      }
+      names.clear();
+      prices.clear();
+   }
+
+   /*
+    * Reads repricing rules such as "drinks +5%", "sides -0.50" or "* +5%" and
+    * applies them all in one UPDATE. The first matching rule wins for each item,
+    * and prices never go below zero.
+    **/
+   public static void repriceMenu(PizzaStore esql) throws Exception {
+      System.out.println("Enter rules as '<typeOfItem or *> <+/-amount>[%]', one per line. Empty line to finish.");
+      StringBuilder cases = new StringBuilder();
+      List<String> types = new ArrayList<String>();
+      boolean allTypes = false;
+      while (true) {
+         System.out.print("Rule: ");
+         String rule = in.readLine().trim();
+         if (rule.isEmpty()) break;
+         int split = rule.lastIndexOf(' ');
+         if (split < 0) {
+            System.out.println("Invalid rule! Try again.");
+            continue;
+         }
+         String type = rule.substring(0, split).trim();
+         String amount = rule.substring(split + 1).trim();
+         boolean percent = amount.endsWith("%");
+         BigDecimal value;
+         try {
+            value = new BigDecimal(percent ? amount.substring(0, amount.length() - 1) : amount);
+         }
+         catch (NumberFormatException e) {
+            System.out.println("Invalid amount! Try again.");
+            continue;
+         }
+         String newPrice = percent
+            ? String.format("round(o.price * (1 + %s / 100.0), 2)", value.toPlainString())
+            : String.format("o.price + %s", value.toPlainString());
+         if (type.equals("*")) {
+            cases.append(String.format(" WHEN true THEN %s", newPrice));
+            allTypes = true;
+         }
+         else {
+            cases.append(String.format(" WHEN o.typeOfItem = '%s' THEN %s", type, newPrice));
+            types.add("'" + type + "'");
+         }
+      }
+      if (cases.length() == 0) {
+         System.out.println("No rules entered. Returning to menu.");
+         return;
+      }
+
+      String filter = allTypes ? "" : String.format(" AND o.typeOfItem IN (%s)", String.join(", ", types));
+      // joining Items to itself gives RETURNING access to the old price
+      String query = String.format(
+         "UPDATE Items i SET price = GREATEST(CASE%s ELSE o.price END, 0) FROM Items o WHERE i.itemName = o.itemName%s " +
+         "RETURNING i.itemName, i.typeOfItem, o.price AS oldPrice, i.price AS newPrice;", cases, filter);
+
+      long start = System.nanoTime();
+      int rowCount = esql.executeQueryAndPrintResult(query);
+      System.out.println(String.format("Repriced %d items in %d ms", rowCount, (System.nanoTime() - start) / 1000000));
+      if (rowCount > 0) esql.catalog().reconcile(esql._connection);
+   }
+
+   /*
+    * Splits one CSV line, honouring double quoted fields and "" escapes
+    **/
+   public static List<String> parseCsvLine(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               field.append('"');
+               i++;
+            }
+            else if (c == '"') quoted = false;
+            else field.append(c);
+         }
+         else if (c == '"') quoted = true;
+         else if (c == ',') {
+            fields.add(field.toString());
+            field.setLength(0);
+         }
+         else field.append(c);
+      }
+      fields.add(field.toString());
+      return fields;
+   }
+
+   /*
+   Managers: Managers will be able view and update the information of all users (as well
+   as change their role) and update menu information.
+   */
+
+  //We didn't really need this function since other functions like update profile and update menu do its job.
+
+   // public static void updateUser(PizzaStore esql) {
+   // }
+
+   /*
+   Order Archival: delivered and cancelled orders older than pizza.archive.days are moved from
+   FoodOrder and ItemsInOrder into FoodOrderArchive and ItemsInOrderArchive. The
+   archiver works in small batches, each in its own short transaction on its own
+   connection, and sleeps between batches so it never holds locks for long. Each
+   shard has its own archiver.
+   */
+
+   static class OrderArchiver implements Runnable {
+
+      private final PizzaStore esql;
+      private final int shard;
+      private final int days;
+      private final int batchSize;
+      private final int pauseMillis;
+      private final int idleMillis;
+
+      public OrderArchiver(PizzaStore esql, int shard) {
+         this.esql = esql;
+         this.shard = shard;
+         this.days = config("archive.days", 90);
+         this.batchSize = config("archive.batch", 500);
+         this.pauseMillis = config("archive.pause.ms", 200);
+         this.idleMillis = config("archive.idle.ms", 600000);
+      }
+
+      public void run() {
+         int backoff = 1000;
+         while (!Thread.currentThread().isInterrupted()) {
+            Connection conn = null;
+            try {
+               conn = esql.openConnection(shard);
+               conn.setAutoCommit(false);
+               while (true) {
+                  int moved = archiveBatch(conn);
+                  backoff = 1000;
+                  // keep going while there is a backlog, otherwise wait for more orders to age out
+                  Thread.sleep(moved < batchSize ? idleMillis : pauseMillis);
+               }
+            }
+            catch (InterruptedException e) {
+               return;
+            }
+            catch (SQLException e) {
+               // a dropped connection, a deadlock or a failover; the batch was rolled back
+               System.err.println("Order archiver failed on shard " + shard + ": " + e.getMessage());
+            }
+            finally {
+               try {
+                  if (conn != null) conn.close();
+               }catch (SQLException e) {
+                  // ignored.
+               }
+            }
+            try {
+               Thread.sleep(backoff);
+            }
+            catch (InterruptedException e) {
+               return;
+            }
+            backoff = Math.min(backoff * 2, 60000);
+         }
+      }
+
+      /*
+       * Moves one batch of completed orders into the archive tables and commits.
+       * Rows locked by a concurrent status update are skipped and picked up later.
+       * @return the number of orders archived
+       */
+      public int archiveBatch(Connection conn) throws SQLException {
+         Statement stmt = conn.createStatement();
+         try {
+            String selectQuery = String.format(
+               "SELECT orderID FROM FoodOrder WHERE %s AND orderTimestamp < now() - interval '%d days' ORDER BY orderTimestamp LIMIT %d FOR UPDATE SKIP LOCKED;",
+               OrderStatus.TERMINAL, days, batchSize);
+            ResultSet rs = stmt.executeQuery(selectQuery);
+            StringBuilder ids = new StringBuilder();
+            int count = 0;
+            while (rs.next()) {
+               if (count++ > 0) ids.append(", ");
+               ids.append(rs.getInt(1));
+            }
+            rs.close();
+
+            if (count == 0) {
+               conn.commit();
+               return 0;
+            }
+
+            stmt.executeUpdate(String.format("INSERT INTO FoodOrderArchive SELECT * FROM FoodOrder WHERE orderID IN (%s);", ids));
+            stmt.executeUpdate(String.format("INSERT INTO ItemsInOrderArchive SELECT * FROM ItemsInOrder WHERE orderID IN (%s);", ids));
+            // ItemsInOrder rows go with their order through ON DELETE CASCADE
+            stmt.executeUpdate(String.format("DELETE FROM FoodOrder WHERE orderID IN (%s);", ids));
+            conn.commit();
+            return count;
+         }
+         catch (SQLException e) {
+            conn.rollback();
+            throw e;
+         }
+         finally {
+            stmt.close();
+         }
+      }
+   }//end OrderArchiver
+
+   /*
+   Catalog: in-memory copy of Items, Store and the role and profile columns of
+   Users (never passwords). It is backed by a memory-mapped columnar snapshot file,
+   so a restarted instance can answer menu, store and role lookups before it has
+   read anything from the database. Rows written since the snapshot was taken live
+   in a small overlay. A background reconciler reloads the tables, rewrites the
+   snapshot and swaps it in.
+   */
+
+   static class Catalog {
+
+      static final String[] ITEM_COLUMNS = {"itemname", "ingredients", "typeofitem", "price", "description"};
+      static final String[] STORE_COLUMNS = {"storeid", "address", "city", "state", "isopen", "reviewscore"};
+      static final String[] USER_COLUMNS = {"login", "role", "favoriteitems", "phonenum"};
+
+      static final String ITEMS_QUERY = "SELECT itemName, ingredients, typeOfItem, price, description FROM Items";
+      static final String STORES_QUERY = "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store";
+      static final String USERS_QUERY =
+         "SELECT login, trim(role), (SELECT string_agg(itemName, ', ' ORDER BY itemName) FROM UserFavorites f WHERE f.login = Users.login), phoneNum FROM Users";
+      static final String FAVORITES_QUERY = "SELECT itemName FROM UserFavorites WHERE login = '%s';";
+
+      // a row changed since the snapshot; values == null marks a deleted row
+      static class Row {
+         final String[] values;
+         final long stamp;
+
+         Row(String[] values) {
+            this.values = values;
+            this.stamp = System.nanoTime();
+         }
+      }
+
+      private final File file;
+      private final boolean enabled;
+      private volatile CatalogSnapshot base = null;
+      private final Map<String, Row> items = new ConcurrentHashMap<String, Row>();
+      private final Map<String, Row> stores = new ConcurrentHashMap<String, Row>();
+      private final Map<String, Row> users = new ConcurrentHashMap<String, Row>();
+      private final IngredientIndex ingredients = new IngredientIndex();
+      private final ItemNameIndex names = new ItemNameIndex();
+      private final FavoritesIndex favorites = new FavoritesIndex();
+
+      // newest CatalogChanges version when the tables were last loaded, -1 until then
+      private volatile long version = -1;
+
+      private String source = "database";
+      private long readyNanos = 0;
+      private volatile long firstServedNanos = 0;
+
+      public Catalog(File file, boolean enabled) {
+         this.file = file;
+         this.enabled = enabled;
+      }
+
+      /*
+       * Maps the snapshot file if there is one, otherwise loads the tables from
+       * the database and writes the first snapshot.
+       */
+      public static Catalog open(PizzaStore esql) {
+         Catalog catalog = new Catalog(new File(config("snapshot.file", "pizzastore.snapshot")),
+                                       config("cache", "true").equals("true"));
+         if (catalog.enabled) {
+            try {
+               if (catalog.file.exists()) {
+                  catalog.base = CatalogSnapshot.map(catalog.file);
+                  catalog.source = "snapshot";
+               }
+               else {
+                  catalog.base = catalog.rebuild(esql._connection);
+               }
+            }
+            catch (Exception e) {
+               System.err.println("Catalog snapshot unavailable, reading from database: " + e.getMessage());
+            }
+         }
+         catalog.readyNanos = System.nanoTime();
+         CatalogSnapshot b = catalog.base;
+         if (b != null) {
+            System.out.println(String.format("Catalog ready %d ms after startup from %s (%d items, %d stores, %d users)",
+               (catalog.readyNanos - START_NANOS) / 1000000, catalog.source, b.items.rows, b.stores.rows, b.users.rows));
+         }
+         return catalog;
+      }
+
+      // true when the catalog was served from a snapshot that may be out of date
+      public boolean needsReconcile() {
+         return base != null && source.equals("snapshot");
+      }
+
+      /*
+       * Reloads the tables on the given connection, replaces the snapshot file and
+       * swaps the new mapping in. Overlay rows older than the reload are dropped,
+       * rows written while it ran are kept.
+       */
+      public void reconcile(Connection conn) throws SQLException, IOException {
+         long started = System.nanoTime();
+         CatalogSnapshot old = base;
+         CatalogSnapshot fresh = rebuild(conn);
+         int changed = old == null ? 0 : old.diff(fresh);
+         base = fresh;
+         source = "database";
+         ingredients.invalidate();
+         names.invalidate();
+         // the listener needs it to find the fans of a renamed or deleted item
+         if (favorites.isBuilt()) loadFavorites(conn);
+         prune(items, started);
+         prune(stores, started);
+         prune(users, started);
+         System.out.println(String.format("Catalog reconciled with database in %d ms (%d rows changed since snapshot)",
+            (System.nanoTime() - started) / 1000000, changed));
+      }
+
+      private static void prune(Map<String, Row> overlay, long before) {
+         for (Map.Entry<String, Row> entry : overlay.entrySet()) {
+            if (entry.getValue().stamp < before) overlay.remove(entry.getKey(), entry.getValue());
+         }
+      }
+
+      // read before the tables, so a change made while they load is replayed from the log
+      private CatalogSnapshot rebuild(Connection conn) throws SQLException, IOException {
+         long loaded = Long.parseLong(query(conn, "SELECT COALESCE(MAX(version), 0) FROM CatalogChanges;").get(0)[0]);
+         CatalogSnapshot.write(file, query(conn, ITEMS_QUERY + ";"), query(conn, STORES_QUERY + ";"), query(conn, USERS_QUERY + ";"));
+         CatalogSnapshot fresh = CatalogSnapshot.map(file);
+         version = loaded;
+         return fresh;
+      }
+
+      // the change log version the tables were last loaded at; -1 if they have only come from a snapshot so far
+      public long version() {
+         return version;
+      }
+
+      private static List<String[]> query(Connection conn, String sql) throws SQLException {
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery(sql);
+         int numCol = rs.getMetaData().getColumnCount();
+         List<String[]> rows = new ArrayList<String[]>();
+         while (rs.next()) {
+            String[] row = new String[numCol];
+            for (int i = 0; i < numCol; i++) row[i] = rs.getString(i + 1);
+            rows.add(row);
+         }
+         stmt.close();
+         return rows;
+      }
+
+      /*
+       * Writes the current contents, including the overlay, back to the snapshot
+       * file so the next start is warm.
+       */
+      public void save() {
+         CatalogSnapshot b = base;
+         if (!enabled || b == null) return;
+         try {
+            CatalogSnapshot.write(file, merge(items, b.items), merge(stores, b.stores), merge(users, b.users));
+         }
+         catch (IOException e) {
+            System.err.println("Error saving catalog snapshot: " + e.getMessage());
+         }
+      }
+
+      public void report() {
+         if (firstServedNanos != 0) {
+            System.out.println(String.format("Startup to catalog ready: %d ms, to first served request: %d ms",
+               (readyNanos - START_NANOS) / 1000000, (firstServedNanos - START_NANOS) / 1000000));
+         }
+      }
+
+      private void served() {
+         if (firstServedNanos == 0) firstServedNanos = System.nanoTime();
+      }
+
+      public List<String[]> items(PizzaStore esql) throws SQLException {
+         CatalogSnapshot b = base;
+         return list(esql, items, b == null ? null : b.items, ITEMS_QUERY + ";");
+      }
+
+      /*
+       * The ingredient index over the current menu, built on first use.
+       */
+      public IngredientIndex ingredients(PizzaStore esql) throws SQLException {
+         if (!ingredients.isBuilt()) ingredients.build(items(esql));
+         return ingredients;
+      }
+
+      /*
+       * Item names starting with prefix, ignoring case. Served from memory, or
+       * from Items_Name_Lower_Index when the catalog is off.
+       */
+      public List<String> completeItem(PizzaStore esql, String prefix, int limit) throws SQLException {
+         if (enabled) {
+            if (!names.isBuilt()) names.build(items(esql));
+            return names.complete(prefix, limit);
+         }
+         return column(esql.executeQueryAndReturnResult(String.format(
+            "SELECT itemName FROM Items WHERE lower(itemName) LIKE '%s%%' ORDER BY lower(itemName) LIMIT %d;",
+            prefix.toLowerCase().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_"), limit)));
+      }
+
+      /*
+       * Item names that look like text, best first. Served from memory, or from
+       * Items_Name_Trgm_Index when the catalog is off.
+       */
+      public List<String> suggestItems(PizzaStore esql, String text, int limit) throws SQLException {
+         if (enabled) {
+            if (!names.isBuilt()) names.build(items(esql));
+            return names.suggest(text, limit);
+         }
+         return column(esql.executeQueryAndReturnResult(String.format(
+            "SELECT itemName FROM Items WHERE lower(itemName) %% lower('%s') ORDER BY similarity(lower(itemName), lower('%s')) DESC, itemName LIMIT %d;",
+            text, text, limit)));
+      }
+
+      private static List<String> column(List<List<String>> rows) {
+         List<String> values = new ArrayList<String>();
+         for (List<String> row : rows) values.add(row.get(0));
+         return values;
+      }
+
+      /*
+       * Who favorited what, built on first use.
+       */
+      public FavoritesIndex favorites(PizzaStore esql) throws SQLException {
+         if (!favorites.isBuilt()) favorites.build(esql.executeQueryAndReturnResult(FavoritesIndex.QUERY + ";"));
+         return favorites;
+      }
+
+      /*
+       * Builds the favorites index on the given connection, or builds it again.
+       */
+      public void loadFavorites(Connection conn) throws SQLException {
+         List<List<String>> rows = new ArrayList<List<String>>();
+         for (String[] row : query(conn, FavoritesIndex.QUERY + ";")) rows.add(Arrays.asList(row));
+         favorites.build(rows);
+      }
+
+      // an item renamed by this session; other instances re-read the users whose favorites it renamed
+      public void itemRenamed(String from, String to) {
+         if (favorites.isBuilt()) favorites.renameItem(from, to);
+      }
+
+      public List<String[]> stores(PizzaStore esql) throws SQLException {
+         CatalogSnapshot b = base;
+         return list(esql, stores, b == null ? null : b.stores, STORES_QUERY + ";");
+      }
+
+      public String[] item(PizzaStore esql, String itemName) throws SQLException {
+         CatalogSnapshot b = base;
+         return lookup(esql, items, b == null ? null : b.items, itemName,
+            String.format("%s WHERE itemName = '%s';", ITEMS_QUERY, itemName));
+      }
+
+      public String[] store(PizzaStore esql, int storeID) throws SQLException {
+         CatalogSnapshot b = base;
+         return lookup(esql, stores, b == null ? null : b.stores, String.valueOf(storeID),
+            String.format("%s WHERE storeID = %d;", STORES_QUERY, storeID));
+      }
+
+      public String[] user(PizzaStore esql, String login) throws SQLException {
+         CatalogSnapshot b = base;
+         return lookup(esql, users, b == null ? null : b.users, login,
+            String.format("%s WHERE login = '%s';", USERS_QUERY, login));
+      }
+
+      /*
+       * Write-through: re-reads a row this session just changed so later
+       * lookups see it. A row that no longer exists is recorded as deleted.
+       */
+      public void refreshItem(PizzaStore esql, String itemName) throws SQLException {
+         refresh(esql, items, itemName, String.format("%s WHERE itemName = '%s';", ITEMS_QUERY, itemName));
+      }
+
+      public void refreshUser(PizzaStore esql, String login) throws SQLException {
+         refresh(esql, users, login, String.format("%s WHERE login = '%s';", USERS_QUERY, login));
+      }
+
+      public boolean isEnabled() {
+         return enabled;
+      }
+
+      /*
+       * Applies a change made elsewhere, read from the change log: a deleted row
+       * is dropped, anything else is re-read on the given connection.
+       */
+      public void apply(Connection conn, String table, String key, boolean deleted) throws SQLException {
+         if (!enabled) return;
+         // a change to someone's favorites, which their Users row shows
+         if (table.equals("favorites")) {
+            table = "users";
+            deleted = false;
+         }
+         Map<String, Row> overlay;
+         String query;
+         String quoted = key.replace("'", "''");
+         if (table.equals("items")) {
+            overlay = items;
+            query = String.format("%s WHERE itemName = '%s';", ITEMS_QUERY, quoted);
+         }
+         else if (table.equals("store")) {
+            overlay = stores;
+            query = String.format("%s WHERE storeID = %d;", STORES_QUERY, Integer.parseInt(key.trim()));
+         }
+         else if (table.equals("users")) {
+            overlay = users;
+            query = String.format("%s WHERE login = '%s';", USERS_QUERY, quoted);
+         }
+         else {
+            return;
+         }
+         if (deleted) {
+            overlay.put(key, new Row(null));
+            if (overlay == items) {
+               ingredients.update(key, null);
+               if (names.isBuilt()) names.update(key, false);
+               refreshFans(conn, key);
+            }
+            if (overlay == users && favorites.isBuilt()) favorites.update(key, Collections.<String>emptyList());
+            return;
+         }
+         List<String[]> rows = query(conn, query);
+         overlay.put(key, new Row(rows.isEmpty() ? null : rows.get(0)));
+         if (overlay == items) {
+            ingredients.update(key, rows.isEmpty() ? null : rows.get(0));
+            if (names.isBuilt()) names.update(key, !rows.isEmpty());
+         }
+         if (overlay == users && favorites.isBuilt()) {
+            List<String> names = new ArrayList<String>();
+            for (String[] row : query(conn, String.format(FAVORITES_QUERY, quoted))) names.add(row[0]);
+            favorites.update(key, names);
+         }
+      }
+
+      /*
+       * Renaming or deleting an item changes its fans' UserFavorites rows through
+       * a cascade, which is logged once, as the item's old name going away, rather
+       * than once per fan. The fans the index knew for that name are re-read here
+       * in two queries however many there are. A rename's new name has no fans
+       * yet in the index, so it needs nothing.
+       */
+      private void refreshFans(Connection conn, String itemName) throws SQLException {
+         Set<String> fans = new HashSet<String>(favorites.audience(itemName));
+         if (fans.isEmpty()) return;
+
+         StringBuilder logins = new StringBuilder();
+         Map<String, List<String>> favoritesOf = new HashMap<String, List<String>>();
+         for (String login : fans) {
+            logins.append(logins.length() > 0 ? ", " : "").append('\'').append(login.replace("'", "''")).append('\'');
+            favoritesOf.put(login, new ArrayList<String>());
+         }
+         for (String[] row : query(conn, String.format("SELECT login, itemName FROM UserFavorites WHERE login IN (%s);", logins))) {
+            favoritesOf.get(row[0]).add(row[1]);
+         }
+         for (String[] row : query(conn, String.format("%s WHERE login IN (%s);", USERS_QUERY, logins))) {
+            users.put(row[0], new Row(row));
+         }
+         for (Map.Entry<String, List<String>> fan : favoritesOf.entrySet()) favorites.update(fan.getKey(), fan.getValue());
+      }
+
+      private void refresh(PizzaStore esql, Map<String, Row> overlay, String key, String query) throws SQLException {
+         if (overlay == users && favorites.isBuilt()) {
+            List<String> names = new ArrayList<String>();
+            for (List<String> row : esql.executeQueryAndReturnResult(String.format(FAVORITES_QUERY, key))) names.add(row.get(0));
+            favorites.update(key, names);
+         }
+         if (!enabled) {
+            // nothing to re-read the item into, so the index starts over
+            if (overlay == items) ingredients.invalidate();
+            return;
+         }
+         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         String[] values = result.isEmpty() ? null : result.get(0).toArray(new String[0]);
+         overlay.put(key, new Row(values));
+         if (overlay == items) {
+            ingredients.update(key, values);
+            if (names.isBuilt()) names.update(key, values != null);
+         }
+      }
+
+      private String[] lookup(PizzaStore esql, Map<String, Row> overlay, CatalogSnapshot.Table table,
+                              String key, String query) throws SQLException {
+         served();
+         if (enabled) {
+            Row row = overlay.get(key);
+            if (row != null) return row.values;
+            if (table != null) {
+               String[] values = table.find(key);
+               if (values != null) return values;
+            }
+         }
+         // not cached yet, e.g. a user created after the snapshot was taken
+         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         if (result.isEmpty()) return null;
+         String[] values = result.get(0).toArray(new String[0]);
+         if (enabled) overlay.put(key, new Row(values));
+         return values;
+      }
+
+      private List<String[]> list(PizzaStore esql, Map<String, Row> overlay, CatalogSnapshot.Table table,
+                                  String query) throws SQLException {
+         served();
+         if (!enabled || table == null) {
+            List<String[]> rows = new ArrayList<String[]>();
+            for (List<String> record : esql.executeQueryAndReturnResult(query)) rows.add(record.toArray(new String[0]));
+            return rows;
+         }
+         return merge(overlay, table);
+      }
+
+      private static List<String[]> merge(Map<String, Row> overlay, CatalogSnapshot.Table table) {
+         List<String[]> rows = new ArrayList<String[]>();
+         for (int i = 0; i < table.rows; i++) {
+            if (!overlay.containsKey(table.key(i))) rows.add(table.row(i));
+         }
+         for (Row row : overlay.values()) {
+            if (row.values != null) rows.add(row.values);
+         }
+         return rows;
+      }
+   }//end Catalog
+
+   /*
+   Ingredient Index: answers "with these ingredients, without those" over the menu
+   without scanning Items.ingredients text. Each item's ingredients are split into
+   tokens, every comma-separated ingredient and each word in it ("tomato sauce",
+   "tomato", "sauce"), and each token gets a bit in a dictionary. An item is then a
+   bitset, and a filter is two masks compared with it a 64-bit word at a time.
+   Changed items are re-indexed one at a time; new tokens get new bits and bits no
+   longer used stay until the next full build.
+   */
+
+   static class IngredientIndex {
+
+      private volatile Map<String, Integer> dictionary = new ConcurrentHashMap<String, Integer>();
+      private volatile Map<String, long[]> items = new ConcurrentHashMap<String, long[]>();
+      private volatile boolean built = false;
+
+      public boolean isBuilt() {
+         return built;
+      }
+
+      // the next lookup rebuilds the index, e.g. after a bulk menu update
+      public void invalidate() {
+         built = false;
+      }
+
+      /*
+       * Indexes every item from scratch.
+       * @param rows item rows as in Catalog.ITEMS_QUERY
+       */
+      public synchronized void build(List<String[]> rows) {
+         Map<String, Integer> words = new ConcurrentHashMap<String, Integer>();
+         Map<String, long[]> bits = new ConcurrentHashMap<String, long[]>();
+         for (String[] row : rows) {
+            bits.put(row[0], bitsOf(words, row[1]));
+         }
+         dictionary = words;
+         items = bits;
+         built = true;
+      }
+
+      /*
+       * Re-indexes one item.
+       * @param row the item's row as in Catalog.ITEMS_QUERY, or null if it was deleted
+       */
+      public synchronized void update(String itemName, String[] row) {
+         if (row == null) items.remove(itemName);
+         else items.put(itemName, bitsOf(dictionary, row[1]));
+      }
+
+      private static long[] bitsOf(Map<String, Integer> words, String ingredients) {
+         List<Integer> set = new ArrayList<Integer>();
+         int highest = -1;
+         for (String token : tokens(ingredients)) {
+            Integer bit = words.get(token);
+            if (bit == null) {
+               bit = words.size();
+               words.put(token, bit);
+            }
+            set.add(bit);
+            highest = Math.max(highest, bit);
+         }
+         long[] bits = new long[highest / 64 + 1];
+         for (int bit : set) bits[bit >> 6] |= 1L << bit;
+         return bits;
+      }
+
+      static Set<String> tokens(String ingredients) {
+         Set<String> tokens = new LinkedHashSet<String>();
+         if (ingredients == null) return tokens;
+         for (String ingredient : ingredients.toLowerCase().split(",")) {
+            String phrase = ingredient.trim().replaceAll("\\s+", " ");
+            if (phrase.isEmpty()) continue;
+            tokens.add(phrase);
+            for (String word : phrase.split(" ")) tokens.add(word);
+         }
+         return tokens;
+      }
+
+      /*
+       * The mask of some ingredients, entered like Items.ingredients.
+       * @param required true for ingredients an item must have: one nothing has
+       *        makes the mask null, which no item matches. Otherwise unknown
+       *        ingredients are ignored.
+       */
+      public long[] mask(String ingredients, boolean required) {
+         Map<String, Integer> words = dictionary;
+         long[] mask = new long[0];
+         if (ingredients == null) return mask;
+         for (String ingredient : ingredients.toLowerCase().split(",")) {
+            String phrase = ingredient.trim().replaceAll("\\s+", " ");
+            if (phrase.isEmpty()) continue;
+            Integer bit = words.get(phrase);
+            if (bit == null) {
+               if (required) return null;
+               continue;
+            }
+            if (bit >> 6 >= mask.length) mask = Arrays.copyOf(mask, (bit >> 6) + 1);
+            mask[bit >> 6] |= 1L << bit;
+         }
+         return mask;
+      }
+
+      // true if the item has every ingredient in include and none in exclude
+      public boolean matches(String itemName, long[] include, long[] exclude) {
+         if (include == null) return false;
+         long[] bits = items.get(itemName);
+         if (bits == null) bits = new long[0];
+         for (int w = 0; w < include.length; w++) {
+            long word = w < bits.length ? bits[w] : 0;
+            if ((word & include[w]) != include[w]) return false;
+         }
+         for (int w = 0; w < exclude.length && w < bits.length; w++) {
+            if ((bits[w] & exclude[w]) != 0) return false;
+         }
+         return true;
+      }
+
+      // every known ingredient, for showing what can be filtered on
+      public List<String> ingredients() {
+         List<String> names = new ArrayList<String>(dictionary.keySet());
+         Collections.sort(names);
+         return names;
+      }
+   }//end IngredientIndex
+
+   /*
+   Item Name Index: case-insensitive completion and "did you mean" for item names,
+   so a typo costs no round trip. Names are kept sorted by their lower case form
+   for prefix completion, and split into trigrams the way pg_trgm does (each word
+   padded with two spaces in front and one behind) for suggestions, ranked by the
+   share of trigrams two names have in common. Items_Name_Trgm_Index gives the same
+   answers from the database when the catalog is off.
+   */
+
+   static class ItemNameIndex {
+
+      // pg_trgm's default similarity threshold
+      static final double THRESHOLD = 0.3;
+
+      // lower case name + '\0' + name, so names differing only in case are both kept
+      private volatile ConcurrentSkipListMap<String, String> sorted = new ConcurrentSkipListMap<String, String>();
+      private volatile Map<String, Set<String>> byTrigram = new ConcurrentHashMap<String, Set<String>>();
+      private volatile Map<String, Integer> trigramCount = new ConcurrentHashMap<String, Integer>();
+      private volatile boolean built = false;
+
+      public boolean isBuilt() {
+         return built;
+      }
+
+      public void invalidate() {
+         built = false;
+      }
+
+      /*
+       * @param rows item rows as in Catalog.ITEMS_QUERY
+       */
+      public synchronized void build(List<String[]> rows) {
+         sorted = new ConcurrentSkipListMap<String, String>();
+         byTrigram = new ConcurrentHashMap<String, Set<String>>();
+         trigramCount = new ConcurrentHashMap<String, Integer>();
+         for (String[] row : rows) add(row[0]);
+         built = true;
+      }
+
+      // an item added, renamed to or from, or deleted; present tells which
+      public synchronized void update(String itemName, boolean present) {
+         if (present) {
+            if (!trigramCount.containsKey(itemName)) add(itemName);
+            return;
+         }
+         if (trigramCount.remove(itemName) == null) return;
+         sorted.remove(itemName.toLowerCase() + '\0' + itemName);
+         for (String trigram : trigrams(itemName)) {
+            Set<String> names = byTrigram.get(trigram);
+            if (names != null) names.remove(itemName);
+         }
+      }
+
+      private void add(String itemName) {
+         sorted.put(itemName.toLowerCase() + '\0' + itemName, itemName);
+         Set<String> trigrams = trigrams(itemName);
+         for (String trigram : trigrams) {
+            Set<String> names = byTrigram.get(trigram);
+            if (names == null) {
+               names = new ConcurrentSkipListSet<String>();
+               byTrigram.put(trigram, names);
+            }
+            names.add(itemName);
+         }
+         trigramCount.put(itemName, trigrams.size());
+      }
+
+      static Set<String> trigrams(String text) {
+         Set<String> trigrams = new HashSet<String>();
+         for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) continue;
+            String padded = "  " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) trigrams.add(padded.substring(i, i + 3));
+         }
+         return trigrams;
+      }
+
+      // names starting with prefix, ignoring case, in order
+      public List<String> complete(String prefix, int limit) {
+         List<String> names = new ArrayList<String>();
+         String from = prefix.toLowerCase();
+         for (Map.Entry<String, String> entry : sorted.tailMap(from).entrySet()) {
+            if (!entry.getKey().startsWith(from) || names.size() == limit) break;
+            names.add(entry.getValue());
+         }
+         return names;
+      }
+
+      // the names most like text, best first, with at least THRESHOLD similarity
+      public List<String> suggest(String text, int limit) {
+         Set<String> query = trigrams(text);
+         final Map<String, Double> scores = new HashMap<String, Double>();
+         Map<String, Integer> shared = new HashMap<String, Integer>();
+         for (String trigram : query) {
+            Set<String> names = byTrigram.get(trigram);
+            if (names == null) continue;
+            for (String name : names) {
+               Integer count = shared.get(name);
+               shared.put(name, count == null ? 1 : count + 1);
+            }
+         }
+         for (Map.Entry<String, Integer> entry : shared.entrySet()) {
+            Integer total = trigramCount.get(entry.getKey());
+            if (total == null) continue;
+            double similarity = entry.getValue() / (double) (query.size() + total - entry.getValue());
+            if (similarity >= THRESHOLD) scores.put(entry.getKey(), similarity);
+         }
+         List<String> names = new ArrayList<String>(scores.keySet());
+         Collections.sort(names, new Comparator<String>() {
+            public int compare(String a, String b) {
+               int cmp = Double.compare(scores.get(b), scores.get(a));
+               return cmp != 0 ? cmp : a.compareTo(b);
+            }
+         });
+         return names.size() > limit ? names.subList(0, limit) : names;
+      }
+   }//end ItemNameIndex
+
+   /*
+   Favorites Index: UserFavorites in memory, both ways round, so the users who
+   favorited an item (the audience for a promotion on it) are a map lookup rather
+   than a query. Built on first use; a user's favorites are re-read whenever the
+   catalog re-reads the user, which includes changes made by other instances.
+   */
+
+   static class FavoritesIndex {
+
+      static final String QUERY = "SELECT itemName, login FROM UserFavorites";
+
+      private volatile Map<String, Set<String>> byItem = new ConcurrentHashMap<String, Set<String>>();
+      private volatile Map<String, Set<String>> byUser = new ConcurrentHashMap<String, Set<String>>();
+      private volatile boolean built = false;
+
+      public boolean isBuilt() {
+         return built;
+      }
+
+      public void invalidate() {
+         built = false;
+      }
+
+      /*
+       * @param rows (itemName, login) pairs as in QUERY
+       */
+      public synchronized void build(List<List<String>> rows) {
+         Map<String, Set<String>> items = new ConcurrentHashMap<String, Set<String>>();
+         Map<String, Set<String>> users = new ConcurrentHashMap<String, Set<String>>();
+         for (List<String> row : rows) {
+            add(items, row.get(0), row.get(1));
+            add(users, row.get(1), row.get(0));
+         }
+         byItem = items;
+         byUser = users;
+         built = true;
+      }
+
+      private static void add(Map<String, Set<String>> index, String key, String value) {
+         Set<String> values = index.get(key);
+         if (values == null) {
+            values = new ConcurrentSkipListSet<String>();
+            index.put(key, values);
+         }
+         values.add(value);
+      }
+
+      /*
+       * Replaces one user's favorites.
+       * @param items the user's item names; empty if the user has none or was deleted
+       */
+      public synchronized void update(String login, Collection<String> items) {
+         Set<String> old = byUser.remove(login);
+         if (old != null) {
+            for (String item : old) {
+               Set<String> users = byItem.get(item);
+               if (users != null) users.remove(login);
+            }
+         }
+         for (String item : items) {
+            add(byUser, login, item);
+            add(byItem, item, login);
+         }
+      }
+
+      // follows Items' ON UPDATE CASCADE
+      public synchronized void renameItem(String from, String to) {
+         Set<String> users = byItem.remove(from);
+         if (users == null) return;
+         for (String login : users) {
+            add(byItem, to, login);
+            Set<String> items = byUser.get(login);
+            if (items != null) {
+               items.remove(from);
+               items.add(to);
+            }
+         }
+      }
+
+      // logins of the users who favorited the item, sorted
+      public Set<String> audience(String itemName) {
+         Set<String> users = byItem.get(itemName);
+         return users == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(users);
+      }
+
+      public Set<String> favoritesOf(String login) {
+         Set<String> items = byUser.get(login);
+         return items == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(items);
+      }
+   }//end FavoritesIndex
+
+   /*
+   Catalog snapshot file: a compact columnar image of the catalog tables that is
+   memory-mapped read-only and decoded a value at a time on demand.
+
+      int magic, int version, long createdMillis
+      per table (items, stores, users): int rows, int columns, then per column
+         byte type, null bitmap of (rows + 7) / 8 bytes, then
+         STRING: int offsets[rows + 1] followed by the UTF-8 bytes
+         INT: int[rows]   CENTS: long[rows]   DOUBLE: double[rows]
+
+   Rows are sorted by their key column (the first one) so lookups are a binary
+   search over the mapping.
+   */
+
+   static class CatalogSnapshot {
+
+      static final int MAGIC = 0x505A534E; // "PZSN"
+      static final int VERSION = 1;
+
+      static final byte STRING = 1;
+      static final byte INT = 2;
+      static final byte CENTS = 3;
+      static final byte DOUBLE = 4;
+
+      static final byte[] ITEM_TYPES = {STRING, STRING, STRING, CENTS, STRING};
+      static final byte[] STORE_TYPES = {INT, STRING, STRING, STRING, STRING, DOUBLE};
+      static final byte[] USER_TYPES = {STRING, STRING, STRING, STRING};
+
+      final Table items;
+      final Table stores;
+      final Table users;
+
+      private CatalogSnapshot(ByteBuffer buf) throws IOException {
+         if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw new IOException("not a catalog snapshot");
+         }
+         buf.getLong();
+         this.items = new Table(buf);
+         this.stores = new Table(buf);
+         this.users = new Table(buf);
+      }
+
+      public static CatalogSnapshot map(File file) throws IOException {
+         RandomAccessFile raf = new RandomAccessFile(file, "r");
+         try {
+            FileChannel channel = raf.getChannel();
+            return new CatalogSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+         }
+         finally {
+            raf.close();
+         }
+      }
+
+      /*
+       * Writes a new snapshot next to the old one and renames it into place, so a
+       * reader never maps a half-written file.
+       */
+      public static void write(File file, List<String[]> items, List<String[]> stores, List<String[]> users) throws IOException {
+         File tmp = new File(file.getPath() + ".tmp");
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+         try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            writeTable(out, items, ITEM_TYPES);
+            writeTable(out, stores, STORE_TYPES);
+            writeTable(out, users, USER_TYPES);
+         }
+         finally {
+            out.close();
+         }
+         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+
+      private static void writeTable(DataOutputStream out, List<String[]> rows, final byte[] types) throws IOException {
+         rows = new ArrayList<String[]>(rows);
+         Collections.sort(rows, new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+               return compareKeys(types[0], a[0], b[0]);
+            }
+         });
+
+         out.writeInt(rows.size());
+         out.writeInt(types.length);
+         for (int col = 0; col < types.length; col++) {
+            out.writeByte(types[col]);
+
+            byte[] nulls = new byte[(rows.size() + 7) / 8];
+            for (int row = 0; row < rows.size(); row++) {
+               if (rows.get(row)[col] == null) nulls[row / 8] |= 1 << (row % 8);
+            }
+            out.write(nulls);
+
+            switch (types[col]) {
+               case STRING:
+                  byte[][] values = new byte[rows.size()][];
+                  int offset = 0;
+                  out.writeInt(0);
+                  for (int row = 0; row < rows.size(); row++) {
+                     String value = rows.get(row)[col];
+                     values[row] = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+                     offset += values[row].length;
+                     out.writeInt(offset);
+                  }
+                  for (byte[] value : values) out.write(value);
+                  break;
+               case INT:
+                  for (String[] row : rows) out.writeInt(row[col] == null ? 0 : Integer.parseInt(row[col].trim()));
+                  break;
+               case CENTS:
+                  for (String[] row : rows) {
+                     out.writeLong(row[col] == null ? 0 : new BigDecimal(row[col].trim()).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValue());
+                  }
+                  break;
+               case DOUBLE:
+                  for (String[] row : rows) out.writeDouble(row[col] == null ? 0 : Double.parseDouble(row[col].trim()));
+                  break;
+            }
+         }
+      }
+
+      static int compareKeys(byte type, String a, String b) {
+         if (type == INT) return Integer.compare(Integer.parseInt(a.trim()), Integer.parseInt(b.trim()));
+         return a.compareTo(b);
+      }
+
+      // number of rows that were added, changed or removed between two snapshots
+      public int diff(CatalogSnapshot other) {
+         return diff(items, other.items) + diff(stores, other.stores) + diff(users, other.users);
+      }
+
+      private static int diff(Table a, Table b) {
+         int changed = 0;
+         for (int i = 0; i < b.rows; i++) {
+            String[] old = a.find(b.key(i));
+            if (old == null || !Arrays.equals(old, b.row(i))) changed++;
+         }
+         for (int i = 0; i < a.rows; i++) {
+            if (b.find(a.key(i)) == null) changed++;
+         }
+         return changed;
+      }
+
+      static class Table {
+         final ByteBuffer buf;
+         final int rows;
+         final byte[] types;
+         final int[] nulls;
+         final int[] data;
+
+         // records where each column starts and leaves buf positioned after the table
+         Table(ByteBuffer buf) {
+            this.buf = buf;
+            this.rows = buf.getInt();
+            int cols = buf.getInt();
+            this.types = new byte[cols];
+            this.nulls = new int[cols];
+            this.data = new int[cols];
+            for (int col = 0; col < cols; col++) {
+               types[col] = buf.get();
+               nulls[col] = buf.position();
+               data[col] = nulls[col] + (rows + 7) / 8;
+               switch (types[col]) {
+                  case STRING: buf.position(data[col] + 4 * (rows + 1) + buf.getInt(data[col] + 4 * rows)); break;
+                  case INT: buf.position(data[col] + 4 * rows); break;
+                  default: buf.position(data[col] + 8 * rows); break;
+               }
+            }
+         }
+
+         public String get(int row, int col) {
+            if ((buf.get(nulls[col] + row / 8) & (1 << (row % 8))) != 0) return null;
+            switch (types[col]) {
+               case STRING:
+                  int start = buf.getInt(data[col] + 4 * row);
+                  int end = buf.getInt(data[col] + 4 * (row + 1));
+                  byte[] bytes = new byte[end - start];
+                  ByteBuffer view = buf.duplicate();
+                  view.position(data[col] + 4 * (rows + 1) + start);
+                  view.get(bytes);
+                  return new String(bytes, StandardCharsets.UTF_8);
+               case INT:
+                  return String.valueOf(buf.getInt(data[col] + 4 * row));
+               case CENTS:
+                  return BigDecimal.valueOf(buf.getLong(data[col] + 8 * row), 2).toPlainString();
+               default:
+                  return String.valueOf(buf.getDouble(data[col] + 8 * row));
+            }
+         }
+
+         public String key(int row) {
+            return get(row, 0);
+         }
+
+         public String[] row(int row) {
+            String[] values = new String[types.length];
+            for (int col = 0; col < types.length; col++) values[col] = get(row, col);
+            return values;
+         }
+
+         public String[] find(String key) {
+            int lo = 0;
+            int hi = rows - 1;
+            try {
+               while (lo <= hi) {
+                  int mid = (lo + hi) >>> 1;
+                  int cmp = compareKeys(types[0], key(mid), key);
+                  if (cmp == 0) return row(mid);
+                  if (cmp < 0) lo = mid + 1;
+                  else hi = mid - 1;
+               }
+            }
+            catch (NumberFormatException e) {
+               // not a valid key for this table
+            }
+            return null;
+         }
+      }
+   }//end CatalogSnapshot
+
+   /*
+   Catalog Listener: keeps this instance's catalog in step with changes made by
+   other PizzaStore instances. Triggers on Items, Store and Users log every change
+   in CatalogChanges under an increasing version and send a compact
+   "version:table:op:key" notification on the catalog_changes channel. The listener
+   re-reads the changed row (or drops it on delete). After a reconnect it replays
+   everything past the last version it applied, so no change is lost while it was
+   away. Likewise, whenever the catalog's tables are loaded it replays from the
+   version read just before them, which covers changes made before the listener
+   first connected. Re-applying a change is harmless, since it only re-reads the
+   current row. Drivers with getNotifications(int) wait for notifications without
+   sending anything; older ones are polled with a cheap query every
+   pizza.listen.poll.ms.
+   */
+
+   static class CatalogListener implements Runnable {
+
+      static final String CHANNEL = "catalog_changes";
+
+      private final PizzaStore esql;
+      private final int pollMillis;
+      private final int waitMillis;
+      private final int retentionHours;
+      private long lastVersion = -1;
+      // the catalog's version() when changes were last replayed from it
+      private long loadedVersion = -1;
+      private long lastPrune = 0;
+
+      public CatalogListener(PizzaStore esql) {
+         this.esql = esql;
+         this.pollMillis = config("listen.poll.ms", 500);
+         // how long a wait for notifications lasts before the version and pruning are checked
+         this.waitMillis = config("listen.wait.ms", 5000);
+         this.retentionHours = config("listen.retention.hours", 24);
+      }
+
+      public void run() {
+         int backoff = 1000;
+         while (!Thread.currentThread().isInterrupted()) {
+            Connection conn = null;
+            try {
+               conn = esql.openConnection();
+               listen(conn);
+               backoff = 1000;
+            }
+            catch (InterruptedException e) {
+               return;
+            }
+            catch (Exception e) {
+               System.err.println("Catalog listener disconnected: " + e.getMessage());
+            }
+            finally {
+               try {
+                  if (conn != null) conn.close();
+               }catch (SQLException e) {
+                  // ignored.
+               }
+            }
+            try {
+               Thread.sleep(backoff);
+            }
+            catch (InterruptedException e) {
+               return;
+            }
+            backoff = Math.min(backoff * 2, 60000);
+         }
+      }
+
+      private void listen(Connection conn) throws Exception {
+         Statement stmt = conn.createStatement();
+         try {
+            // listen first so nothing committed after the catch-up query can slip by
+            stmt.execute("LISTEN " + CHANNEL + ";");
+            resync(conn);
+
+            Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+            Object pg = pgConnection.isInstance(conn) ? conn : conn.unwrap(pgConnection);
+            Method getNotifications = pgConnection.getMethod("getNotifications");
+            Method waitForNotifications = null;
+            try {
+               waitForNotifications = pgConnection.getMethod("getNotifications", int.class);
+            }
+            catch (NoSuchMethodException e) {
+               // older drivers cannot wait, so they are polled below
+            }
+            Method getParameter = null;
+            try {
+               getParameter = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+            }
+            catch (NoSuchMethodException e) {
+               // drivers without payload support only wake us up
+            }
+
+            while (!Thread.currentThread().isInterrupted()) {
+               Object[] notes;
+               if (waitForNotifications != null) {
+                  // blocks on the socket until a notification arrives or the wait runs out
+                  try {
+                     notes = (Object[]) waitForNotifications.invoke(pg, waitMillis);
+                  }
+                  catch (InvocationTargetException e) {
+                     // a dropped connection surfaces here; report it as itself
+                     throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                  }
+               }
+               else {
+                  // older drivers only pick up notifications while running a statement
+                  stmt.executeQuery("SELECT 1;").close();
+                  notes = (Object[]) getNotifications.invoke(pg);
+               }
+               if (notes != null && notes.length > 0) {
+                  boolean applied = getParameter != null;
+                  for (Object note : notes) {
+                     if (applied) applied = apply(conn, (String) getParameter.invoke(note));
+                  }
+                  if (!applied) resync(conn);
+               }
+               // the catalog was loaded again, maybe from tables read before this connection listened
+               if (esql.catalog().version() != loadedVersion) resync(conn);
+               prune(conn);
+               if (waitForNotifications == null) Thread.sleep(pollMillis);
+            }
+         }
+         finally {
+            stmt.close();
+         }
+      }
+
+      /*
+       * Applies one "version:table:op:key" payload.
+       * @return false if the payload could not be understood
+       */
+      private boolean apply(Connection conn, String payload) throws SQLException {
+         if (payload == null) return false;
+         String[] parts = payload.split(":", 4);
+         if (parts.length != 4) return false;
+         try {
+            long version = Long.parseLong(parts[0]);
+            if (parts[1].equals("promotions") || parts[1].equals("comboitems")) reloadPromotions(conn);
+            esql.catalog().apply(conn, parts[1], parts[3], parts[2].equals("D"));
+            lastVersion = Math.max(lastVersion, version);
+            return true;
+         }
+         catch (NumberFormatException e) {
+            return false;
+         }
+      }
+
+      /*
+       * Replays changes past the last applied version. Versions are handed out
+       * before commit, so a change that committed late can carry a lower version
+       * than one already applied; the last minute is replayed as well to catch it.
+       * If the log no longer reaches back far enough the whole catalog is reloaded.
+       */
+      private void resync(Connection conn) throws SQLException, IOException {
+         // promotions are few enough to reload whole on every reconnect
+         reloadPromotions(conn);
+         Statement stmt = conn.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery("SELECT COALESCE(MIN(version), 0), COALESCE(MAX(version), 0) FROM CatalogChanges;");
+            rs.next();
+            long oldest = rs.getLong(1);
+            long newest = rs.getLong(2);
+            rs.close();
+
+            // replays everything since the catalog's tables were read, which may be
+            // before this connection started listening
+            long loaded = esql.catalog().version();
+            if (esql.catalog().isEnabled() && lastVersion < 0) esql.catalog().loadFavorites(conn);
+            if (loaded != loadedVersion) {
+               loadedVersion = loaded;
+               if (loaded >= 0) lastVersion = lastVersion < 0 ? loaded : Math.min(lastVersion, loaded);
+            }
+            if (lastVersion < 0) {
+               // served from a snapshot still being reconciled, which is replayed from once it is done
+               lastVersion = newest;
+               return;
+            }
+            if (oldest > lastVersion + 1) {
+               esql.catalog().reconcile(conn);
+               lastVersion = newest;
+               loadedVersion = esql.catalog().version();
+               return;
+            }
+
+            rs = stmt.executeQuery(String.format(
+               "SELECT version, tableName, op, rowKey FROM CatalogChanges WHERE version > %d OR changedAt > clock_timestamp() - interval '1 minute' ORDER BY version;",
+               lastVersion));
+            List<String[]> changes = new ArrayList<String[]>();
+            while (rs.next()) {
+               changes.add(new String[] {rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)});
+            }
+            rs.close();
+            for (String[] change : changes) {
+               esql.catalog().apply(conn, change[1], change[3], change[2].trim().equals("D"));
+               lastVersion = Math.max(lastVersion, Long.parseLong(change[0]));
+            }
+         }
+         finally {
+            stmt.close();
+         }
+      }
+
+      // a broken or missing Promotions table leaves the promotions in use as they are
+      private void reloadPromotions(Connection conn) {
+         try {
+            esql.pricing().load(conn);
+         }
+         catch (SQLException e) {
+            System.err.println("Promotions not reloaded: " + e.getMessage().trim());
+         }
+      }
+
+      // trims the change log once an hour
+      private void prune(Connection conn) throws SQLException {
+         if (System.currentTimeMillis() - lastPrune < 3600000) return;
+         lastPrune = System.currentTimeMillis();
+         Statement stmt = conn.createStatement();
+         stmt.executeUpdate(String.format("DELETE FROM CatalogChanges WHERE changedAt < now() - interval '%d hours';", retentionHours));
+         stmt.close();
+      }
+   }//end CatalogListener
+
+   /*
+   Pricing Engine: totals an order in whole cents, applying the promotions in the
+   Promotions table. The promotions are compiled into arrays indexed by item and
+   by type, one set per store that has promotions of its own, and a Basket holds
+   the order's lines together with the working space, so pricing an order does
+   not allocate. A change to Promotions compiles a new set that replaces the old
+   one in one step; an order being priced meanwhile finishes with the set it
+   started with.
+
+   Unit prices come first: a store's override replaces the menu price, then the
+   best happy-hour discount open at the time applies. Combos then charge whole sets
+   of their items at the bundle price when that is cheaper, and BOGO deals make
+   the cheapest of the remaining units of their type free.
+   */
+
+   static class PricingEngine {
+
+      static final String RULES_QUERY =
+         "SELECT promotionID, kind, storeID, typeOfItem, itemName, " +
+         "(SELECT string_agg(c.itemName, chr(31)) FROM ComboItems c, generate_series(1, c.quantity) WHERE c.promotionID = Promotions.promotionID), " +
+         "price, percentOff, buyQuantity, freeQuantity, startTime, endTime " +
+         "FROM Promotions WHERE active ORDER BY promotionID;";
+
+      // separates the names of a combo's items, one per unit, in RULES_QUERY
+      static final String COMBO_SEPARATOR = "\u001f";
+
+      private final AtomicReference<Rules> rules = new AtomicReference<Rules>(Rules.NONE);
+
+      /*
+       * Compiles the active promotions and puts them in use.
+       * @return the number of promotions in use
+       */
+      public int load(PizzaStore esql) throws SQLException {
+         List<String[]> rows = new ArrayList<String[]>();
+         for (List<String> row : esql.executeQueryAndReturnResult(RULES_QUERY)) {
+            rows.add(row.toArray(new String[row.size()]));
+         }
+         Rules compiled = Rules.compile(rows);
+         rules.set(compiled);
+         return compiled.count;
+      }
+
+      // same as load, for threads with a connection of their own
+      public int load(Connection conn) throws SQLException {
+         List<String[]> rows = new ArrayList<String[]>();
+         Statement stmt = conn.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(RULES_QUERY);
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+               String[] row = new String[columns];
+               for (int i = 0; i < columns; i++) row[i] = rs.getString(i + 1);
+               rows.add(row);
+            }
+            rs.close();
+         }
+         finally {
+            stmt.close();
+         }
+         Rules compiled = Rules.compile(rows);
+         rules.set(compiled);
+         return compiled.count;
+      }
+
+      /*
+       * Prices the basket with the promotions in use now.
+       * @param minuteOfDay local time of the order, for happy hours and other windows
+       * @return the total in cents; the basket also keeps its subtotal
+       */
+      public long price(Basket basket, int storeID, int minuteOfDay) {
+         return rules.get().price(basket, storeID, minuteOfDay);
+      }
+
+      /*
+       * The store price overrides in use, for a statement that prices an order on the
+       * server. Promotions is only on the main database, so a shard cannot join it.
+       * @return a query of storeID, itemName and price
+       */
+      public String overrides() {
+         return rules.get().overrides;
+      }
+
+      // a menu price such as "12.50" in cents
+      static int cents(String price) {
+         return new BigDecimal(price.trim()).movePointRight(2).setScale(0, RoundingMode.HALF_UP).intValueExact();
+      }
+
+      static String dollars(long cents) {
+         return BigDecimal.valueOf(cents, 2).toPlainString();
+      }
+
+      // types are matched without regard to case or surrounding spaces
+      static String typeKey(String type) {
+         return type == null ? null : type.trim().toLowerCase();
+      }
+
+      /*
+      An order's lines, one per item, and the working space pricing fills in.
+      Adding an item already in the basket adds to its quantity.
+      */
+      static final class Basket {
+         int size = 0;
+         String[] name = new String[8];
+         String[] type = new String[8];
+         int[] baseCents = new int[8];
+         int[] quantity = new int[8];
+         // filled in by pricing
+         int[] item = new int[8];
+         int[] typeIndex = new int[8];
+         int[] unitCents = new int[8];
+         int[] left = new int[8];
+         long subtotal = 0;
+         long total = 0;
+
+         public void add(String itemName, String typeOfItem, int cents, int units) {
+            for (int i = 0; i < size; i++) {
+               if (name[i].equals(itemName)) {
+                  quantity[i] += units;
+                  return;
+               }
+            }
+            if (size == name.length) {
+               int capacity = size * 2;
+               name = Arrays.copyOf(name, capacity);
+               type = Arrays.copyOf(type, capacity);
+               baseCents = Arrays.copyOf(baseCents, capacity);
+               quantity = Arrays.copyOf(quantity, capacity);
+               item = Arrays.copyOf(item, capacity);
+               typeIndex = Arrays.copyOf(typeIndex, capacity);
+               unitCents = Arrays.copyOf(unitCents, capacity);
+               left = Arrays.copyOf(left, capacity);
+            }
+            name[size] = itemName;
+            type[size] = typeKey(typeOfItem);
+            baseCents[size] = cents;
+            quantity[size] = units;
+            size++;
+         }
+
+         public int size() {
+            return size;
+         }
+
+         public String name(int line) {
+            return name[line];
+         }
+
+         public int quantity(int line) {
+            return quantity[line];
+         }
+
+         // at menu prices
+         public long subtotal() {
+            return subtotal;
+         }
+
+         public long total() {
+            return total;
+         }
+
+         public long discount() {
+            return subtotal - total;
+         }
+      }//end Basket
+
+      /*
+      The compiled promotions for one store, including those for every store.
+      Windows are minutes of the day, start inclusive and end exclusive, and may
+      wrap past midnight; -1 means always.
+      */
+      static final class StoreRules {
+         final int[] override;      // per item: price in cents, or -1
+         final int[] happyType;     // type index, or -1 for every type
+         final int[] happyPercent;
+         final int[] happyStart;
+         final int[] happyEnd;
+         final int[][] comboItem;   // item indexes of each combo
+         final int[][] comboCount;  // units of each of them in one set
+         final int[] comboCents;
+         final int[] comboStart;
+         final int[] comboEnd;
+         final int[] bogoType;
+         final int[] bogoBuy;
+         final int[] bogoFree;
+         final int[] bogoStart;
+         final int[] bogoEnd;
+
+         StoreRules(List<Rule> rules, int itemCount) {
+            override = new int[itemCount];
+            Arrays.fill(override, -1);
+            int happies = 0, combos = 0, bogos = 0;
+            for (Rule rule : rules) {
+               if (rule.kind.equals("happyhour")) happies++;
+               else if (rule.kind.equals("combo")) combos++;
+               else if (rule.kind.equals("bogo")) bogos++;
+            }
+            happyType = new int[happies];
+            happyPercent = new int[happies];
+            happyStart = new int[happies];
+            happyEnd = new int[happies];
+            comboItem = new int[combos][];
+            comboCount = new int[combos][];
+            comboCents = new int[combos];
+            comboStart = new int[combos];
+            comboEnd = new int[combos];
+            bogoType = new int[bogos];
+            bogoBuy = new int[bogos];
+            bogoFree = new int[bogos];
+            bogoStart = new int[bogos];
+            bogoEnd = new int[bogos];
+            happies = combos = bogos = 0;
+            // rules for every store come first, so a store's own override wins
+            for (Rule rule : rules) {
+               if (rule.kind.equals("override")) {
+                  override[rule.item] = rule.cents;
+               }
+               else if (rule.kind.equals("happyhour")) {
+                  happyType[happies] = rule.type;
+                  happyPercent[happies] = rule.percent;
+                  happyStart[happies] = rule.start;
+                  happyEnd[happies++] = rule.end;
+               }
+               else if (rule.kind.equals("combo")) {
+                  comboItem[combos] = rule.comboItem;
+                  comboCount[combos] = rule.comboCount;
+                  comboCents[combos] = rule.cents;
+                  comboStart[combos] = rule.start;
+                  comboEnd[combos++] = rule.end;
+               }
+               else {
+                  bogoType[bogos] = rule.type;
+                  bogoBuy[bogos] = rule.buy;
+                  bogoFree[bogos] = rule.free;
+                  bogoStart[bogos] = rule.start;
+                  bogoEnd[bogos++] = rule.end;
+               }
+            }
+         }
+      }//end StoreRules
+
+      // one Promotions row, checked and resolved to indexes while compiling
+      static final class Rule {
+         String kind;
+         int storeID = -1;
+         int item = -1;
+         int type = -1;
+         int cents = -1;
+         int percent = 0;
+         int buy = 1;
+         int free = 1;
+         int start = -1;
+         int end = -1;
+         int[] comboItem;
+         int[] comboCount;
+      }
+
+      /*
+      An immutable set of compiled promotions.
+      */
+      static final class Rules {
+
+         static final Rules NONE = compile(new ArrayList<String[]>());
+
+         final Map<String, Integer> items;
+         final Map<String, Integer> types;
+         final int[] storeIDs;          // sorted, the stores with promotions of their own
+         final StoreRules[] stores;     // for each of storeIDs
+         final StoreRules everywhere;   // for all other stores
+         final int count;
+         final String overrides;        // a query of the overrides' storeID, itemName and price
+
+         private Rules(Map<String, Integer> items, Map<String, Integer> types, int[] storeIDs, StoreRules[] stores, StoreRules everywhere, int count, String overrides) {
+            this.items = items;
+            this.types = types;
+            this.storeIDs = storeIDs;
+            this.stores = stores;
+            this.everywhere = everywhere;
+            this.count = count;
+            this.overrides = overrides;
+         }
+
+         /*
+          * Compiles rows of RULES_QUERY. A row that does not make sense is reported
+          * and left out rather than failing the rest.
+          */
+         static Rules compile(List<String[]> rows) {
+            Map<String, Integer> items = new HashMap<String, Integer>();
+            Map<String, Integer> types = new HashMap<String, Integer>();
+            List<Rule> shared = new ArrayList<Rule>();
+            Map<Integer, List<Rule>> own = new HashMap<Integer, List<Rule>>();
+            // a later override of the same item at the same store wins, as in StoreRules
+            Map<String, String> overrides = new LinkedHashMap<String, String>();
+            int count = 0;
+            for (String[] row : rows) {
+               try {
+                  Rule rule = parse(row, items, types);
+                  if (rule.kind.equals("override")) {
+                     String name = row[4].trim();
+                     overrides.put(rule.storeID + "/" + name,
+                        String.format("(%d, '%s', %s)", rule.storeID, name.replace("'", "''"), dollars(rule.cents)));
+                  }
+                  if (rule.storeID < 0) {
+                     shared.add(rule);
+                  }
+                  else {
+                     if (!own.containsKey(rule.storeID)) own.put(rule.storeID, new ArrayList<Rule>());
+                     own.get(rule.storeID).add(rule);
+                  }
+                  count++;
+               }
+               catch (RuntimeException e) {
+                  System.err.println("Skipping promotion " + row[0] + ": " + e.getMessage());
+               }
+            }
+
+            int[] storeIDs = new int[own.size()];
+            int i = 0;
+            for (Integer storeID : own.keySet()) storeIDs[i++] = storeID;
+            Arrays.sort(storeIDs);
+            StoreRules[] stores = new StoreRules[storeIDs.length];
+            for (i = 0; i < storeIDs.length; i++) {
+               List<Rule> merged = new ArrayList<Rule>(shared);
+               merged.addAll(own.get(storeIDs[i]));
+               stores[i] = new StoreRules(merged, items.size());
+            }
+            String query = overrides.isEmpty()
+               ? "SELECT NULL::integer, NULL::varchar, NULL::decimal WHERE false"
+               : "VALUES " + String.join(", ", overrides.values());
+            return new Rules(items, types, storeIDs, stores, new StoreRules(shared, items.size()), count, query);
+         }
+
+         private static Rule parse(String[] row, Map<String, Integer> items, Map<String, Integer> types) {
+            Rule rule = new Rule();
+            rule.kind = row[1].trim();
+            if (row[2] != null) rule.storeID = Integer.parseInt(row[2].trim());
+            if (row[3] != null) rule.type = index(types, typeKey(row[3]));
+            if (row[6] != null) rule.cents = cents(row[6]);
+            if (row[7] != null) rule.percent = Integer.parseInt(row[7].trim());
+            if (row[8] != null) rule.buy = Integer.parseInt(row[8].trim());
+            if (row[9] != null) rule.free = Integer.parseInt(row[9].trim());
+            if ((row[10] == null) != (row[11] == null)) throw new IllegalArgumentException("needs both startTime and endTime");
+            if (row[10] != null) {
+               rule.start = LocalTime.parse(row[10].trim()).toSecondOfDay() / 60;
+               rule.end = LocalTime.parse(row[11].trim()).toSecondOfDay() / 60;
+            }
+
+            if (rule.kind.equals("override")) {
+               if (row[4] == null || rule.storeID < 0 || rule.cents < 0) throw new IllegalArgumentException("an override needs storeID, itemName and price");
+               rule.item = index(items, row[4].trim());
+            }
+            else if (rule.kind.equals("happyhour")) {
+               if (rule.start < 0 || rule.percent <= 0 || rule.percent > 100) throw new IllegalArgumentException("a happy hour needs startTime, endTime and percentOff from 1 to 100");
+            }
+            else if (rule.kind.equals("combo")) {
+               if (row[5] == null || rule.cents < 0) throw new IllegalArgumentException("a combo needs ComboItems and price");
+               Map<Integer, Integer> units = new HashMap<Integer, Integer>();
+               for (String name : row[5].split(COMBO_SEPARATOR)) {
+                  if (name.trim().isEmpty()) continue;
+                  int item = index(items, name.trim());
+                  units.put(item, units.containsKey(item) ? units.get(item) + 1 : 1);
+               }
+               if (units.size() == 0) throw new IllegalArgumentException("a combo needs ComboItems");
+               rule.comboItem = new int[units.size()];
+               rule.comboCount = new int[units.size()];
+               int i = 0;
+               for (Map.Entry<Integer, Integer> entry : units.entrySet()) {
+                  rule.comboItem[i] = entry.getKey();
+                  rule.comboCount[i++] = entry.getValue();
+               }
+            }
+            else if (rule.kind.equals("bogo")) {
+               if (rule.type < 0 || rule.buy < 1 || rule.free < 1) throw new IllegalArgumentException("a BOGO deal needs typeOfItem, and buyQuantity and freeQuantity of at least 1");
+            }
+            else {
+               throw new IllegalArgumentException("unknown kind " + rule.kind);
+            }
+            return rule;
+         }
+
+         private static int index(Map<String, Integer> names, String name) {
+            Integer index = names.get(name);
+            if (index == null) {
+               index = names.size();
+               names.put(name, index);
+            }
+            return index;
+         }
+
+         private static boolean open(int start, int end, int minute) {
+            if (start < 0) return true;
+            if (start <= end) return minute >= start && minute < end;
+            return minute >= start || minute < end;
+         }
+
+         private int lineOf(Basket basket, int item) {
+            for (int i = 0; i < basket.size; i++) {
+               if (basket.item[i] == item) return i;
+            }
+            return -1;
+         }
+
+         long price(Basket basket, int storeID, int minuteOfDay) {
+            int slot = Arrays.binarySearch(storeIDs, storeID);
+            StoreRules rules = slot >= 0 ? stores[slot] : everywhere;
+
+            long subtotal = 0;
+            long total = 0;
+            for (int i = 0; i < basket.size; i++) {
+               Integer item = items.get(basket.name[i]);
+               Integer type = types.get(basket.type[i]);
+               basket.item[i] = item == null ? -1 : item;
+               basket.typeIndex[i] = type == null ? -1 : type;
+
+               int unit = basket.baseCents[i];
+               if (basket.item[i] >= 0 && rules.override[basket.item[i]] >= 0) unit = rules.override[basket.item[i]];
+               // happy hours do not stack; the best one open applies
+               int percent = 0;
+               for (int h = 0; h < rules.happyType.length; h++) {
+                  if ((rules.happyType[h] < 0 || rules.happyType[h] == basket.typeIndex[i])
+                      && open(rules.happyStart[h], rules.happyEnd[h], minuteOfDay)) {
+                     percent = Math.max(percent, rules.happyPercent[h]);
+                  }
+               }
+               unit -= (int) (((long) unit * percent + 50) / 100);
+
+               basket.unitCents[i] = unit;
+               basket.left[i] = basket.quantity[i];
+               subtotal += (long) basket.baseCents[i] * basket.quantity[i];
+               total += (long) unit * basket.quantity[i];
+            }
+
+            for (int c = 0; c < rules.comboItem.length; c++) {
+               if (!open(rules.comboStart[c], rules.comboEnd[c], minuteOfDay)) continue;
+               int[] members = rules.comboItem[c];
+               int sets = Integer.MAX_VALUE;
+               long setCents = 0;
+               for (int m = 0; m < members.length && sets > 0; m++) {
+                  int line = lineOf(basket, members[m]);
+                  sets = line < 0 ? 0 : Math.min(sets, basket.left[line] / rules.comboCount[c][m]);
+                  if (line >= 0) setCents += (long) basket.unitCents[line] * rules.comboCount[c][m];
+               }
+               if (sets == 0 || setCents <= rules.comboCents[c]) continue;
+               for (int m = 0; m < members.length; m++) {
+                  basket.left[lineOf(basket, members[m])] -= sets * rules.comboCount[c][m];
+               }
+               total -= sets * (setCents - rules.comboCents[c]);
+            }
+
+            for (int b = 0; b < rules.bogoType.length; b++) {
+               if (!open(rules.bogoStart[b], rules.bogoEnd[b], minuteOfDay)) continue;
+               int units = 0;
+               for (int i = 0; i < basket.size; i++) {
+                  if (basket.typeIndex[i] == rules.bogoType[b]) units += basket.left[i];
+               }
+               int free = units / (rules.bogoBuy[b] + rules.bogoFree[b]) * rules.bogoFree[b];
+               while (free > 0) {
+                  int cheapest = -1;
+                  for (int i = 0; i < basket.size; i++) {
+                     if (basket.typeIndex[i] == rules.bogoType[b] && basket.left[i] > 0
+                         && (cheapest < 0 || basket.unitCents[i] < basket.unitCents[cheapest])) cheapest = i;
+                  }
+                  int taken = Math.min(free, basket.left[cheapest]);
+                  total -= (long) basket.unitCents[cheapest] * taken;
+                  basket.left[cheapest] -= taken;
+                  free -= taken;
+               }
+               // the units paid for count toward this deal only
+               for (int i = 0; i < basket.size; i++) {
+                  if (basket.typeIndex[i] == rules.bogoType[b]) basket.left[i] = 0;
+               }
+            }
+
+            basket.subtotal = subtotal;
+            basket.total = total;
+            return total;
+         }
+      }//end Rules
+   }//end PricingEngine
+
+   /*
+   Popularity Tracker: the most ordered items per store, and for all stores
+   together, over the last hour and the last day. Every placed order is added to a
+   count-min sketch per time bucket; a small min-heap keeps the current top items,
+   so asking for them never touches ItemsInOrder. Memory is fixed by the sketch size
+   and the number of buckets, whatever the order volume. On startup the windows are
+   seeded from the last day of orders.
+   */
+
+   static class PopularityTracker {
+
+      static final int TOP_K = 10;
+      static final int ALL_STORES = -1;
+
+      // approximate counts in a fixed depth x width table; estimates never undercount
+      static class CountMinSketch {
+         final int[][] counts;
+         final int width;
+
+         CountMinSketch(int depth, int width) {
+            this.counts = new int[depth][width];
+            this.width = width;
+         }
+
+         private int index(String key, int row) {
+            int h = key.hashCode() * 0x9E3779B1 + row * 0x85EBCA6B;
+            h ^= h >>> 16;
+            h *= 0x7FEB352D;
+            h ^= h >>> 15;
+            return (h & 0x7FFFFFFF) % width;
+         }
+
+         void add(String key, int n) {
+            for (int row = 0; row < counts.length; row++) counts[row][index(key, row)] += n;
+         }
+
+         int estimate(String key) {
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < counts.length; row++) min = Math.min(min, counts[row][index(key, row)]);
+            return min;
+         }
+
+         void subtract(CountMinSketch other) {
+            for (int row = 0; row < counts.length; row++)
+               for (int col = 0; col < width; col++) counts[row][col] -= other.counts[row][col];
+         }
+
+         void clear() {
+            for (int[] row : counts) Arrays.fill(row, 0);
+         }
+      }
+
+      static class Entry {
+         final String item;
+         int count;
+
+         Entry(String item, int count) {
+            this.item = item;
+            this.count = count;
+         }
+      }
+
+      /*
+       * A sliding window made of a ring of bucket sketches plus their running sum.
+       * When a bucket falls out of the window it is subtracted from the sum and the
+       * top entries are re-estimated.
+       */
+      static class Window {
+         final long bucketMillis;
+         final CountMinSketch[] buckets;
+         final CountMinSketch total;
+         final Map<String, Entry> top = new HashMap<String, Entry>();
+         final PriorityQueue<Entry> heap = new PriorityQueue<Entry>(TOP_K, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+               return Integer.compare(a.count, b.count);
+            }
+         });
+         long current = Long.MIN_VALUE;
+
+         Window(int bucketCount, long bucketMillis, int depth, int width) {
+            this.bucketMillis = bucketMillis;
+            this.buckets = new CountMinSketch[bucketCount];
+            for (int i = 0; i < bucketCount; i++) buckets[i] = new CountMinSketch(depth, width);
+            this.total = new CountMinSketch(depth, width);
+         }
+
+         synchronized void add(String item, int quantity, long time, long now) {
+            advance(now / bucketMillis);
+            long epoch = Math.min(time / bucketMillis, current);
+            if (epoch <= current - buckets.length) return; // older than the window
+            buckets[(int) (epoch % buckets.length)].add(item, quantity);
+            total.add(item, quantity);
+            offer(item, total.estimate(item));
+         }
+
+         synchronized List<Entry> top(long now) {
+            advance(now / bucketMillis);
+            List<Entry> result = new ArrayList<Entry>();
+            for (Entry entry : heap) result.add(new Entry(entry.item, entry.count));
+            Collections.sort(result, new Comparator<Entry>() {
+               public int compare(Entry a, Entry b) {
+                  return Integer.compare(b.count, a.count);
+               }
+            });
+            return result;
+         }
+
+         private void advance(long epoch) {
+            if (epoch <= current) return;
+            boolean expired = false;
+            long first = current == Long.MIN_VALUE ? epoch : Math.max(current + 1, epoch - buckets.length + 1);
+            for (long e = first; e <= epoch; e++) {
+               if (current != Long.MIN_VALUE) {
+                  int slot = (int) (e % buckets.length);
+                  total.subtract(buckets[slot]);
+                  buckets[slot].clear();
+                  expired = true;
+               }
+            }
+            current = epoch;
+            if (expired) rescore();
+         }
+
+         private void offer(String item, int count) {
+            Entry entry = top.get(item);
+            if (entry != null) {
+               heap.remove(entry);
+               entry.count = count;
+               heap.add(entry);
+            }
+            else if (heap.size() < TOP_K) {
+               entry = new Entry(item, count);
+               top.put(item, entry);
+               heap.add(entry);
+            }
+            else if (count > heap.peek().count) {
+               top.remove(heap.poll().item);
+               entry = new Entry(item, count);
+               top.put(item, entry);
+               heap.add(entry);
+            }
+         }
+
+         private void rescore() {
+            List<Entry> entries = new ArrayList<Entry>(heap);
+            heap.clear();
+            top.clear();
+            for (Entry entry : entries) {
+               entry.count = total.estimate(entry.item);
+               if (entry.count > 0) {
+                  top.put(entry.item, entry);
+                  heap.add(entry);
+               }
+            }
+         }
+      }
+
+      private final ConcurrentHashMap<Integer, Window[]> windows = new ConcurrentHashMap<Integer, Window[]>();
+      private final int depth;
+      private final int width;
+
+      public PopularityTracker() {
+         this.depth = config("popular.depth", 4);
+         this.width = config("popular.width", 128);
+      }
+
+      // [0] is the last hour in 5 minute buckets, [1] the last day in hourly buckets
+      private Window[] windows(int storeID) {
+         Window[] w = windows.get(storeID);
+         if (w == null) {
+            w = new Window[] {new Window(12, 300000L, depth, width), new Window(24, 3600000L, depth, width)};
+            Window[] raced = windows.putIfAbsent(storeID, w);
+            if (raced != null) w = raced;
+         }
+         return w;
+      }
+
+      public void record(int storeID, String itemName, int quantity, long time) {
+         long now = System.currentTimeMillis();
+         for (int key : new int[] {storeID, ALL_STORES}) {
+            for (Window window : windows(key)) window.add(itemName, quantity, time, now);
+         }
+      }
+
+      /*
+       * @param storeID a store, or ALL_STORES
+       * @param lastDay the last day instead of the last hour
+       * @return up to TOP_K item names with their approximate quantities, most ordered first
+       */
+      public List<String[]> top(int storeID, boolean lastDay) {
+         List<String[]> rows = new ArrayList<String[]>();
+         Window[] w = windows.get(storeID);
+         if (w == null) return rows;
+         for (Entry entry : w[lastDay ? 1 : 0].top(System.currentTimeMillis())) {
+            rows.add(new String[] {entry.item, String.valueOf(entry.count)});
+         }
+         return rows;
+      }
+
+      // replays the last day of orders so the windows are warm right after startup
+      public void seed(Connection conn) throws SQLException {
+         boolean autoCommit = conn.getAutoCommit();
+         conn.setAutoCommit(false); // lets the driver stream the rows with a cursor
+         Statement stmt = conn.createStatement();
+         stmt.setFetchSize(10000);
+         ResultSet rs = stmt.executeQuery(
+            "SELECT FoodOrder.storeID, ItemsInOrder.itemName, ItemsInOrder.quantity, FoodOrder.orderTimestamp " +
+            "FROM FoodOrder JOIN " + itemsInOrderTable(false) + " ON ItemsInOrder.orderID = FoodOrder.orderID " +
+            "WHERE FoodOrder.orderTimestamp > now() - interval '1 day';");
+         while (rs.next()) {
+            record(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getTimestamp(4).getTime());
+         }
+         rs.close();
+         stmt.close();
+         conn.commit();
+         conn.setAutoCommit(autoCommit);
+      }
+   }//end PopularityTracker
+
+   /*
+   Dispatch Board: orders waiting for a driver, kept in memory as one queue per
+   store ordered by orderTimestamp. placeOrder adds to it and status updates take
+   orders off it. A driver claims the oldest order at a store by taking it off the
+   queue with an atomic compare-and-set, so two drivers can never take the same
+   order. The claim is then written with a conditional UPDATE, which also guards
+   against other PizzaStore instances. Orders that are placed or preparing are
+   waiting; claimed and finished orders are not. The board is loaded from FoodOrder at
+   startup and reloaded every pizza.dispatch.refresh.ms.
+   */
+
+   static class DispatchBoard {
+
+      static class Ticket implements Comparable<Ticket> {
+         final int orderID;
+         final int storeID;
+         final long timestamp;
+         // System.nanoTime() when it was put on the board
+         final long added = System.nanoTime();
+         final AtomicBoolean taken = new AtomicBoolean(false);
+
+         Ticket(int orderID, int storeID, long timestamp) {
+            this.orderID = orderID;
+            this.storeID = storeID;
+            this.timestamp = timestamp;
+         }
+
+         public int compareTo(Ticket other) {
+            int cmp = Long.compare(timestamp, other.timestamp);
+            return cmp != 0 ? cmp : Integer.compare(orderID, other.orderID);
+         }
+      }
+
+      private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<Ticket>> queues = new ConcurrentHashMap<Integer, ConcurrentSkipListSet<Ticket>>();
+      private final ConcurrentHashMap<Integer, Ticket> tickets = new ConcurrentHashMap<Integer, Ticket>();
+
+      private ConcurrentSkipListSet<Ticket> queue(int storeID) {
+         ConcurrentSkipListSet<Ticket> queue = queues.get(storeID);
+         if (queue == null) {
+            queue = new ConcurrentSkipListSet<Ticket>();
+            ConcurrentSkipListSet<Ticket> raced = queues.putIfAbsent(storeID, queue);
+            if (raced != null) queue = raced;
+         }
+         return queue;
+      }
+
+      public void add(int orderID, int storeID, long timestamp) {
+         Ticket ticket = new Ticket(orderID, storeID, timestamp);
+         if (tickets.putIfAbsent(orderID, ticket) == null) queue(storeID).add(ticket);
+      }
+
+      public void remove(int orderID) {
+         Ticket ticket = tickets.remove(orderID);
+         if (ticket != null && ticket.taken.compareAndSet(false, true)) queue(ticket.storeID).remove(ticket);
+      }
+
+      /*
+       * Takes the oldest waiting order at a store off the board.
+       * @return the order, or null if nothing is waiting
+       */
+      public Ticket claimNext(int storeID) {
+         ConcurrentSkipListSet<Ticket> queue = queues.get(storeID);
+         if (queue == null) return null;
+         Ticket ticket;
+         while ((ticket = queue.pollFirst()) != null) {
+            if (ticket.taken.compareAndSet(false, true)) {
+               tickets.remove(ticket.orderID, ticket);
+               return ticket;
+            }
+         }
+         return null;
+      }
+
+      // the oldest waiting orders at a store, without claiming them
+      public List<Ticket> peek(int storeID, int limit) {
+         List<Ticket> waiting = new ArrayList<Ticket>();
+         ConcurrentSkipListSet<Ticket> queue = queues.get(storeID);
+         if (queue == null) return waiting;
+         for (Ticket ticket : queue) {
+            if (waiting.size() == limit) break;
+            if (!ticket.taken.get()) waiting.add(ticket);
+         }
+         return waiting;
+      }
+
+      /*
+       * Brings the board in line with FoodOrder on every shard: adds waiting
+       * orders placed elsewhere and drops those another instance has claimed
+       * or finished. Tickets added since the reload started are kept, since
+       * the orders they stand for may have been placed after it read them.
+       */
+      public void reload(List<Connection> shards) throws SQLException {
+         long started = System.nanoTime();
+         Set<Integer> waiting = new HashSet<Integer>();
+         for (Connection conn : shards) {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery(String.format(
+               "SELECT orderID, storeID, orderTimestamp FROM FoodOrder WHERE %s;", OrderStatus.WAITING));
+            while (rs.next()) {
+               waiting.add(rs.getInt(1));
+               add(rs.getInt(1), rs.getInt(2), rs.getTimestamp(3).getTime());
+            }
+            stmt.close();
+         }
+         for (Ticket ticket : tickets.values()) {
+            if (!waiting.contains(ticket.orderID) && ticket.added - started < 0) remove(ticket.orderID);
+         }
+      }
+   }//end DispatchBoard
+
+   /*
+   Deadlines: each operation has a time limit for its database work, set with
+   -Dpizza.deadline.<operation>=ms, else -Dpizza.deadline.ms (30 s by default, none
+   for exports and bulk menu updates); 0 means no limit. The clock starts when the
+   operation begins and restarts after every line the user types. Each statement
+   runs with whatever is left as its query timeout, and one started with nothing
+   left fails at once. The driver cancels a statement that runs out on the server,
+   so the connection stays usable and, outside a transaction, nothing is half done.
+   */
+
+   static class DeadlineExceededException extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      public DeadlineExceededException(String operation, long limitMillis, SQLException cause) {
+         super(operation + " took longer than its " + limitMillis + " ms limit and was cancelled", "57014", cause);
+      }
+   }
+
+   static class Deadlines {
+
+      private final ConcurrentHashMap<String, AtomicLong> timeouts = new ConcurrentHashMap<String, AtomicLong>();
+
+      static long budgetMillis(String operation) {
+         boolean unbounded = operation.equals("exportData") || operation.equals("bulkUpdateMenu");
+         return config("deadline." + operation, unbounded ? 0 : config("deadline.ms", 30000));
+      }
+
+      public void record(String operation) {
+         AtomicLong count = timeouts.get(operation);
+         if (count == null) {
+            timeouts.putIfAbsent(operation, new AtomicLong());
+            count = timeouts.get(operation);
+         }
+         count.incrementAndGet();
+      }
+
+      // one row per operation that has timed out: operation, limit, timeouts
+      public List<String[]> report() {
+         List<String[]> rows = new ArrayList<String[]>();
+         for (Map.Entry<String, AtomicLong> entry : timeouts.entrySet()) {
+            rows.add(new String[] {entry.getKey(), String.valueOf(budgetMillis(entry.getKey())), String.valueOf(entry.getValue().get())});
+         }
+         Collections.sort(rows, new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+               return a[0].compareTo(b[0]);
+            }
+         });
+         return rows;
+      }
+   }//end Deadlines
+
+   /*
+   Fault Injection: with -Dpizza.fault.latency.ms=N every statement waits N ms, plus
+   up to -Dpizza.fault.jitter.ms more, before it reaches the database, or only the
+   statements of the operations listed in -Dpizza.fault.operations. A wait longer
+   than the statement's query timeout fails the way a cancelled query does, so
+   deadlines and admission control can be tried out against a fast local database.
+   Connections are only wrapped when a latency or jitter is configured.
+   */
+
+   static class FaultInjector implements InvocationHandler {
+
+      static final long LATENCY = config("fault.latency.ms", 0);
+      static final long JITTER = config("fault.jitter.ms", 0);
+      static final Set<String> OPERATIONS = new HashSet<String>();
+      static {
+         for (String operation : config("fault.operations", "").split(",")) {
+            if (!operation.trim().isEmpty()) OPERATIONS.add(operation.trim());
+         }
+      }
+
+      private final Object target;
+      private int timeoutSeconds = 0;
+
+      private FaultInjector(Object target) {
+         this.target = target;
+      }
+
+      public static Connection wrap(Connection conn) {
+         if (LATENCY <= 0 && JITTER <= 0) return conn;
+         return (Connection) Proxy.newProxyInstance(FaultInjector.class.getClassLoader(),
+            new Class<?>[] {Connection.class}, new FaultInjector(conn));
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (target instanceof Statement) {
+            if (name.equals("setQueryTimeout")) timeoutSeconds = (Integer) args[0];
+            else if (name.startsWith("execute")) delay();
+         }
+         Object result;
+         try {
+            result = method.invoke(target, args);
+         }
+         catch (InvocationTargetException e) {
+            throw e.getCause();
+         }
+         // statements made by a wrapped connection are wrapped too
+         if (result instanceof Statement && target instanceof Connection) {
+            Class<?> type = result instanceof CallableStatement ? CallableStatement.class
+                          : result instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+            return Proxy.newProxyInstance(FaultInjector.class.getClassLoader(), new Class<?>[] {type}, new FaultInjector(result));
+         }
+         return result;
+      }
+
+      private void delay() throws SQLException {
+         if (!OPERATIONS.isEmpty() && !OPERATIONS.contains(operation())) return;
+         long millis = LATENCY + (JITTER > 0 ? ThreadLocalRandom.current().nextLong(JITTER + 1) : 0);
+         try {
+            if (timeoutSeconds > 0 && millis >= timeoutSeconds * 1000L) {
+               Thread.sleep(timeoutSeconds * 1000L);
+               throw new SQLException("ERROR: canceling statement due to user request (injected latency)", "57014");
+            }
+            Thread.sleep(millis);
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted during injected latency");
+         }
+      }
+   }//end FaultInjector
+
+   /*
+   Admission Control: every execute* call takes a permit before it touches the
+   database. The number of permits adapts to observed query latency (AIMD): it
+   grows by about one per round of fast queries and shrinks by 10% when a query
+   takes well over the best seen recently for the same operation, so a history
+   scan is not held against a point lookup, or when a query fails in a way that
+   points at an overloaded database (timed out or cancelled, out of resources,
+   lost connection, deadlock or serialization failure). Order placement and
+   status updates may use the whole limit, menu browsing 75% of it and history
+   lookups half, so under load the cheap-to-retry work is shed first. A caller that
+   cannot get a permit within its class's wait budget gets a BusyException at once
+   instead of piling up.
+   */
+
+   static class BusyException extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      public BusyException(String operation) {
+         super("Database busy, please retry (" + operation + ")", "53000");
+      }
+   }
+
+   static class AdmissionController {
+
+      static final int HIGH = 0;
+      static final int MEDIUM = 1;
+      static final int LOW = 2;
+      static final String[] CLASS_NAMES = {"high", "medium", "low"};
+      static final double[] SHARE = {1.0, 0.75, 0.5};
+
+      class Permit {
+         final String operation;
+         final long start = System.nanoTime();
+         final int inflightAtStart;
+         private boolean measured = false;
+
+         Permit(String operation, int inflightAtStart) {
+            this.operation = operation;
+            this.inflightAtStart = inflightAtStart;
+         }
+
+         /*
+          * Takes the latency sample now, for a caller that keeps the permit
+          * long after its query has answered; release() then takes none.
+          */
+         public void measure() {
+            AdmissionController.this.measure(this);
+         }
+
+         /*
+          * @param failure what the statement failed with, or null if it succeeded
+          */
+         public void release(SQLException failure) {
+            AdmissionController.this.release(this, failure);
+         }
+      }
+
+      private final int minLimit;
+      private final int maxLimit;
+      private final int maxQueued;
+      private final long[] maxWaitNanos = new long[3];
+      private final double tolerance;
+
+      private double limit;
+      private int inflight = 0;
+      private int queued = 0;
+      // per operation: {best latency seen recently in ns, samples}
+      private final Map<String, long[]> baselines = new HashMap<String, long[]>();
+      private long overloads = 0;
+
+      private final long[] admitted = new long[3];
+      private final long[] rejected = new long[3];
+      private final long[] queueNanos = new long[3];
+      private final long[] maxQueueNanos = new long[3];
+
+      public AdmissionController() {
+         this.minLimit = config("admission.min", 1);
+         this.maxLimit = config("admission.max", 32);
+         this.limit = Math.min(maxLimit, config("admission.initial", 8));
+         this.maxQueued = config("admission.queue", 64);
+         this.tolerance = Double.parseDouble(config("admission.tolerance", "2.0"));
+         this.maxWaitNanos[HIGH] = config("admission.wait.high.ms", 1000) * 1000000L;
+         this.maxWaitNanos[MEDIUM] = config("admission.wait.medium.ms", 250) * 1000000L;
+         this.maxWaitNanos[LOW] = config("admission.wait.low.ms", 50) * 1000000L;
+      }
+
+      /*
+       * Priority class of an operation, overridable with e.g.
+       * -Dpizza.admission.class.viewMenu=low
+       */
+      static int priorityOf(String operation) {
+         String configured = config("admission.class." + operation, "");
+         for (int i = 0; i < CLASS_NAMES.length; i++) {
+            if (CLASS_NAMES[i].equals(configured)) return i;
+         }
+         if (operation.equals("placeOrder") || operation.equals("repeatOrder") || operation.equals("updateOrderStatus")
+             || operation.equals("claimDelivery") || operation.equals("LogIn")) return HIGH;
+         if (operation.equals("viewAllOrders") || operation.equals("viewRecentOrders")
+             || operation.equals("viewOrderInfo") || operation.equals("bulkUpdateMenu")
+             || operation.equals("exportData") || operation.equals("checkOrderStats")
+             || operation.equals("viewDatabaseHealth")) return LOW;
+         return MEDIUM;
+      }
+
+      public synchronized Permit acquire(String operation) throws BusyException {
+         int priority = priorityOf(operation);
+         long start = System.nanoTime();
+         if (!hasRoom(priority)) {
+            if (queued >= maxQueued) {
+               rejected[priority]++;
+               throw new BusyException(operation);
+            }
+            queued++;
+            try {
+               long remaining = maxWaitNanos[priority];
+               while (!hasRoom(priority) && remaining > 0) {
+                  wait(Math.max(1, remaining / 1000000));
+                  remaining = maxWaitNanos[priority] - (System.nanoTime() - start);
+               }
+            }
+            catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            finally {
+               queued--;
+            }
+            if (!hasRoom(priority)) {
+               rejected[priority]++;
+               throw new BusyException(operation);
+            }
+         }
+         long waited = System.nanoTime() - start;
+         admitted[priority]++;
+         queueNanos[priority] += waited;
+         maxQueueNanos[priority] = Math.max(maxQueueNanos[priority], waited);
+         return new Permit(operation, inflight++);
+      }
+
+      private boolean hasRoom(int priority) {
+         return inflight < Math.max(minLimit, (int) (limit * SHARE[priority]));
+      }
+
+      private synchronized void release(Permit permit, SQLException failure) {
+         inflight--;
+         if (failure != null) {
+            // a failed query's latency says nothing; only an overload shrinks the limit
+            if (overloaded(failure)) {
+               overloads++;
+               limit = Math.max(minLimit, limit * 0.9);
+            }
+         }
+         else if (!permit.measured) {
+            sample(permit);
+         }
+         notifyAll();
+      }
+
+      private synchronized void measure(Permit permit) {
+         if (permit.measured) return;
+         permit.measured = true;
+         sample(permit);
+      }
+
+      private void sample(Permit permit) {
+         long rtt = System.nanoTime() - permit.start;
+         long[] baseline = baselines.get(permit.operation);
+         if (baseline == null) {
+            baseline = new long[] {Long.MAX_VALUE, 0};
+            baselines.put(permit.operation, baseline);
+         }
+         // forget the best latency now and then so the baseline follows the database
+         if (rtt < baseline[0] || ++baseline[1] % 1000 == 0) baseline[0] = rtt;
+         if (rtt > baseline[0] * tolerance) {
+            limit = Math.max(minLimit, limit * 0.9);
+         }
+         else if (permit.inflightAtStart + 1 >= limit / 2) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+         }
+      }
+
+      // SQLState classes of failures that come from load rather than from the statement
+      static boolean overloaded(SQLException e) {
+         String state = e.getSQLState();
+         if (state == null || state.length() < 2) return false;
+         String cls = state.substring(0, 2);
+         return cls.equals("57") || cls.equals("53") || cls.equals("08") || cls.equals("40");
+      }
+
+      // one row per priority class: admitted, rejected, average and worst queue time
+      public synchronized List<String[]> report() {
+         List<String[]> rows = new ArrayList<String[]>();
+         for (int i = 0; i < CLASS_NAMES.length; i++) {
+            rows.add(new String[] {CLASS_NAMES[i], String.valueOf(admitted[i]), String.valueOf(rejected[i]),
+               String.format("%.2f", admitted[i] == 0 ? 0.0 : queueNanos[i] / 1e6 / admitted[i]),
+               String.format("%.2f", maxQueueNanos[i] / 1e6)});
+         }
+         return rows;
+      }
+
+      public synchronized String summary() {
+         return String.format("limit %.1f, in flight %d, queued %d, %d overload failures",
+            limit, inflight, queued, overloads);
+      }
+   }//end AdmissionController
+
+   /*
+   Order Status: the lifecycle of an order, stored in FoodOrder.orderStatus as a
+   smallint code (names in OrderStatusName). Orders move forward only:
+
+      placed -> preparing -> out-for-delivery -> delivered
+      placed -> out-for-delivery
+      any open status -> cancelled
+
+   delivered and cancelled are terminal. Open_Order_Index only covers orders that
+   are not terminal, so open-order queries include OPEN (or a narrower condition
+   that implies it) to be able to use it.
+   */
+
+   enum OrderStatus {
+      PLACED(0, "placed"),
+      PREPARING(1, "preparing"),
+      OUT_FOR_DELIVERY(2, "out-for-delivery"),
+      DELIVERED(3, "delivered"),
+      CANCELLED(4, "cancelled");
+
+      // orders that are not finished yet; same predicate as Open_Order_Index
+      static final String OPEN = "orderStatus < 3";
+      // open orders no driver has taken yet
+      static final String WAITING = "orderStatus < 2";
+      // finished orders
+      static final String TERMINAL = "orderStatus >= 3";
+
+      final int code;
+      final String label;
+
+      OrderStatus(int code, String label) {
+         this.code = code;
+         this.label = label;
+      }
+
+      public boolean isTerminal() {
+         return code >= DELIVERED.code;
+      }
+
+      public boolean canMoveTo(OrderStatus next) {
+         switch (this) {
+            case PLACED: return next == PREPARING || next == OUT_FOR_DELIVERY || next == CANCELLED;
+            case PREPARING: return next == OUT_FOR_DELIVERY || next == CANCELLED;
+            case OUT_FOR_DELIVERY: return next == DELIVERED || next == CANCELLED;
+            default: return false;
+         }
+      }
+
+      // SQL list of the codes an order may move to this status from
+      public String predecessors() {
+         StringBuilder sb = new StringBuilder();
+         for (OrderStatus status : values()) {
+            if (status.canMoveTo(this)) {
+               if (sb.length() > 0) sb.append(", ");
+               sb.append(status.code);
+            }
+         }
+         return sb.length() == 0 ? "-1" : sb.toString();
+      }
+
+      public static OrderStatus fromCode(int code) {
+         for (OrderStatus status : values()) {
+            if (status.code == code) return status;
+         }
+         throw new IllegalArgumentException("Unknown order status " + code);
+      }
+   }//end OrderStatus
+
+   /*
+   Shards: FoodOrder and ItemsInOrder can be split by store across several databases,
+   listed as -Dpizza.shards=port/dbname,host:port/dbname,... . Shard 0 is the database
+   named on the command line, and with no list it is the only shard. Users, Items and
+   Store are only written on shard 0; the ShardReplicator copies them to the others.
+   An order lives on shard storeID mod N, and new orderIDs are numbered so that
+   orderID mod N is the same shard, so an order is found from its ID alone.
+   create_shards.sh sets up the other databases and records in each one's ShardInfo
+   which shard it is.
+   */
+
+   static class Shards {
+
+      private final String[] urls;
+      private final String user;
+      private final String passwd;
+      // the interactive session's connection to each shard, opened on first use
+      private final Connection[] connections;
+      // runs one query per shard at once for scatter-gather reads
+      private final ExecutorService pool;
+
+      public Shards(String url, String user, String passwd, Connection main, String spec) {
+         List<String> list = new ArrayList<String>();
+         list.add(url);
+         for (String shard : spec.split(",")) {
+            shard = shard.trim();
+            if (shard.isEmpty()) continue;
+            list.add(shard.startsWith("jdbc:") ? shard
+               : "jdbc:postgresql://" + (shard.indexOf(':') < 0 ? "localhost:" : "") + shard);
+         }
+         this.urls = list.toArray(new String[list.size()]);
+         this.user = user;
+         this.passwd = passwd;
+         this.connections = new Connection[urls.length];
+         this.connections[0] = main;
+         this.pool = urls.length == 1 ? null : Executors.newFixedThreadPool(urls.length, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+               Thread thread = new Thread(task, "shard-query");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+
+      public int count() {
+         return urls.length;
+      }
+
+      public int[] all() {
+         int[] shards = new int[urls.length];
+         for (int shard = 0; shard < shards.length; shard++) shards[shard] = shard;
+         return shards;
+      }
+
+      public int ofStore(int storeID) {
+         return Math.floorMod(storeID, urls.length);
+      }
+
+      public int ofOrder(int orderID) {
+         return Math.floorMod(orderID, urls.length);
+      }
+
+      // the smallest ID above maxID that belongs to the shard
+      public int nextOrderID(int maxID, int shard) {
+         return (maxID / urls.length + 1) * urls.length + shard;
+      }
+
+      public String url(int shard) {
+         return urls[shard];
+      }
+
+      public synchronized Connection connection(int shard) throws SQLException {
+         if (connections[shard] == null) connections[shard] = FaultInjector.wrap(DriverManager.getConnection(urls[shard], user, passwd));
+         return connections[shard];
+      }
+
+      // runs a task on the pool, or right away when there is only one shard
+      public <T> Future<T> submit(Callable<T> task) {
+         if (pool != null) return pool.submit(task);
+         FutureTask<T> future = new FutureTask<T>(task);
+         future.run();
+         return future;
+      }
+
+      public static <T> T await(Future<T> future) throws SQLException {
+         try {
+            return future.get();
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a shard");
+         }
+         catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+            throw new SQLException(e.getCause().toString());
+         }
+      }
+
+      /*
+       * Checks that every database was set up by create_shards.sh as the shard it
+       * is listed as, out of the same number of shards, so orders are never
+       * routed to the wrong database.
+       */
+      public void verify(PizzaStore esql) throws SQLException {
+         for (int shard = 0; shard < urls.length; shard++) {
+            List<List<String>> info = esql.executeQueryAndReturnResult(shard, "SELECT shard, shardCount FROM ShardInfo;");
+            if (info.size() != 1 || Integer.parseInt(info.get(0).get(0)) != shard || Integer.parseInt(info.get(0).get(1)) != urls.length) {
+               throw new SQLException(String.format("%s is not set up as shard %d of %d, run create_shards.sh", urls[shard], shard, urls.length));
+            }
+         }
+      }
+
+      // closes the connections this class opened; shard 0's belongs to PizzaStore
+      public synchronized void close() {
+         if (pool != null) pool.shutdownNow();
+         for (int shard = 1; shard < connections.length; shard++) {
+            try {
+               if (connections[shard] != null) connections[shard].close();
+            }catch (SQLException e) {
+               // ignored.
+            }
+            connections[shard] = null;
+         }
+      }
+   }//end Shards
+
+   /*
+   Shard Replicator: keeps Users, Items and Store on the other shards in step with
+   shard 0 by following the CatalogChanges log that the triggers in
+   create_triggers.sql fill. Each shard records in ShardInfo the last version it
+   has applied, in the same transaction as the rows, so a restart or a second
+   instance carries on where the last one stopped. A changed row is copied as it
+   is now on shard 0, or deleted if it is gone there, so applying a change twice
+   is harmless. A row that orders on the shard still refer to is kept, since
+   deleting it would cascade to those orders. Before writing to a shard,
+   placeOrder and repeatOrder call ensureRows(), which copies only the order's
+   user and items, and only if the shard does not have them yet, so a new user
+   or item gets there before the first order that refers to it.
+   */
+
+   static class ShardReplicator implements Runnable {
+
+      // table, key column, the order table whose rows refer to it, and the
+      // surrogate key those rows hold instead when the database has them
+      static final String[][] TABLES = {
+         {"users", "login", "FoodOrder", "userID"},
+         {"items", "itemName", "ItemsInOrder", "itemID"},
+         {"store", "storeID", "FoodOrder", null}
+      };
+
+      private final PizzaStore esql;
+      private final int pollMillis;
+      private Connection home = null;
+      private Connection[] shards = null;
+
+      public ShardReplicator(PizzaStore esql) {
+         this.esql = esql;
+         this.pollMillis = config("shards.poll.ms", 1000);
+      }
+
+      public void run() {
+         while (!Thread.currentThread().isInterrupted()) {
+            try {
+               catchUp();
+            }
+            catch (SQLException e) {
+               System.err.println("Shard replication failed: " + e.getMessage());
+            }
+            try {
+               Thread.sleep(pollMillis);
+            }
+            catch (InterruptedException e) {
+               return;
+            }
+         }
+      }
+
+      /*
+       * Applies every change logged on shard 0 to each of the other shards.
+       */
+      public void catchUp() throws SQLException {
+         for (int shard = 1; shard < esql.shards().count(); shard++) catchUp(shard);
+      }
+
+      /*
+       * Applies every change logged on shard 0 to one other shard.
+       */
+      public synchronized void catchUp(int shard) throws SQLException {
+         try {
+            open();
+            replicate(shards[shard]);
+         }
+         catch (SQLException e) {
+            close();
+            throw e;
+         }
+      }
+
+      /*
+       * Makes sure the user and items an order refers to are on its shard. One
+       * query finds those the shard is missing, usually none, and only they are
+       * copied; everything else is left to the background thread. A failure is
+       * only logged, since the order needs at most those few rows and fails on
+       * its own foreign keys if one really is missing.
+       */
+      public void ensureRows(int shard, String login, List<String> itemNames) {
+         try {
+            StringBuilder keys = new StringBuilder(String.format("('users', '%s')", login));
+            for (String itemName : itemNames) keys.append(String.format(", ('items', '%s')", itemName));
+            List<List<String>> missing = esql.executeQueryAndReturnResult(shard, String.format(
+               "SELECT k.tableName, k.rowKey FROM (VALUES %s) AS k(tableName, rowKey) " +
+               "WHERE NOT EXISTS (SELECT 1 FROM Users WHERE k.tableName = 'users' AND login = k.rowKey) " +
+               "AND NOT EXISTS (SELECT 1 FROM Items WHERE k.tableName = 'items' AND itemName = k.rowKey);", keys));
+            if (!missing.isEmpty()) copyRows(shard, missing);
+         }
+         catch (SQLException e) {
+            System.err.println("Could not copy an order's user and items to shard " + shard + ": " + e.getMessage());
+         }
+      }
+
+      // copies a few rows, each {table, key}, from shard 0 to another shard
+      private synchronized void copyRows(int shard, List<List<String>> rows) throws SQLException {
+         try {
+            open();
+            try {
+               for (List<String> row : rows) {
+                  for (String[] table : TABLES) {
+                     if (table[0].equals(row.get(0).trim())) copy(shards[shard], table, row.get(1));
+                  }
+               }
+               shards[shard].commit();
+            }
+            catch (SQLException e) {
+               shards[shard].rollback();
+               throw e;
+            }
+         }
+         catch (SQLException e) {
+            close();
+            throw e;
+         }
+      }
+
+      private void open() throws SQLException {
+         if (home != null) return;
+         Connection[] opened = new Connection[esql.shards().count()];
+         opened[0] = esql.openConnection(0);
+         shards = opened;
+         home = opened[0];
+         for (int other = 1; other < opened.length; other++) {
+            opened[other] = esql.openConnection(other);
+            opened[other].setAutoCommit(false);
+         }
+      }
+
+      /*
+       * Versions are handed out before commit, so a change that committed late
+       * can carry a lower version than one already applied; the last minute is
+       * replayed as well to catch it, as CatalogListener does. If the log no
+       * longer reaches back to the shard's version every row is compared.
+       */
+      private void replicate(Connection shard) throws SQLException {
+         Statement stmt = shard.createStatement();
+         Statement read = home.createStatement();
+         try {
+            // the row lock keeps two instances from replicating to the shard at once
+            ResultSet rs = stmt.executeQuery("SELECT replicatedVersion FROM ShardInfo FOR UPDATE;");
+            rs.next();
+            long applied = rs.getLong(1);
+            rs.close();
+
+            rs = read.executeQuery("SELECT COALESCE(MIN(version), 0), COALESCE(MAX(version), 0) FROM CatalogChanges;");
+            rs.next();
+            long oldest = rs.getLong(1);
+            long newest = rs.getLong(2);
+            rs.close();
+
+            Set<String> changed = new LinkedHashSet<String>();
+            if (oldest > applied + 1) {
+               for (String[] table : TABLES) {
+                  String keys = String.format("SELECT %s FROM %s;", table[1], table[0]);
+                  for (Statement side : new Statement[] {read, stmt}) {
+                     rs = side.executeQuery(keys);
+                     while (rs.next()) changed.add(table[0] + ":" + rs.getString(1));
+                     rs.close();
+                  }
+               }
+            }
+            else {
+               rs = read.executeQuery(String.format(
+                  "SELECT tableName, rowKey FROM CatalogChanges WHERE version > %d OR changedAt > clock_timestamp() - interval '1 minute' ORDER BY version;",
+                  applied));
+               while (rs.next()) changed.add(rs.getString(1) + ":" + rs.getString(2));
+               rs.close();
+            }
+
+            for (String change : changed) {
+               String[] parts = change.split(":", 2);
+               for (String[] table : TABLES) {
+                  if (table[0].equals(parts[0])) copy(shard, table, parts[1]);
+               }
+            }
+            stmt.executeUpdate(String.format("UPDATE ShardInfo SET replicatedVersion = %d;", Math.max(applied, newest)));
+            shard.commit();
+         }
+         catch (SQLException e) {
+            shard.rollback();
+            throw e;
+         }
+         finally {
+            stmt.close();
+            read.close();
+         }
+      }
+
+      // makes one row on the shard match shard 0
+      private void copy(Connection shard, String[] table, String key) throws SQLException {
+         PreparedStatement read = home.prepareStatement(String.format("SELECT * FROM %s WHERE %s = ?;", table[0], table[1]));
+         try {
+            bindKey(read, 1, table, key);
+            ResultSet rs = read.executeQuery();
+            if (!rs.next()) {
+               delete(shard, table, key);
+               return;
+            }
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numCol = rsmd.getColumnCount();
+            StringBuilder set = new StringBuilder();
+            StringBuilder columns = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            for (int i = 1; i <= numCol; i++) {
+               String sep = i > 1 ? ", " : "";
+               set.append(sep).append(rsmd.getColumnName(i)).append(" = ?");
+               columns.append(sep).append(rsmd.getColumnName(i));
+               values.append(sep).append('?');
+            }
+
+            // with surrogate keys a renamed row is found by its ID, so it is
+            // renamed in place rather than inserted again under the new name
+            boolean byID = _surrogateKeys && table[3] != null;
+            PreparedStatement update = shard.prepareStatement(String.format("UPDATE %s SET %s WHERE %s = ?;", table[0], set, byID ? table[3] : table[1]));
+            try {
+               bindRow(update, rs);
+               if (byID) update.setInt(numCol + 1, rs.getInt(table[3]));
+               else bindKey(update, numCol + 1, table, key);
+               if (update.executeUpdate() > 0) return;
+            }
+            finally {
+               update.close();
+            }
+            PreparedStatement insert = shard.prepareStatement(String.format("INSERT INTO %s (%s) VALUES (%s);", table[0], columns, values));
+            try {
+               bindRow(insert, rs);
+               insert.executeUpdate();
+            }
+            finally {
+               insert.close();
+            }
+         }
+         finally {
+            read.close();
+         }
+      }
+
+      private void delete(Connection shard, String[] table, String key) throws SQLException {
+         String usedKey = _surrogateKeys && table[3] != null
+            ? String.format("%s = (SELECT %s FROM %s WHERE %s = ?)", table[3], table[3], table[0], table[1])
+            : table[1] + " = ?";
+         PreparedStatement used = shard.prepareStatement(String.format("SELECT 1 FROM %s WHERE %s LIMIT 1;", table[2], usedKey));
+         PreparedStatement delete = shard.prepareStatement(String.format("DELETE FROM %s WHERE %s = ?;", table[0], table[1]));
+         try {
+            bindKey(used, 1, table, key);
+            ResultSet rs = used.executeQuery();
+            if (rs.next()) {
+               System.err.println(String.format("Keeping %s %s on a shard, orders there still refer to it", table[0], key));
+               return;
+            }
+            bindKey(delete, 1, table, key);
+            delete.executeUpdate();
+         }
+         finally {
+            used.close();
+            delete.close();
+         }
+      }
+
+      private static void bindKey(PreparedStatement stmt, int index, String[] table, String key) throws SQLException {
+         if (table[0].equals("store")) stmt.setInt(index, Integer.parseInt(key));
+         else stmt.setString(index, key);
+      }
+
+      private static void bindRow(PreparedStatement stmt, ResultSet rs) throws SQLException {
+         ResultSetMetaData rsmd = rs.getMetaData();
+         for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+            Object value = rs.getObject(i);
+            if (value == null) stmt.setNull(i, rsmd.getColumnType(i));
+            else stmt.setObject(i, value);
+         }
+      }
+
+      private void close() {
+         if (shards == null) return;
+         for (Connection conn : shards) {
+            try {
+               if (conn != null) conn.close();
+            }catch (SQLException e) {
+               // ignored.
+            }
+         }
+         shards = null;
+         home = null;
+      }
+   }//end ShardReplicator
+
+   /*
+   Stats Sampler: every pizza.stats.interval.ms it reads what each shard's Postgres
+   knows about its own load: time and buffer use per statement from
+   pg_stat_statements, live and dead rows and scans from pg_stat_user_tables, index
+   scans and cache hits from pg_stat_user_indexes and pg_statio_user_indexes, and
+   lock waits from pg_locks. Statements sent through the execute methods start with
+   their operation's name in a comment (see tag()), so statement time and lock
+   waits are added up per operation. pg_stat_statements keeps one entry per shape
+   of statement, so a statement two operations share counts for whichever ran it
+   first. Each sample appends tab-separated lines to pizza.stats.file:
+
+      time  shard  op     name  calls  ms  blockshit  blocksread
+      time  shard  table  name  livetuples  deadtuples  seqscans  indexscans
+      time  shard  index  name  scans  blockshit  blocksread
+      time  shard  locks  name  waiting
+
+   Calls, time, scans and blocks are the change since the previous sample, and a
+   line is only written when something changed.
+   */
+
+   static class StatsSampler implements Runnable {
+
+      // the operation a statement was tagged with, or 'other'
+      static final String OPERATION = "COALESCE(substring(%s from '^/\\* (\\w+) \\*/'), 'other')";
+
+      private final PizzaStore esql;
+      private final int intervalMillis;
+      private final String path;
+      // counters at the previous sample, by "shard kind name"
+      private final Map<String, long[]> previous = new HashMap<String, long[]>();
+      // how many samples found each operation waiting for a lock
+      private final ConcurrentHashMap<String, Long> lockWaits = new ConcurrentHashMap<String, Long>();
+      // per operation figures of the last sample: shard, operation, calls, ms, cache hit %
+      private volatile List<String[]> lastOperations = new ArrayList<String[]>();
+      private final String[] timeColumn;
+      private final boolean[] statements;
+
+      public StatsSampler(PizzaStore esql) {
+         this.esql = esql;
+         this.intervalMillis = config("stats.interval.ms", 60000);
+         this.path = config("stats.file", "pizza-stats.tsv");
+         this.timeColumn = new String[esql.shards().count()];
+         this.statements = new boolean[esql.shards().count()];
+      }
+
+      public void run() {
+         Connection[] conns = new Connection[esql.shards().count()];
+         try {
+            while (!Thread.currentThread().isInterrupted()) {
+               long now = System.currentTimeMillis();
+               StringBuilder lines = new StringBuilder();
+               List<String[]> operations = new ArrayList<String[]>();
+               for (int shard = 0; shard < conns.length; shard++) {
+                  try {
+                     if (conns[shard] == null) conns[shard] = esql.openConnection(shard);
+                     sample(conns[shard], shard, now, lines, operations);
+                  }
+                  catch (SQLException e) {
+                     System.err.println("Stats sampler lost shard " + shard + ": " + e.getMessage());
+                     close(conns[shard]);
+                     conns[shard] = null;
+                  }
+               }
+               lastOperations = operations;
+               try {
+                  Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8));
+                  try {
+                     out.write(lines.toString());
+                  }
+                  finally {
+                     out.close();
+                  }
+               }
+               catch (IOException e) {
+                  System.err.println("Stats sampler cannot write " + path + ": " + e.getMessage());
+               }
+               Thread.sleep(intervalMillis);
+            }
+         }
+         catch (InterruptedException e) {
+            // shutting down.
+         }
+         finally {
+            for (Connection conn : conns) close(conn);
+         }
+      }
+
+      private void sample(Connection conn, int shard, long now, StringBuilder lines, List<String[]> operations) throws SQLException {
+         Statement stmt = conn.createStatement();
+         try {
+            ResultSet rs;
+            if (timeColumn[shard] == null) {
+               rs = stmt.executeQuery("SELECT current_setting('server_version_num')::int, EXISTS (SELECT 1 FROM pg_extension WHERE extname = 'pg_stat_statements');");
+               rs.next();
+               // renamed in Postgres 13
+               timeColumn[shard] = rs.getInt(1) >= 130000 ? "total_exec_time" : "total_time";
+               statements[shard] = rs.getBoolean(2);
+               rs.close();
+               if (!statements[shard]) System.err.println("pg_stat_statements is not installed on shard " + shard + ", statement times are not sampled");
+            }
+
+            if (statements[shard]) {
+               try {
+                  rs = stmt.executeQuery(String.format(
+                     "SELECT op, SUM(calls), SUM(ms), SUM(hit), SUM(read) FROM (SELECT %s AS op, calls, %s AS ms, shared_blks_hit AS hit, shared_blks_read AS read " +
+                     "FROM pg_stat_statements WHERE dbid = (SELECT oid FROM pg_database WHERE datname = current_database())) AS s GROUP BY op;",
+                     String.format(OPERATION, "query"), timeColumn[shard]));
+                  while (rs.next()) {
+                     String op = rs.getString(1);
+                     long[] delta = delta(shard + " op " + op, new long[] {rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getLong(5)});
+                     if (delta == null) continue;
+                     line(lines, now, shard, "op", op, delta);
+                     operations.add(new String[] {String.valueOf(shard), op, String.valueOf(delta[0]), String.valueOf(delta[1]), hitRatio(delta[2], delta[3])});
+                  }
+                  rs.close();
+               }
+               catch (SQLException e) {
+                  // installed but not in shared_preload_libraries
+                  statements[shard] = false;
+                  System.err.println("Cannot read pg_stat_statements on shard " + shard + ": " + e.getMessage());
+               }
+            }
+
+            rs = stmt.executeQuery("SELECT relname, n_live_tup, n_dead_tup, seq_scan, COALESCE(idx_scan, 0) FROM pg_stat_user_tables;");
+            while (rs.next()) {
+               long[] scans = delta(shard + " table " + rs.getString(1), new long[] {rs.getLong(4), rs.getLong(5)});
+               if (scans == null) continue;
+               line(lines, now, shard, "table", rs.getString(1), new long[] {rs.getLong(2), rs.getLong(3), scans[0], scans[1]});
+            }
+            rs.close();
+
+            rs = stmt.executeQuery(
+               "SELECT s.indexrelname, s.idx_scan, io.idx_blks_hit, io.idx_blks_read FROM pg_stat_user_indexes s JOIN pg_statio_user_indexes io ON io.indexrelid = s.indexrelid;");
+            while (rs.next()) {
+               long[] delta = delta(shard + " index " + rs.getString(1), new long[] {rs.getLong(2), rs.getLong(3), rs.getLong(4)});
+               if (delta != null) line(lines, now, shard, "index", rs.getString(1), delta);
+            }
+            rs.close();
+
+            rs = stmt.executeQuery(String.format(
+               "SELECT %s, COUNT(*) FROM pg_locks l JOIN pg_stat_activity a ON a.pid = l.pid WHERE NOT l.granted AND a.datname = current_database() GROUP BY 1;",
+               String.format(OPERATION, "a.query")));
+            while (rs.next()) {
+               lines.append(now).append('\t').append(shard).append("\tlocks\t").append(rs.getString(1)).append('\t').append(rs.getLong(2)).append('\n');
+               Long waits = lockWaits.get(rs.getString(1));
+               lockWaits.put(rs.getString(1), (waits == null ? 0 : waits) + 1);
+            }
+            rs.close();
+         }
+         finally {
+            stmt.close();
+         }
+      }
+
+      /*
+       * The change in some counters since the last sample, or null on the first
+       * sample or when nothing changed. Counters that went down were reset, so
+       * their current value is the change.
+       */
+      private long[] delta(String key, long[] current) {
+         long[] last = previous.put(key, current);
+         if (last == null) return null;
+         long[] delta = new long[current.length];
+         boolean changed = false;
+         for (int i = 0; i < current.length; i++) {
+            delta[i] = current[i] >= last[i] ? current[i] - last[i] : current[i];
+            changed |= delta[i] != 0;
+         }
+         return changed ? delta : null;
+      }
+
+      private static void line(StringBuilder lines, long now, int shard, String kind, String name, long[] values) {
+         lines.append(now).append('\t').append(shard).append('\t').append(kind).append('\t').append(name);
+         for (long value : values) lines.append('\t').append(value);
+         lines.append('\n');
+      }
+
+      static String hitRatio(long hit, long read) {
+         return hit + read == 0 ? "" : String.format("%.1f", 100.0 * hit / (hit + read));
+      }
+
+      public List<String[]> lastOperations() {
+         return lastOperations;
+      }
+
+      public List<String[]> lockWaits() {
+         List<String[]> rows = new ArrayList<String[]>();
+         for (Map.Entry<String, Long> entry : lockWaits.entrySet()) {
+            rows.add(new String[] {entry.getKey(), String.valueOf(entry.getValue())});
+         }
+         return rows;
+      }
+
+      private static void close(Connection conn) {
+         try {
+            if (conn != null) conn.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end StatsSampler
+
+
+}//end PizzaStore
+
+
@@ -4,4 +4,11 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_tables.sql
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_indexes.sql
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/load_data.sql
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/migrate_favorites.sql
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_triggers.sql
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_order_stats.sql
 
+# SCHEMA=surrogate ./create_db.sh keeps users and items in the order tables by integer ID
+if [ "$SCHEMA" = "surrogate" ]; then
+   cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/migrate_surrogate_keys.sql
+fi
@@ -16,4 +16,29 @@ CREATE INDEX Order_ID_Index ON ItemsInOrder (orderID);
 
 -- Item name is used frequently for when the user wants to order an item.
 DROP INDEX IF EXISTS Item_Name_Index;
-CREATE INDEX Item_Name_Index ON Items (itemName);
\ No newline at end of file
+CREATE INDEX Item_Name_Index ON Items (itemName);
+
+-- The archiver looks for old completed orders by their timestamp.
+DROP INDEX IF EXISTS Order_Timestamp_Index;
+CREATE INDEX Order_Timestamp_Index ON FoodOrder (orderTimestamp);
+
+-- Full order history looks up archived orders by login.
+DROP INDEX IF EXISTS Archive_Login_Index;
+CREATE INDEX Archive_Login_Index ON FoodOrderArchive (login);
+
+-- Only orders that are not delivered or cancelled, which is a small part of FoodOrder.
+-- Drivers and managers look for open orders per store, oldest first.
+DROP INDEX IF EXISTS Open_Order_Index;
+CREATE INDEX Open_Order_Index ON FoodOrder (storeID, orderTimestamp, orderID) WHERE orderStatus < 3;
+
+-- Who favorited an item, for promotions aimed at them. The primary key covers the other direction.
+DROP INDEX IF EXISTS Favorite_Item_Index;
+CREATE INDEX Favorite_Item_Index ON UserFavorites (itemName, login);
+
+-- Item name completion and "did you mean" for callers that do not use PizzaStore's
+-- in-memory catalog: prefix searches on lower(itemName), and trigram similarity.
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+DROP INDEX IF EXISTS Items_Name_Lower_Index;
+CREATE INDEX Items_Name_Lower_Index ON Items (lower(itemName) text_pattern_ops);
+DROP INDEX IF EXISTS Items_Name_Trgm_Index;
+CREATE INDEX Items_Name_Trgm_Index ON Items USING gin (lower(itemName) gin_trgm_ops);
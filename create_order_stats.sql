@@ -0,0 +1,95 @@
+-- UserOrderStats: one row per user with their order count, lifetime spend and last order.
+-- Placing an order adds to the user's row; the archiver moving orders out of FoodOrder
+-- does not change it. Runs on every shard, after the orders are loaded.
+-- migrate_surrogate_keys.sql replaces all of this with versions for integer user IDs.
+
+-- What UserOrderStats should hold, computed from the orders themselves.
+CREATE OR REPLACE VIEW UserOrderStatsActual AS
+   SELECT login,
+          COUNT(*)::integer AS orderCount,
+          SUM(totalPrice) AS totalSpend,
+          (array_agg(orderID ORDER BY orderTimestamp DESC, orderID DESC))[1] AS lastOrderID,
+          MAX(orderTimestamp) AS lastOrderAt,
+          (array_agg(storeID ORDER BY orderTimestamp DESC, orderID DESC))[1] AS lastStoreID
+   FROM (SELECT orderID, login, storeID, totalPrice, orderTimestamp FROM FoodOrder
+         UNION ALL
+         SELECT orderID, login, storeID, totalPrice, orderTimestamp FROM FoodOrderArchive) AS o
+   GROUP BY login;
+
+-- Users whose row has drifted from their orders, with the stored and actual values.
+CREATE OR REPLACE VIEW UserOrderStatsDrift AS
+   SELECT COALESCE(a.login, s.login) AS login,
+          s.orderCount AS storedCount, a.orderCount AS actualCount,
+          s.totalSpend AS storedSpend, a.totalSpend AS actualSpend,
+          s.lastOrderID AS storedLastOrder, a.lastOrderID AS actualLastOrder
+   FROM UserOrderStatsActual a FULL JOIN UserOrderStats s ON s.login = a.login
+   WHERE a.orderCount IS DISTINCT FROM s.orderCount
+      OR a.totalSpend IS DISTINCT FROM s.totalSpend
+      OR a.lastOrderID IS DISTINCT FROM s.lastOrderID
+      OR a.lastOrderAt IS DISTINCT FROM s.lastOrderAt
+      OR a.lastStoreID IS DISTINCT FROM s.lastStoreID;
+
+-- Recomputes one user's row from their orders.
+CREATE OR REPLACE FUNCTION refresh_user_order_stats(who varchar) RETURNS void AS $$
+   DELETE FROM UserOrderStats WHERE login = who;
+   INSERT INTO UserOrderStats (login, orderCount, totalSpend, lastOrderID, lastOrderAt, lastStoreID)
+   SELECT login, orderCount, totalSpend, lastOrderID, lastOrderAt, lastStoreID FROM UserOrderStatsActual WHERE login = who;
+$$ LANGUAGE sql;
+
+-- Rewrites every drifted row. New orders wait for the lock, so none are lost meanwhile.
+-- Returns the number of users repaired.
+CREATE OR REPLACE FUNCTION repair_user_order_stats() RETURNS integer AS $$
+DECLARE
+   who varchar;
+   repaired integer := 0;
+BEGIN
+   LOCK TABLE UserOrderStats IN SHARE ROW EXCLUSIVE MODE;
+   FOR who IN SELECT login FROM UserOrderStatsDrift LOOP
+      PERFORM refresh_user_order_stats(who);
+      repaired := repaired + 1;
+   END LOOP;
+   RETURN repaired;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A new order only adds to its user's row. The upsert takes the row lock, so
+-- concurrent orders by the same user are applied one after the other.
+CREATE OR REPLACE FUNCTION add_user_order_stats() RETURNS trigger AS $$
+BEGIN
+   INSERT INTO UserOrderStats AS s (login, orderCount, totalSpend, lastOrderID, lastOrderAt, lastStoreID)
+   VALUES (NEW.login, 1, NEW.totalPrice, NEW.orderID, NEW.orderTimestamp, NEW.storeID)
+   ON CONFLICT (login) DO UPDATE SET
+      orderCount = s.orderCount + 1,
+      totalSpend = s.totalSpend + EXCLUDED.totalSpend,
+      lastOrderID = CASE WHEN (EXCLUDED.lastOrderAt, EXCLUDED.lastOrderID) > (s.lastOrderAt, s.lastOrderID) THEN EXCLUDED.lastOrderID ELSE s.lastOrderID END,
+      lastOrderAt = GREATEST(s.lastOrderAt, EXCLUDED.lastOrderAt),
+      lastStoreID = CASE WHEN (EXCLUDED.lastOrderAt, EXCLUDED.lastOrderID) > (s.lastOrderAt, s.lastOrderID) THEN EXCLUDED.lastStoreID ELSE s.lastStoreID END;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Changing who placed an order, its price, store or time is rare, so the users
+-- involved are recomputed rather than adjusted.
+CREATE OR REPLACE FUNCTION change_user_order_stats() RETURNS trigger AS $$
+BEGIN
+   PERFORM refresh_user_order_stats(OLD.login);
+   IF NEW.login IS DISTINCT FROM OLD.login THEN
+      PERFORM refresh_user_order_stats(NEW.login);
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS Order_Stats_Insert_Trigger ON FoodOrder;
+CREATE TRIGGER Order_Stats_Insert_Trigger AFTER INSERT ON FoodOrder
+   FOR EACH ROW EXECUTE PROCEDURE add_user_order_stats();
+
+-- status changes, by far the most common update, do not fire it
+DROP TRIGGER IF EXISTS Order_Stats_Update_Trigger ON FoodOrder;
+CREATE TRIGGER Order_Stats_Update_Trigger AFTER UPDATE OF login, storeID, totalPrice, orderTimestamp ON FoodOrder
+   FOR EACH ROW EXECUTE PROCEDURE change_user_order_stats();
+
+-- backfill from the orders already loaded
+TRUNCATE UserOrderStats;
+INSERT INTO UserOrderStats (login, orderCount, totalSpend, lastOrderID, lastOrderAt, lastStoreID)
+SELECT login, orderCount, totalSpend, lastOrderID, lastOrderAt, lastStoreID FROM UserOrderStatsActual;
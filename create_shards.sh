@@ -0,0 +1,71 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# usage: ./create_shards.sh <port>/<dbname> [<port>/<dbname> ...]
+# Splits orders by store across the main database (shard 0) and the databases
+# given, which must already exist. Run PizzaStore with the same list, in the
+# same order, as -Dpizza.shards=<port>/<dbname>,<port>/<dbname>,...
+# Users, Items and Store are copied to every shard; PizzaStore keeps them in
+# step from then on. Orders keep their IDs; a store's orders move to shard
+# storeID mod N, where N counts the main database too.
+
+MAIN="-p $PGPORT ${USER}_project_phase_3_DB"
+N=$(( $# + 1 ))
+
+# new orders are numbered above every order that exists now
+FIRST=$(cs166_psql $MAIN -At -c "SELECT GREATEST(COALESCE((SELECT MAX(orderID) FROM FoodOrder), 0), COALESCE((SELECT MAX(orderID) FROM FoodOrderArchive), 0));")
+VERSION=$(cs166_psql $MAIN -At -c "SELECT COALESCE(MAX(version), 0) FROM CatalogChanges;")
+# shards get the same schema, with integer user and item IDs if migrate_surrogate_keys.sql has been run
+SURROGATE=$(cs166_psql $MAIN -At -c "SELECT EXISTS (SELECT 1 FROM information_schema.columns WHERE table_schema = current_schema() AND table_name = 'foodorder' AND column_name = 'userid');")
+
+SHARD_INFO="DROP TABLE IF EXISTS ShardInfo;
+CREATE TABLE ShardInfo ( shard integer NOT NULL,
+                         shardCount integer NOT NULL,
+                         firstOrderID integer NOT NULL,
+                         replicatedVersion bigint NOT NULL );"
+
+cs166_psql $MAIN -c "$SHARD_INFO INSERT INTO ShardInfo VALUES (0, $N, $FIRST, $VERSION);"
+
+i=1
+for shard in "$@"; do
+   port=${shard%%/*}
+   db=${shard#*/}
+   if [[ $port == *:* ]]; then
+      SHARD="-h ${port%%:*} -p ${port##*:} $db"
+   else
+      SHARD="-p $port $db"
+   fi
+
+   cs166_psql $SHARD < $DIR/../src/create_tables.sql
+   cs166_psql $SHARD < $DIR/../src/create_indexes.sql
+   cs166_psql $SHARD -c "$SHARD_INFO INSERT INTO ShardInfo VALUES ($i, $N, $FIRST, $VERSION);"
+   if [ "$SURROGATE" = "t" ]; then
+      # sets up the order statistics too; they are filled in once the orders are copied
+      cs166_psql $SHARD < $DIR/../src/migrate_surrogate_keys.sql
+   fi
+
+   for table in Users Items Store; do
+      cs166_psql $MAIN -c "\copy $table TO STDOUT WITH CSV" | cs166_psql $SHARD -c "\copy $table FROM STDIN WITH CSV"
+   done
+
+   ORDERS="SELECT orderID FROM FoodOrder WHERE storeID % $N = $i"
+   ARCHIVED="SELECT orderID FROM FoodOrderArchive WHERE storeID % $N = $i"
+   cs166_psql $MAIN -c "\copy (SELECT * FROM FoodOrder WHERE storeID % $N = $i) TO STDOUT WITH CSV" | cs166_psql $SHARD -c "\copy FoodOrder FROM STDIN WITH CSV"
+   cs166_psql $MAIN -c "\copy (SELECT * FROM ItemsInOrder WHERE orderID IN ($ORDERS)) TO STDOUT WITH CSV" | cs166_psql $SHARD -c "\copy ItemsInOrder FROM STDIN WITH CSV"
+   cs166_psql $MAIN -c "\copy (SELECT * FROM FoodOrderArchive WHERE storeID % $N = $i) TO STDOUT WITH CSV" | cs166_psql $SHARD -c "\copy FoodOrderArchive FROM STDIN WITH CSV"
+   cs166_psql $MAIN -c "\copy (SELECT * FROM ItemsInOrderArchive WHERE orderID IN ($ARCHIVED)) TO STDOUT WITH CSV" | cs166_psql $SHARD -c "\copy ItemsInOrderArchive FROM STDIN WITH CSV"
+
+   if [ "$SURROGATE" = "t" ]; then
+      # the insert trigger counted the live orders as they were copied, but not the archived ones
+      cs166_psql $SHARD -c "SELECT repair_user_order_stats();"
+   else
+      cs166_psql $SHARD < $DIR/../src/create_order_stats.sql
+   fi
+
+   # order items go with their orders through ON DELETE CASCADE
+   cs166_psql $MAIN -c "DELETE FROM FoodOrder WHERE storeID % $N = $i; DELETE FROM FoodOrderArchive WHERE storeID % $N = $i;"
+   i=$(( i + 1 ))
+done
+
+# per-user totals on the main database now only cover the orders left there
+cs166_psql $MAIN -c "SELECT repair_user_order_stats();"
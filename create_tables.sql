@@ -3,11 +3,19 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS FoodOrderArchive CASCADE;
+DROP TABLE IF EXISTS ItemsInOrderArchive CASCADE;
+DROP TABLE IF EXISTS CatalogChanges CASCADE;
+DROP TABLE IF EXISTS OrderStatusName CASCADE;
+DROP TABLE IF EXISTS UserOrderStats CASCADE;
+DROP TABLE IF EXISTS Promotions CASCADE;
+DROP TABLE IF EXISTS ComboItems CASCADE;
+DROP TABLE IF EXISTS UserFavorites CASCADE;
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
                      role char(20) NOT NULL,
-                     favoriteItems text,
+                     favoriteItems text, -- as loaded; migrate_favorites.sql moves it to UserFavorites
                      phoneNum varchar(20) NOT NULL,
                      PRIMARY KEY(login)
 );
@@ -29,13 +37,39 @@ CREATE TABLE Store ( storeID integer NOT NULL,
                            PRIMARY KEY(storeID)
 );
 
+-- Order lifecycle. FoodOrder stores the code; PizzaStore.OrderStatus has the same list.
+CREATE TABLE OrderStatusName ( statusCode smallint NOT NULL,
+                           statusName varchar(20) NOT NULL UNIQUE,
+                           PRIMARY KEY(statusCode)
+);
+
+INSERT INTO OrderStatusName (statusCode, statusName) VALUES
+   (0, 'placed'), (1, 'preparing'), (2, 'out-for-delivery'), (3, 'delivered'), (4, 'cancelled');
+
+-- Maps the free-text statuses of older data to a status code.
+CREATE OR REPLACE FUNCTION order_status_code(status text) RETURNS smallint AS $$
+   SELECT CASE lower(trim(status))
+      WHEN 'preparing' THEN 1
+      WHEN 'in progress' THEN 1
+      WHEN 'out-for-delivery' THEN 2
+      WHEN 'out for delivery' THEN 2
+      WHEN 'delivered' THEN 3
+      WHEN 'complete' THEN 3
+      WHEN 'completed' THEN 3
+      WHEN 'cancelled' THEN 4
+      WHEN 'canceled' THEN 4
+      ELSE 0
+   END::smallint;
+$$ LANGUAGE sql IMMUTABLE;
+
 CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            login varchar(50) NOT NULL, --places relationship
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
-                           orderStatus char(50),
+                           orderStatus smallint NOT NULL DEFAULT 0,
                            PRIMARY KEY(orderID),
+                           FOREIGN KEY(orderStatus) REFERENCES OrderStatusName(statusCode),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE,
                            FOREIGN KEY(storeID) REFERENCES Store(storeID)
@@ -53,3 +87,91 @@ CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
                            ON DELETE CASCADE
 );
 
+-- Cold storage for completed orders moved out by the background archiver.
+-- Same columns as FoodOrder/ItemsInOrder so the two can be unioned for full history.
+-- No foreign keys to Users/Items: archived orders outlive renamed or removed rows.
+CREATE TABLE FoodOrderArchive ( orderID integer NOT NULL,
+                           login varchar(50) NOT NULL,
+                           storeID integer NOT NULL,
+                           totalPrice decimal(10,2) NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           orderStatus smallint NOT NULL,
+                           PRIMARY KEY(orderID)
+);
+
+CREATE TABLE ItemsInOrderArchive ( orderID integer NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           quantity integer NOT NULL,
+                           PRIMARY KEY(orderID, itemName),
+                           FOREIGN KEY(orderID) REFERENCES FoodOrderArchive(orderID) ON DELETE CASCADE
+);
+
+-- Change log for Items, Store and Users, filled by the triggers in create_triggers.sql.
+-- Each PizzaStore instance replays it from the last version it saw after a reconnect.
+CREATE TABLE CatalogChanges ( version bigserial NOT NULL,
+                           tableName varchar(10) NOT NULL,
+                           rowKey varchar(50) NOT NULL,
+                           op char(1) NOT NULL, -- I, U or D
+                           changedAt timestamp NOT NULL DEFAULT clock_timestamp(),
+                           PRIMARY KEY(version)
+);
+
+-- Per-user order totals over FoodOrder and FoodOrderArchive, kept up to date by the
+-- triggers in create_order_stats.sql so screens never aggregate a user's orders.
+CREATE TABLE UserOrderStats ( login varchar(50) NOT NULL,
+                           orderCount integer NOT NULL,
+                           totalSpend decimal(12,2) NOT NULL,
+                           lastOrderID integer NOT NULL,
+                           lastOrderAt timestamp NOT NULL,
+                           lastStoreID integer NOT NULL,
+                           PRIMARY KEY(login),
+                           FOREIGN KEY(login) REFERENCES Users(login)
+                           ON DELETE CASCADE
+);
+
+-- Promotions applied by PizzaStore.PricingEngine when an order is totalled; storeID NULL
+-- means every store, and startTime/endTime limit a promotion to part of the day.
+--   override:  itemName costs price at storeID
+--   happyhour: percentOff off items of typeOfItem (every type if NULL) between startTime and endTime
+--   combo:     its ComboItems, each in its quantity, cost price together
+--   bogo:      of every buyQuantity + freeQuantity items of typeOfItem, the cheapest freeQuantity are free
+CREATE TABLE Promotions ( promotionID serial NOT NULL,
+                           kind varchar(10) NOT NULL CHECK (kind IN ('override', 'happyhour', 'combo', 'bogo')),
+                           storeID integer,
+                           typeOfItem varchar(30),
+                           itemName varchar(50),
+                           price decimal(10,2),
+                           percentOff smallint,
+                           buyQuantity smallint,
+                           freeQuantity smallint,
+                           startTime time,
+                           endTime time,
+                           active boolean NOT NULL DEFAULT true,
+                           PRIMARY KEY(promotionID),
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                           ON DELETE CASCADE,
+                           FOREIGN KEY(itemName) REFERENCES Items(itemName)
+                           ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+-- The items of a combo promotion, so renaming an item carries over to its combos.
+CREATE TABLE ComboItems ( promotionID integer NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           quantity smallint NOT NULL DEFAULT 1 CHECK (quantity > 0),
+                           PRIMARY KEY(promotionID, itemName),
+                           FOREIGN KEY(promotionID) REFERENCES Promotions(promotionID)
+                           ON DELETE CASCADE,
+                           FOREIGN KEY(itemName) REFERENCES Items(itemName)
+                           ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+-- A user's favorite items. Renaming or removing an item or user carries over.
+-- Users.favoriteItems is only read once, by migrate_favorites.sql.
+CREATE TABLE UserFavorites ( login varchar(50) NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           PRIMARY KEY(login, itemName),
+                           FOREIGN KEY(login) REFERENCES Users(login)
+                           ON DELETE CASCADE ON UPDATE CASCADE,
+                           FOREIGN KEY(itemName) REFERENCES Items(itemName)
+                           ON DELETE CASCADE ON UPDATE CASCADE
+);
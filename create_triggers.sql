@@ -0,0 +1,81 @@
+-- Records a change to a catalog row and tells every listening PizzaStore instance about it.
+-- The payload is "version:table:op:key", e.g. "42:items:U:Pepperoni Pizza".
+CREATE OR REPLACE FUNCTION log_catalog_change(tbl text, key text, op text) RETURNS void AS $$
+DECLARE
+   v bigint;
+BEGIN
+   INSERT INTO CatalogChanges (tableName, rowKey, op) VALUES (tbl, key, op) RETURNING version INTO v;
+   PERFORM pg_notify('catalog_changes', v || ':' || tbl || ':' || op || ':' || key);
+END;
+$$ LANGUAGE plpgsql;
+
+-- TG_ARGV[0] is the (lower case) name of the table's key column.
+-- Changing a key, e.g. renaming an item, is sent as a delete of the old key and an insert of the new one.
+CREATE OR REPLACE FUNCTION notify_catalog_change() RETURNS trigger AS $$
+DECLARE
+   oldKey text;
+   newKey text;
+BEGIN
+   IF TG_OP <> 'INSERT' THEN
+      oldKey := to_jsonb(OLD) ->> TG_ARGV[0];
+   END IF;
+   IF TG_OP <> 'DELETE' THEN
+      newKey := to_jsonb(NEW) ->> TG_ARGV[0];
+   END IF;
+
+   IF oldKey IS NOT NULL AND oldKey IS DISTINCT FROM newKey THEN
+      PERFORM log_catalog_change(lower(TG_TABLE_NAME), oldKey, 'D');
+      IF newKey IS NOT NULL THEN
+         PERFORM log_catalog_change(lower(TG_TABLE_NAME), newKey, 'I');
+      END IF;
+   ELSE
+      PERFORM log_catalog_change(lower(TG_TABLE_NAME), newKey, left(TG_OP, 1));
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS Items_Change_Trigger ON Items;
+CREATE TRIGGER Items_Change_Trigger AFTER INSERT OR UPDATE OR DELETE ON Items
+   FOR EACH ROW EXECUTE PROCEDURE notify_catalog_change('itemname');
+
+DROP TRIGGER IF EXISTS Store_Change_Trigger ON Store;
+CREATE TRIGGER Store_Change_Trigger AFTER INSERT OR UPDATE OR DELETE ON Store
+   FOR EACH ROW EXECUTE PROCEDURE notify_catalog_change('storeid');
+
+DROP TRIGGER IF EXISTS Users_Change_Trigger ON Users;
+CREATE TRIGGER Users_Change_Trigger AFTER INSERT OR UPDATE OR DELETE ON Users
+   FOR EACH ROW EXECUTE PROCEDURE notify_catalog_change('login');
+
+-- PizzaStore recompiles its promotions on any change to them or their combo items, so
+-- the key only says which promotion it was.
+DROP TRIGGER IF EXISTS Promotions_Change_Trigger ON Promotions;
+CREATE TRIGGER Promotions_Change_Trigger AFTER INSERT OR UPDATE OR DELETE ON Promotions
+   FOR EACH ROW EXECUTE PROCEDURE notify_catalog_change('promotionid');
+
+DROP TRIGGER IF EXISTS Combo_Items_Change_Trigger ON ComboItems;
+CREATE TRIGGER Combo_Items_Change_Trigger AFTER INSERT OR UPDATE OR DELETE ON ComboItems
+   FOR EACH ROW EXECUTE PROCEDURE notify_catalog_change('promotionid');
+
+-- A change to someone's favorites is logged as a favorites change to their login;
+-- PizzaStore re-reads their Users row, which is where its catalog shows them, and the
+-- shard replicator ignores it. Rows changed by a cascade from renaming or deleting a
+-- user or an item are not logged one by one: the Users or Items change covers them all.
+CREATE OR REPLACE FUNCTION notify_favorite_change() RETURNS trigger AS $$
+BEGIN
+   IF pg_trigger_depth() > 1 THEN
+      RETURN NULL;
+   END IF;
+   IF TG_OP <> 'INSERT' THEN
+      PERFORM log_catalog_change('favorites', OLD.login, 'U');
+   END IF;
+   IF TG_OP <> 'DELETE' AND (TG_OP = 'INSERT' OR NEW.login IS DISTINCT FROM OLD.login) THEN
+      PERFORM log_catalog_change('favorites', NEW.login, 'U');
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS Favorites_Change_Trigger ON UserFavorites;
+CREATE TRIGGER Favorites_Change_Trigger AFTER INSERT OR UPDATE OR DELETE ON UserFavorites
+   FOR EACH ROW EXECUTE PROCEDURE notify_favorite_change();
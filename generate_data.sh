@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# usage: ./generate_data.sh [scale factor] [seed]
+# scale factor 1 is 10,000 users and 200,000 orders; the same seed gives the same files
+
+# compile the generator
+javac -d $DIR/../classes $DIR/../src/DataGenerator.java
+
+# write the csv files load_data.sql reads
+java -cp $DIR/../classes DataGenerator $DIR/../data ${1:-1} ${2:-42}
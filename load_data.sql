@@ -11,10 +11,17 @@ COPY Store
 FROM '/home/csmajs/rnogh001/cs166_project_phase_3/data/store.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY FoodOrder
+-- foodorder.csv has free-text statuses, so it goes through a staging table
+CREATE TEMP TABLE FoodOrderStaging ( orderID integer, login varchar(50), storeID integer,
+                                     totalPrice decimal(10,2), orderTimestamp timestamp, orderStatus text );
+
+COPY FoodOrderStaging
 FROM '/home/csmajs/rnogh001/cs166_project_phase_3/data/foodorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
+INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
+SELECT orderID, login, storeID, totalPrice, orderTimestamp, order_status_code(orderStatus) FROM FoodOrderStaging;
+
 COPY ItemsInOrder
 FROM '/home/csmajs/rnogh001/cs166_project_phase_3/data/itemsinorder.csv'
 WITH DELIMITER ',' CSV HEADER;
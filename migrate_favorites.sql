@@ -0,0 +1,35 @@
+-- Moves the free-text Users.favoriteItems into UserFavorites. Each blob is tried whole
+-- and split on commas and semicolons; a name counts if it matches a menu item, ignoring
+-- case. Names that match nothing are listed at the end and left behind.
+-- create_db.sh runs this after loading data. On an existing database, run it and then
+-- create_indexes.sql and create_triggers.sql.
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS UserFavorites ( login varchar(50) NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           PRIMARY KEY(login, itemName),
+                           FOREIGN KEY(login) REFERENCES Users(login)
+                           ON DELETE CASCADE ON UPDATE CASCADE,
+                           FOREIGN KEY(itemName) REFERENCES Items(itemName)
+                           ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+CREATE TEMP TABLE FavoriteNames ON COMMIT DROP AS
+   SELECT DISTINCT login, trim(name) AS name
+   FROM (SELECT login, favoriteItems AS name FROM Users WHERE favoriteItems IS NOT NULL
+         UNION ALL
+         SELECT login, regexp_split_to_table(favoriteItems, '[,;]') FROM Users WHERE favoriteItems IS NOT NULL) AS f
+   WHERE trim(name) <> '';
+
+INSERT INTO UserFavorites (login, itemName)
+SELECT DISTINCT f.login, i.itemName FROM FavoriteNames f JOIN Items i ON lower(i.itemName) = lower(f.name)
+ON CONFLICT DO NOTHING;
+
+-- a whole blob that was really a list does not match anything, so only single names are reported
+SELECT f.login, f.name AS unmatched FROM FavoriteNames f
+WHERE f.name !~ '[,;]' AND NOT EXISTS (SELECT 1 FROM Items i WHERE lower(i.itemName) = lower(f.name))
+ORDER BY f.login, f.name;
+
+COMMIT;
+
+ANALYZE UserFavorites;
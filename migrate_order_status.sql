@@ -0,0 +1,43 @@
+-- Converts an existing database from free-text orderStatus to status codes.
+-- New databases get this schema from create_tables.sql and do not need it.
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS OrderStatusName ( statusCode smallint NOT NULL,
+                           statusName varchar(20) NOT NULL UNIQUE,
+                           PRIMARY KEY(statusCode)
+);
+
+INSERT INTO OrderStatusName (statusCode, statusName) VALUES
+   (0, 'placed'), (1, 'preparing'), (2, 'out-for-delivery'), (3, 'delivered'), (4, 'cancelled')
+ON CONFLICT DO NOTHING;
+
+CREATE OR REPLACE FUNCTION order_status_code(status text) RETURNS smallint AS $$
+   SELECT CASE lower(trim(status))
+      WHEN 'preparing' THEN 1
+      WHEN 'in progress' THEN 1
+      WHEN 'out-for-delivery' THEN 2
+      WHEN 'out for delivery' THEN 2
+      WHEN 'delivered' THEN 3
+      WHEN 'complete' THEN 3
+      WHEN 'completed' THEN 3
+      WHEN 'cancelled' THEN 4
+      WHEN 'canceled' THEN 4
+      ELSE 0
+   END::smallint;
+$$ LANGUAGE sql IMMUTABLE;
+
+ALTER TABLE FoodOrder ALTER COLUMN orderStatus TYPE smallint USING order_status_code(orderStatus);
+ALTER TABLE FoodOrder ALTER COLUMN orderStatus SET DEFAULT 0;
+ALTER TABLE FoodOrder ALTER COLUMN orderStatus SET NOT NULL;
+ALTER TABLE FoodOrder ADD FOREIGN KEY(orderStatus) REFERENCES OrderStatusName(statusCode);
+
+ALTER TABLE FoodOrderArchive ALTER COLUMN orderStatus TYPE smallint USING order_status_code(orderStatus);
+ALTER TABLE FoodOrderArchive ALTER COLUMN orderStatus SET NOT NULL;
+
+DROP INDEX IF EXISTS Open_Order_Index;
+CREATE INDEX Open_Order_Index ON FoodOrder (storeID, orderTimestamp, orderID) WHERE orderStatus < 3;
+
+COMMIT;
+
+-- the rewrite leaves the old row versions behind
+VACUUM ANALYZE FoodOrder;
@@ -0,0 +1,31 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# usage: ./migrate_surrogate_keys.sh [<port>/<dbname> ...]
+# Runs migrate_surrogate_keys.sql on the main database and then on each shard given,
+# the same list create_shards.sh was given. The main database numbers users and items;
+# each shard gets those IDs rather than numbering its own rows, since a shard can keep
+# users and items the main database has deleted. Stop every PizzaStore instance first.
+
+MAIN="-p $PGPORT ${USER}_project_phase_3_DB"
+
+cs166_psql $MAIN -v ON_ERROR_STOP=1 < $DIR/../src/migrate_surrogate_keys.sql || exit 1
+
+KEY_MAPS="CREATE TABLE IF NOT EXISTS UserKeyMap ( login varchar(50) NOT NULL, userID integer NOT NULL, PRIMARY KEY(login) );
+CREATE TABLE IF NOT EXISTS ItemKeyMap ( itemName varchar(50) NOT NULL, itemID integer NOT NULL, PRIMARY KEY(itemName) );
+TRUNCATE UserKeyMap, ItemKeyMap;"
+
+for shard in "$@"; do
+   port=${shard%%/*}
+   db=${shard#*/}
+   if [[ $port == *:* ]]; then
+      SHARD="-h ${port%%:*} -p ${port##*:} $db"
+   else
+      SHARD="-p $port $db"
+   fi
+
+   cs166_psql $SHARD -c "$KEY_MAPS"
+   cs166_psql $MAIN -c "\copy (SELECT login, userID FROM Users) TO STDOUT WITH CSV" | cs166_psql $SHARD -c "\copy UserKeyMap FROM STDIN WITH CSV"
+   cs166_psql $MAIN -c "\copy (SELECT itemName, itemID FROM Items) TO STDOUT WITH CSV" | cs166_psql $SHARD -c "\copy ItemKeyMap FROM STDIN WITH CSV"
+   cs166_psql $SHARD -v ON_ERROR_STOP=1 < $DIR/../src/migrate_surrogate_keys.sql || exit 1
+done
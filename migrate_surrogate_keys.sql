@@ -0,0 +1,269 @@
+-- Gives Users and Items integer keys, userID and itemID, and rebuilds FoodOrder, ItemsInOrder
+-- and their archives to hold those instead of login and itemName. Order rows and their
+-- indexes shrink, joins compare integers, and renaming a user or an item changes one row
+-- instead of every order that refers to it. PizzaStore sees the new columns when it
+-- connects and reads login and itemName through Users and Items from then on.
+-- With shards, run migrate_surrogate_keys.sh instead, with PizzaStore stopped. It runs this
+-- on the main database, which numbers users and items in login and itemName order, and
+-- then on each shard with the IDs the main database handed out loaded into UserKeyMap and
+-- ItemKeyMap, so every database agrees on them. A user or item a shard keeps after it was
+-- deleted on the main database, because orders there still refer to it, gets a negative
+-- ID, which the main database never hands out. create_shards.sh runs this on new shards.
+-- Replaces the order statistics in create_order_stats.sql, which should not be run again
+-- afterwards.
+-- The sizes of the order tables and their indexes are listed before and after. The new
+-- tables are freshly written, so VACUUM FULL the old ones first for a fair comparison.
+BEGIN;
+
+CREATE TEMP TABLE OrderTableSizes ON COMMIT DROP AS
+   SELECT c.relname AS relation, pg_relation_size(c.oid) AS bytesBefore
+   FROM pg_class c
+   WHERE c.relnamespace = current_schema()::regnamespace
+     AND (c.relname IN ('foodorder', 'itemsinorder', 'foodorderarchive', 'itemsinorderarchive')
+          OR c.oid IN (SELECT indexrelid FROM pg_index
+                       WHERE indrelid IN ('foodorder'::regclass, 'itemsinorder'::regclass,
+                                          'foodorderarchive'::regclass, 'itemsinorderarchive'::regclass)));
+
+CREATE TABLE IF NOT EXISTS UserKeyMap ( login varchar(50) NOT NULL,
+                           userID integer NOT NULL,
+                           PRIMARY KEY(login)
+);
+CREATE TABLE IF NOT EXISTS ItemKeyMap ( itemName varchar(50) NOT NULL,
+                           itemID integer NOT NULL,
+                           PRIMARY KEY(itemName)
+);
+
+-- Numbering a shard's rows on their own would not match the main database. A new,
+-- empty shard is fine: its rows are copied in afterwards with their IDs.
+DO $$
+BEGIN
+   IF to_regclass('ShardInfo') IS NOT NULL THEN
+      IF EXISTS (SELECT 1 FROM ShardInfo WHERE shard <> 0) AND EXISTS (SELECT 1 FROM Users)
+         AND NOT EXISTS (SELECT 1 FROM UserKeyMap) THEN
+         RAISE EXCEPTION 'this is a shard; run migrate_surrogate_keys.sh so it gets the main database''s IDs';
+      END IF;
+   END IF;
+END;
+$$;
+
+-- on the main database, or a database without shards, the maps start empty
+INSERT INTO UserKeyMap (login, userID)
+SELECT login, row_number() OVER (ORDER BY login) FROM Users WHERE NOT EXISTS (SELECT 1 FROM UserKeyMap);
+INSERT INTO ItemKeyMap (itemName, itemID)
+SELECT itemName, row_number() OVER (ORDER BY itemName) FROM Items WHERE NOT EXISTS (SELECT 1 FROM ItemKeyMap);
+
+-- numbering every row is not a change PizzaStore's catalog or the shards need to hear about
+ALTER TABLE Users DISABLE TRIGGER USER;
+ALTER TABLE Items DISABLE TRIGGER USER;
+
+ALTER TABLE Users ADD COLUMN userID integer;
+UPDATE Users u SET userID = m.userID FROM UserKeyMap m WHERE m.login = u.login;
+UPDATE Users u SET userID = -n.id
+FROM (SELECT login, row_number() OVER (ORDER BY login) AS id FROM Users WHERE userID IS NULL) AS n WHERE n.login = u.login;
+CREATE SEQUENCE Users_UserID_Seq OWNED BY Users.userID;
+SELECT setval('Users_UserID_Seq', COALESCE((SELECT MAX(userID) FROM Users), 0) + 1, false);
+ALTER TABLE Users ALTER COLUMN userID SET DEFAULT nextval('Users_UserID_Seq');
+ALTER TABLE Users ALTER COLUMN userID SET NOT NULL;
+ALTER TABLE Users ADD UNIQUE (userID);
+
+ALTER TABLE Items ADD COLUMN itemID integer;
+UPDATE Items i SET itemID = m.itemID FROM ItemKeyMap m WHERE m.itemName = i.itemName;
+UPDATE Items i SET itemID = -n.id
+FROM (SELECT itemName, row_number() OVER (ORDER BY itemName) AS id FROM Items WHERE itemID IS NULL) AS n WHERE n.itemName = i.itemName;
+CREATE SEQUENCE Items_ItemID_Seq OWNED BY Items.itemID;
+SELECT setval('Items_ItemID_Seq', COALESCE((SELECT MAX(itemID) FROM Items), 0) + 1, false);
+ALTER TABLE Items ALTER COLUMN itemID SET DEFAULT nextval('Items_ItemID_Seq');
+ALTER TABLE Items ALTER COLUMN itemID SET NOT NULL;
+ALTER TABLE Items ADD UNIQUE (itemID);
+
+ALTER TABLE Users ENABLE TRIGGER USER;
+ALTER TABLE Items ENABLE TRIGGER USER;
+
+DROP TABLE UserKeyMap, ItemKeyMap;
+
+-- Same column order as before, so the archiver can still copy rows with SELECT *.
+CREATE TABLE FoodOrderNew ( orderID integer NOT NULL,
+                           userID integer NOT NULL, --places relationship
+                           storeID integer NOT NULL, --placedAt relationship
+                           totalPrice decimal(10,2) NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           orderStatus smallint NOT NULL DEFAULT 0,
+                           PRIMARY KEY(orderID),
+                           FOREIGN KEY(orderStatus) REFERENCES OrderStatusName(statusCode),
+                           FOREIGN KEY(userID) REFERENCES Users(userID)
+                           ON DELETE CASCADE,
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                           ON DELETE CASCADE
+);
+
+CREATE TABLE ItemsInOrderNew ( orderID integer NOT NULL,
+                           itemID integer NOT NULL,
+                           quantity integer NOT NULL,
+                           PRIMARY KEY(orderID, itemID),
+                           FOREIGN KEY(orderID) REFERENCES FoodOrderNew(orderID) ON DELETE CASCADE,
+                           FOREIGN KEY(itemID) REFERENCES Items(itemID)
+                           ON DELETE CASCADE
+);
+
+-- An archived order can outlive its user or item, which then has no ID; it keeps a NULL.
+CREATE TABLE FoodOrderArchiveNew ( orderID integer NOT NULL,
+                           userID integer,
+                           storeID integer NOT NULL,
+                           totalPrice decimal(10,2) NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           orderStatus smallint NOT NULL,
+                           PRIMARY KEY(orderID)
+);
+
+CREATE TABLE ItemsInOrderArchiveNew ( orderID integer NOT NULL,
+                           itemID integer,
+                           quantity integer NOT NULL,
+                           FOREIGN KEY(orderID) REFERENCES FoodOrderArchiveNew(orderID) ON DELETE CASCADE
+);
+
+INSERT INTO FoodOrderNew
+SELECT o.orderID, u.userID, o.storeID, o.totalPrice, o.orderTimestamp, o.orderStatus
+FROM FoodOrder o JOIN Users u ON u.login = o.login;
+
+INSERT INTO ItemsInOrderNew
+SELECT i.orderID, it.itemID, i.quantity
+FROM ItemsInOrder i JOIN Items it ON it.itemName = i.itemName;
+
+INSERT INTO FoodOrderArchiveNew
+SELECT o.orderID, u.userID, o.storeID, o.totalPrice, o.orderTimestamp, o.orderStatus
+FROM FoodOrderArchive o LEFT JOIN Users u ON u.login = o.login;
+
+INSERT INTO ItemsInOrderArchiveNew
+SELECT i.orderID, it.itemID, i.quantity
+FROM ItemsInOrderArchive i LEFT JOIN Items it ON it.itemName = i.itemName;
+
+SELECT 'archived orders whose user is gone' AS orphaned, COUNT(*) FROM FoodOrderArchiveNew WHERE userID IS NULL
+UNION ALL
+SELECT 'archived order items whose item is gone', COUNT(*) FROM ItemsInOrderArchiveNew WHERE itemID IS NULL;
+
+-- the order statistics are rebuilt below on the new tables
+DROP VIEW IF EXISTS UserOrderStatsDrift;
+DROP VIEW IF EXISTS UserOrderStatsActual;
+DROP TABLE ItemsInOrder, FoodOrder, ItemsInOrderArchive, FoodOrderArchive;
+
+ALTER TABLE FoodOrderNew RENAME TO FoodOrder;
+ALTER TABLE ItemsInOrderNew RENAME TO ItemsInOrder;
+ALTER TABLE FoodOrderArchiveNew RENAME TO FoodOrderArchive;
+ALTER TABLE ItemsInOrderArchiveNew RENAME TO ItemsInOrderArchive;
+ALTER INDEX FoodOrderNew_pkey RENAME TO FoodOrder_pkey;
+ALTER INDEX ItemsInOrderNew_pkey RENAME TO ItemsInOrder_pkey;
+ALTER INDEX FoodOrderArchiveNew_pkey RENAME TO FoodOrderArchive_pkey;
+
+-- The indexes from create_indexes.sql went with the old tables.
+CREATE INDEX Order_ID_Index ON ItemsInOrder (orderID);
+CREATE INDEX Order_Timestamp_Index ON FoodOrder (orderTimestamp);
+CREATE INDEX Open_Order_Index ON FoodOrder (storeID, orderTimestamp, orderID) WHERE orderStatus < 3;
+-- A user's orders, newest first, which the login lookups reach through Users.
+CREATE INDEX Order_User_Index ON FoodOrder (userID, orderTimestamp);
+-- Replaces Archive_Login_Index.
+CREATE INDEX Archive_User_Index ON FoodOrderArchive (userID);
+CREATE INDEX Archive_Order_ID_Index ON ItemsInOrderArchive (orderID);
+
+-- A renamed user keeps their totals.
+ALTER TABLE UserOrderStats DROP CONSTRAINT IF EXISTS UserOrderStats_login_fkey;
+ALTER TABLE UserOrderStats ADD FOREIGN KEY(login) REFERENCES Users(login)
+   ON DELETE CASCADE ON UPDATE CASCADE;
+
+-- create_order_stats.sql, with orders reaching their user's login through userID.
+CREATE OR REPLACE VIEW UserOrderStatsActual AS
+   SELECT u.login,
+          COUNT(*)::integer AS orderCount,
+          SUM(totalPrice) AS totalSpend,
+          (array_agg(orderID ORDER BY orderTimestamp DESC, orderID DESC))[1] AS lastOrderID,
+          MAX(orderTimestamp) AS lastOrderAt,
+          (array_agg(storeID ORDER BY orderTimestamp DESC, orderID DESC))[1] AS lastStoreID
+   FROM (SELECT orderID, userID, storeID, totalPrice, orderTimestamp FROM FoodOrder
+         UNION ALL
+         SELECT orderID, userID, storeID, totalPrice, orderTimestamp FROM FoodOrderArchive) AS o
+   JOIN Users u ON u.userID = o.userID
+   GROUP BY u.login;
+
+CREATE OR REPLACE VIEW UserOrderStatsDrift AS
+   SELECT COALESCE(a.login, s.login) AS login,
+          s.orderCount AS storedCount, a.orderCount AS actualCount,
+          s.totalSpend AS storedSpend, a.totalSpend AS actualSpend,
+          s.lastOrderID AS storedLastOrder, a.lastOrderID AS actualLastOrder
+   FROM UserOrderStatsActual a FULL JOIN UserOrderStats s ON s.login = a.login
+   WHERE a.orderCount IS DISTINCT FROM s.orderCount
+      OR a.totalSpend IS DISTINCT FROM s.totalSpend
+      OR a.lastOrderID IS DISTINCT FROM s.lastOrderID
+      OR a.lastOrderAt IS DISTINCT FROM s.lastOrderAt
+      OR a.lastStoreID IS DISTINCT FROM s.lastStoreID;
+
+CREATE OR REPLACE FUNCTION refresh_user_order_stats(who varchar) RETURNS void AS $$
+   DELETE FROM UserOrderStats WHERE login = who;
+   INSERT INTO UserOrderStats (login, orderCount, totalSpend, lastOrderID, lastOrderAt, lastStoreID)
+   SELECT login, orderCount, totalSpend, lastOrderID, lastOrderAt, lastStoreID FROM UserOrderStatsActual WHERE login = who;
+$$ LANGUAGE sql;
+
+CREATE OR REPLACE FUNCTION repair_user_order_stats() RETURNS integer AS $$
+DECLARE
+   who varchar;
+   repaired integer := 0;
+BEGIN
+   LOCK TABLE UserOrderStats IN SHARE ROW EXCLUSIVE MODE;
+   FOR who IN SELECT login FROM UserOrderStatsDrift LOOP
+      PERFORM refresh_user_order_stats(who);
+      repaired := repaired + 1;
+   END LOOP;
+   RETURN repaired;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION add_user_order_stats() RETURNS trigger AS $$
+BEGIN
+   INSERT INTO UserOrderStats AS s (login, orderCount, totalSpend, lastOrderID, lastOrderAt, lastStoreID)
+   SELECT u.login, 1, NEW.totalPrice, NEW.orderID, NEW.orderTimestamp, NEW.storeID FROM Users u WHERE u.userID = NEW.userID
+   ON CONFLICT (login) DO UPDATE SET
+      orderCount = s.orderCount + 1,
+      totalSpend = s.totalSpend + EXCLUDED.totalSpend,
+      lastOrderID = CASE WHEN (EXCLUDED.lastOrderAt, EXCLUDED.lastOrderID) > (s.lastOrderAt, s.lastOrderID) THEN EXCLUDED.lastOrderID ELSE s.lastOrderID END,
+      lastOrderAt = GREATEST(s.lastOrderAt, EXCLUDED.lastOrderAt),
+      lastStoreID = CASE WHEN (EXCLUDED.lastOrderAt, EXCLUDED.lastOrderID) > (s.lastOrderAt, s.lastOrderID) THEN EXCLUDED.lastStoreID ELSE s.lastStoreID END;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION change_user_order_stats() RETURNS trigger AS $$
+BEGIN
+   PERFORM refresh_user_order_stats(login) FROM Users WHERE userID IN (OLD.userID, NEW.userID);
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER Order_Stats_Insert_Trigger AFTER INSERT ON FoodOrder
+   FOR EACH ROW EXECUTE PROCEDURE add_user_order_stats();
+
+CREATE TRIGGER Order_Stats_Update_Trigger AFTER UPDATE OF userID, storeID, totalPrice, orderTimestamp ON FoodOrder
+   FOR EACH ROW EXECUTE PROCEDURE change_user_order_stats();
+
+SELECT repair_user_order_stats() AS repairedUsers;
+
+ANALYZE Users;
+ANALYZE Items;
+ANALYZE FoodOrder;
+ANALYZE ItemsInOrder;
+ANALYZE FoodOrderArchive;
+ANALYZE ItemsInOrderArchive;
+
+-- Indexes on login or itemName that were dropped show only a before size.
+SELECT COALESCE(b.relation, a.relation) AS relation,
+       pg_size_pretty(b.bytesBefore) AS before,
+       pg_size_pretty(a.bytesAfter) AS after
+FROM OrderTableSizes b
+FULL JOIN (SELECT c.relname AS relation, pg_relation_size(c.oid) AS bytesAfter
+           FROM pg_class c
+           WHERE c.relnamespace = current_schema()::regnamespace
+             AND (c.relname IN ('foodorder', 'itemsinorder', 'foodorderarchive', 'itemsinorderarchive')
+                  OR c.oid IN (SELECT indexrelid FROM pg_index
+                               WHERE indrelid IN ('foodorder'::regclass, 'itemsinorder'::regclass,
+                                                  'foodorderarchive'::regclass, 'itemsinorderarchive'::regclass)))) AS a
+   ON a.relation = b.relation
+ORDER BY 1;
+
+COMMIT;